@@ -0,0 +1,265 @@
+package org.thiesen.cogitter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * <p>
+ * Counts the lines per author in <code>git annotate -e</code> output by scanning the raw bytes.
+ * </p>
+ * <p>
+ * A line is attributed if it matches <code>^[0-9a-f]+\s*\(\s*&lt;(\S+@\S+)&gt;</code>, the same
+ * expression the line based reader used. Emails are resolved to author ids through a small
+ * per-parser hash table keyed by the raw bytes, so once an author was seen no objects are
+ * allocated per line; only the first occurrence of an email is decoded and interned in the
+ * shared {@link AuthorTable}.
+ * </p>
+ * <p>
+ * Instances are not thread safe, use one per worker thread.
+ * </p>
+ */
+final class AnnotateParser {
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final AuthorTable _authors;
+    private final byte[] _buffer = new byte[BUFFER_SIZE];
+
+    // email bytes -> author id, open addressing
+    private int[] _slotHash = new int[64];
+    private int[] _slotId = new int[64];
+    private int[] _slotOffset = new int[64];
+    private int[] _slotLength = new int[64];
+    private int _slotCount;
+    private byte[] _keys = new byte[1024];
+    private int _keysLength;
+
+    // counts of the current stream, indexed by author id
+    private int[] _counts = new int[64];
+    private int[] _seen = new int[64];
+    private int _seenCount;
+    private long _bytesRead;
+
+    AnnotateParser( final AuthorTable authors ) {
+        _authors = authors;
+        Arrays.fill( _slotId, -1 );
+    }
+
+    /**
+     * Reads the stream to its end and counts the lines per author. Previous counts are discarded.
+     */
+    void parse( final InputStream in ) throws IOException {
+        for ( int i = 0; i < _seenCount; i++ ) {
+            _counts[_seen[i]] = 0;
+        }
+        _seenCount = 0;
+        _bytesRead = 0;
+
+        final byte[] buffer = _buffer;
+        int start = 0;
+        int end = 0;
+        boolean skipping = false;
+        int read;
+        while ( ( read = in.read( buffer, end, buffer.length - end ) ) >= 0 ) {
+            _bytesRead += read;
+            end += read;
+
+            for ( int i = start; i < end; i++ ) {
+                if ( buffer[i] != '\n' ) {
+                    continue;
+                }
+                if ( skipping ) {
+                    skipping = false;
+                } else {
+                    parseLine( start, i );
+                }
+                start = i + 1;
+            }
+
+            if ( start == end ) {
+                start = end = 0;
+            } else if ( end == buffer.length ) {
+                if ( start == 0 ) {
+                    // a line longer than the buffer, the header is at its beginning
+                    if ( !skipping ) {
+                        parseLine( 0, end );
+                        skipping = true;
+                    }
+                    end = 0;
+                } else {
+                    System.arraycopy( buffer, start, buffer, 0, end - start );
+                    end -= start;
+                    start = 0;
+                }
+            }
+        }
+        if ( start < end && !skipping ) {
+            parseLine( start, end );
+        }
+    }
+
+    /**
+     * @return the number of distinct authors in the last stream
+     */
+    int authorCount() {
+        return _seenCount;
+    }
+
+    /**
+     * @return the id of the <code>index</code>th author of the last stream
+     */
+    int author( final int index ) {
+        return _seen[index];
+    }
+
+    /**
+     * @return the number of lines of the <code>index</code>th author of the last stream
+     */
+    int count( final int index ) {
+        return _counts[_seen[index]];
+    }
+
+    long bytesRead() {
+        return _bytesRead;
+    }
+
+    private void parseLine( final int from, final int to ) {
+        final byte[] buffer = _buffer;
+        int i = from;
+        while ( i < to && isHex( buffer[i] ) ) {
+            i++;
+        }
+        if ( i == from ) {
+            return;
+        }
+        i = skipSpace( i, to );
+        if ( i >= to || buffer[i] != '(' ) {
+            return;
+        }
+        i = skipSpace( i + 1, to );
+        if ( i >= to || buffer[i] != '<' ) {
+            return;
+        }
+
+        final int emailStart = ++i;
+        int close = -1;
+        while ( i < to && !isSpace( buffer[i] ) ) {
+            if ( buffer[i] == '>' ) {
+                close = i;
+            }
+            i++;
+        }
+        if ( close < 0 ) {
+            return;
+        }
+        int at = -1;
+        for ( int j = emailStart + 1; j < close - 1; j++ ) {
+            if ( buffer[j] == '@' ) {
+                at = j;
+                break;
+            }
+        }
+        if ( at < 0 ) {
+            return;
+        }
+
+        final int id = lookup( emailStart, close - emailStart );
+        if ( id >= _counts.length ) {
+            _counts = Arrays.copyOf( _counts, Math.max( id + 1, _counts.length * 2 ) );
+        }
+        if ( _counts[id]++ == 0 ) {
+            if ( _seenCount == _seen.length ) {
+                _seen = Arrays.copyOf( _seen, _seen.length * 2 );
+            }
+            _seen[_seenCount++] = id;
+        }
+    }
+
+    private int lookup( final int offset, final int length ) {
+        final byte[] buffer = _buffer;
+        int hash = 0x811c9dc5;
+        for ( int i = offset; i < offset + length; i++ ) {
+            hash = ( hash ^ buffer[i] ) * 0x01000193;
+        }
+
+        final int mask = _slotId.length - 1;
+        int slot = hash & mask;
+        while ( _slotId[slot] >= 0 ) {
+            if ( _slotHash[slot] == hash && _slotLength[slot] == length && equalKey( _slotOffset[slot], offset, length ) ) {
+                return _slotId[slot];
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+
+        final int id = _authors.intern( new String( buffer, offset, length, GitPaths.UTF8 ).toLowerCase( Locale.ROOT ) );
+        if ( _keysLength + length > _keys.length ) {
+            _keys = Arrays.copyOf( _keys, Math.max( _keys.length * 2, _keysLength + length ) );
+        }
+        System.arraycopy( buffer, offset, _keys, _keysLength, length );
+        _slotHash[slot] = hash;
+        _slotId[slot] = id;
+        _slotOffset[slot] = _keysLength;
+        _slotLength[slot] = length;
+        _keysLength += length;
+        if ( ++_slotCount * 2 > _slotId.length ) {
+            rehash();
+        }
+        return id;
+    }
+
+    private boolean equalKey( final int keyOffset, final int offset, final int length ) {
+        for ( int i = 0; i < length; i++ ) {
+            if ( _keys[keyOffset + i] != _buffer[offset + i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        final int[] hashes = _slotHash;
+        final int[] ids = _slotId;
+        final int[] offsets = _slotOffset;
+        final int[] lengths = _slotLength;
+
+        final int capacity = ids.length * 2;
+        _slotHash = new int[capacity];
+        _slotId = new int[capacity];
+        _slotOffset = new int[capacity];
+        _slotLength = new int[capacity];
+        Arrays.fill( _slotId, -1 );
+
+        for ( int i = 0; i < ids.length; i++ ) {
+            if ( ids[i] < 0 ) {
+                continue;
+            }
+            int slot = hashes[i] & ( capacity - 1 );
+            while ( _slotId[slot] >= 0 ) {
+                slot = ( slot + 1 ) & ( capacity - 1 );
+            }
+            _slotHash[slot] = hashes[i];
+            _slotId[slot] = ids[i];
+            _slotOffset[slot] = offsets[i];
+            _slotLength[slot] = lengths[i];
+        }
+    }
+
+    private int skipSpace( final int from, final int to ) {
+        int i = from;
+        while ( i < to && isSpace( _buffer[i] ) ) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isHex( final byte b ) {
+        return ( b >= '0' && b <= '9' ) || ( b >= 'a' && b <= 'f' );
+    }
+
+    private static boolean isSpace( final byte b ) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0b || b == '\f' || b == '\r';
+    }
+
+}
@@ -0,0 +1,102 @@
+package org.thiesen.cogitter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.io.Files;
+
+/**
+ * Compares the regular expression based annotate reader with {@link AnnotateParser} on a
+ * captured dump, e.g. <code>git annotate -e -- Main.java &gt; annotate.txt</code>.
+ */
+public class AnnotateParserBenchmark {
+
+    private final static Pattern EMAIL_PATTERN = Pattern.compile( "^[0-9a-f]+\\s*\\(\\s*<(\\S+@\\S+)>" );
+
+    private interface Candidate {
+        long run( byte[] dump ) throws IOException;
+    }
+
+    public static void main( final String[] args ) throws IOException {
+        if ( args.length < 1 ) {
+            System.out.println("Usage: AnnotateParserBenchmark annotate-dump [iterations]");
+            System.exit( 1 );
+        }
+        final byte[] dump = Files.toByteArray( new File( args[0] ) );
+        final int iterations = args.length > 1 ? Integer.parseInt( args[1] ) : 200;
+
+        final Candidate regex = new Candidate() {
+            @Override
+            public long run( final byte[] data ) throws IOException {
+                final BufferedReader reader = new BufferedReader( new InputStreamReader( new ByteArrayInputStream( data ) ) );
+                final Multiset<String> counts = HashMultiset.create();
+                String line;
+                while ( ( line = reader.readLine() ) != null ) {
+                    final Matcher matcher = EMAIL_PATTERN.matcher( line );
+                    if ( matcher.find() ) {
+                        counts.add( matcher.group( 1 ).toLowerCase( Locale.ROOT ) );
+                    }
+                }
+                return counts.size();
+            }
+        };
+
+        final AnnotateParser parser = new AnnotateParser( new AuthorTable() );
+        final Candidate bytes = new Candidate() {
+            @Override
+            public long run( final byte[] data ) throws IOException {
+                parser.parse( new ByteArrayInputStream( data ) );
+                long lines = 0;
+                for ( int i = 0; i < parser.authorCount(); i++ ) {
+                    lines += parser.count( i );
+                }
+                return lines;
+            }
+        };
+
+        final long lines = bytes.run( dump );
+        if ( lines != regex.run( dump ) ) {
+            System.err.println("Parsers disagree on the line count");
+        }
+
+        measure( "regex", regex, dump, iterations, lines );
+        measure( "bytes", bytes, dump, iterations, lines );
+        measure( "regex", regex, dump, iterations, lines );
+        measure( "bytes", bytes, dump, iterations, lines );
+    }
+
+    private static void measure( final String name, final Candidate candidate, final byte[] dump, final int iterations, final long lines ) throws IOException {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long allocatedBefore = allocatedBytes( threads );
+        final long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ ) {
+            candidate.run( dump );
+        }
+        final long nanos = System.nanoTime() - start;
+        final long allocated = allocatedBytes( threads ) - allocatedBefore;
+
+        final double totalLines = (double)lines * iterations;
+        System.out.printf( "%s\t%.1f ns/line\t%.1f MB/s\t%.1f bytes allocated/line%n", name,
+                Double.valueOf( nanos / totalLines ),
+                Double.valueOf( ( (double)dump.length * iterations / ( 1024 * 1024 ) ) / ( nanos / 1E9 ) ),
+                Double.valueOf( allocatedBefore < 0 ? Double.NaN : allocated / totalLines ) );
+    }
+
+    private static long allocatedBytes( final ThreadMXBean threads ) {
+        if ( threads instanceof com.sun.management.ThreadMXBean ) {
+            return ( (com.sun.management.ThreadMXBean)threads ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        return -1;
+    }
+
+}
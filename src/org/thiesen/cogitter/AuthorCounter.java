@@ -0,0 +1,86 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * <p>
+ * Counts lines per author id. Every thread adds to its own <code>long[]</code> stripe, so
+ * counting threads never contend; the stripes are summed up once by {@link #snapshot()}.
+ * Where threads are short lived, e.g. one virtual thread per file, pooled workers can take a
+ * {@link Stripe} of their own with {@link #newStripe()} instead.
+ * </p>
+ * <p>
+ * The snapshot only sees everything once the counting threads are done and that is visible to
+ * the caller, e.g. after <code>ExecutorService.awaitTermination</code> or <code>Future.get</code>.
+ * </p>
+ */
+final class AuthorCounter {
+
+    static final class Stripe {
+        private long[] _counts = new long[64];
+
+        void add( final int author, final long count ) {
+            if ( author >= _counts.length ) {
+                _counts = Arrays.copyOf( _counts, Math.max( author + 1, _counts.length * 2 ) );
+            }
+            _counts[author] += count;
+        }
+    }
+
+    private final AuthorTable _authors;
+    private final List<Stripe> _stripes = Lists.newArrayList();
+    private final ThreadLocal<Stripe> _stripe = new ThreadLocal<Stripe>() {
+        @Override
+        protected Stripe initialValue() {
+            return newStripe();
+        }
+    };
+
+    AuthorCounter( final AuthorTable authors ) {
+        _authors = authors;
+    }
+
+    AuthorTable getAuthors() {
+        return _authors;
+    }
+
+    /**
+     * @return a new stripe that is included in the snapshot, to be used by one thread at a time
+     */
+    Stripe newStripe() {
+        final Stripe stripe = new Stripe();
+        synchronized ( _stripes ) {
+            _stripes.add( stripe );
+        }
+        return stripe;
+    }
+
+    void add( final int author, final long count ) {
+        _stripe.get().add( author, count );
+    }
+
+    void add( final String email, final long count ) {
+        add( _authors.intern( email ), count );
+    }
+
+    /**
+     * @return the summed up counts of all authors with at least one line
+     */
+    AuthorCounts snapshot() {
+        final long[] total = new long[_authors.size()];
+        synchronized ( _stripes ) {
+            for ( final Stripe stripe : _stripes ) {
+                final long[] counts = stripe._counts;
+                for ( int i = 0; i < Math.min( counts.length, total.length ); i++ ) {
+                    total[i] += counts[i];
+                }
+            }
+        }
+
+        return AuthorCounts.of( _authors, total );
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Immutable line counts per author as parallel id and count arrays, in order of the author emails.
+ * Ids are handed out in the order counting threads first see an author, which differs from run to
+ * run, while the report lays out and prints the authors in this order.
+ */
+final class AuthorCounts {
+
+    private final AuthorTable _authors;
+    private final int[] _ids;
+    private final long[] _counts;
+    private final long _total;
+
+    AuthorCounts( final AuthorTable authors, final int[] ids, final long[] counts ) {
+        _authors = authors;
+        final Integer[] order = new Integer[ids.length];
+        for ( int i = 0; i < order.length; i++ ) {
+            order[i] = Integer.valueOf( i );
+        }
+        Arrays.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( final Integer o1, final Integer o2 ) {
+                return authors.name( ids[o1.intValue()] ).compareTo( authors.name( ids[o2.intValue()] ) );
+            }
+        } );
+        _ids = new int[ids.length];
+        _counts = new long[ids.length];
+        for ( int i = 0; i < order.length; i++ ) {
+            _ids[i] = ids[order[i].intValue()];
+            _counts[i] = counts[order[i].intValue()];
+        }
+        long total = 0;
+        for ( final long count : _counts ) {
+            total += count;
+        }
+        _total = total;
+    }
+
+    /**
+     * @return the counts of all given counts added up, which all have to use <code>authors</code>
+     */
+    static AuthorCounts sum( final AuthorTable authors, final Collection<AuthorCounts> all ) {
+        final long[] total = new long[authors.size()];
+        for ( final AuthorCounts counts : all ) {
+            for ( int i = 0; i < counts._ids.length; i++ ) {
+                total[counts._ids[i]] += counts._counts[i];
+            }
+        }
+        return of( authors, total );
+    }
+
+    /**
+     * @return the counts of all authors with at least one line, <code>total</code> indexed by author id
+     */
+    static AuthorCounts of( final AuthorTable authors, final long[] total ) {
+        int size = 0;
+        for ( final long count : total ) {
+            if ( count > 0 ) {
+                size++;
+            }
+        }
+        final int[] ids = new int[size];
+        final long[] counts = new long[size];
+        int index = 0;
+        for ( int i = 0; i < total.length; i++ ) {
+            if ( total[i] > 0 ) {
+                ids[index] = i;
+                counts[index++] = total[i];
+            }
+        }
+        return new AuthorCounts( authors, ids, counts );
+    }
+
+    int size() {
+        return _ids.length;
+    }
+
+    int id( final int index ) {
+        return _ids[index];
+    }
+
+    String name( final int index ) {
+        return _authors.name( _ids[index] );
+    }
+
+    long count( final int index ) {
+        return _counts[index];
+    }
+
+    long total() {
+        return _total;
+    }
+
+    /**
+     * @return the indexes ordered by descending line count, authors with as many lines by email
+     */
+    int[] byCountDescending() {
+        final Integer[] order = new Integer[_ids.length];
+        for ( int i = 0; i < order.length; i++ ) {
+            order[i] = Integer.valueOf( i );
+        }
+        Arrays.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( final Integer o1, final Integer o2 ) {
+                final int byCount = Long.valueOf( _counts[o2.intValue()] ).compareTo( Long.valueOf( _counts[o1.intValue()] ) );
+                return byCount != 0 ? byCount : name( o1.intValue() ).compareTo( name( o2.intValue() ) );
+            }
+        } );
+
+        final int[] result = new int[order.length];
+        for ( int i = 0; i < order.length; i++ ) {
+            result[i] = order[i].intValue();
+        }
+        return result;
+    }
+
+}
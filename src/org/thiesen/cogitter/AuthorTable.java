@@ -0,0 +1,55 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Interns author emails to dense int ids, shared by all counting threads. Lookups of known
+ * authors are lock free, adding a new author takes a lock.
+ */
+final class AuthorTable {
+
+    private final ConcurrentMap<String, Integer> _ids = Maps.newConcurrentMap();
+    private volatile String[] _names = new String[64];
+    private int _size;
+
+    /**
+     * @param email the email, already normalized to lower case
+     */
+    int intern( final String email ) {
+        final Integer known = _ids.get( email );
+        if ( known != null ) {
+            return known.intValue();
+        }
+        return add( email );
+    }
+
+    private synchronized int add( final String email ) {
+        final Integer known = _ids.get( email );
+        if ( known != null ) {
+            return known.intValue();
+        }
+
+        final int id = _size;
+        String[] names = _names;
+        if ( id == names.length ) {
+            names = Arrays.copyOf( names, names.length * 2 );
+        }
+        names[id] = email;
+        _names = names;
+        _size = id + 1;
+        _ids.put( email, Integer.valueOf( id ) );
+        return id;
+    }
+
+    String name( final int id ) {
+        return _names[id];
+    }
+
+    synchronized int size() {
+        return _size;
+    }
+
+}
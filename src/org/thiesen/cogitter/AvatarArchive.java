@@ -0,0 +1,480 @@
+package org.thiesen.cogitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * <p>
+ * Stores all avatar entries in one append-only file, so a run opens a single file no matter how
+ * many authors it renders. The file starts with a magic number and a version, followed by
+ * records: a marker, the CRC32 of the rest of the record, the time it was written, the 16 bytes of
+ * the key, the variant, the length and the data. Replacing an entry appends a new record, deleting
+ * an avatar appends a record with the variant {@link #DELETED}; the last record wins.
+ * </p>
+ * <p>
+ * Opening the archive walks the record headers, without reading the data, and builds the index
+ * from key and variant to position. Records are only ever appended, so a crash can only leave an
+ * incomplete record at the end: the walk stops at the first record whose header or length does not
+ * fit, or whose checksum is wrong for the last record, and the file is truncated there. The
+ * checksums of all other records are checked when they are first read. Appends are forced to disk
+ * on {@link #close()}.
+ * </p>
+ * <p>
+ * Data is read from memory mappings of the file, up to 1 GB each and split at record boundaries,
+ * and handed out as read-only views without copying. Superseded records stay in the file until it
+ * is rewritten with {@link #compact(File, long)}, which must not run while the archive is in use;
+ * an exclusive lock on the file guards against that and against concurrent runs.
+ * </p>
+ */
+final class AvatarArchive implements AvatarStore {
+
+    private static final int MAGIC = 0x436f4741;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 8;
+    private static final int RECORD_MARKER = 0x52656321;
+    private static final int RECORD_HEADER_BYTES = 4 + 4 + 8 + 16 + 4 + 4;
+    private static final int DELETED = Integer.MIN_VALUE;
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private static final class Record {
+        private final long _offset;
+        private final int _length;
+        private final long _time;
+        private final int _crc;
+        private volatile boolean _verified;
+
+        /**
+         * @param offset the position of the record header
+         */
+        private Record( final long offset, final int length, final long time, final int crc ) {
+            _offset = offset;
+            _length = length;
+            _time = time;
+            _crc = crc;
+        }
+    }
+
+    /**
+     * A mapped part of the file, always whole records.
+     */
+    private static final class Segment {
+        private final long _start;
+        private final long _end;
+        private final MappedByteBuffer _buffer;
+
+        private Segment( final long start, final long end, final MappedByteBuffer buffer ) {
+            _start = start;
+            _end = end;
+            _buffer = buffer;
+        }
+    }
+
+    private final File _file;
+    private final RandomAccessFile _access;
+    private final FileChannel _channel;
+    private final FileLock _lock;
+    private final ConcurrentMap<String, ConcurrentMap<Integer, Record>> _index;
+    private volatile Segment[] _segments;
+    private long _end;
+
+    private AvatarArchive( final File file, final RandomAccessFile access, final FileLock lock, final ConcurrentMap<String, ConcurrentMap<Integer, Record>> index,
+            final Segment[] segments, final long end ) {
+        _file = file;
+        _access = access;
+        _channel = access.getChannel();
+        _lock = lock;
+        _index = index;
+        _segments = segments;
+        _end = end;
+    }
+
+    static AvatarArchive open( final File file ) throws IOException {
+        final RandomAccessFile access = new RandomAccessFile( file, "rw" );
+        try {
+            final FileChannel channel = access.getChannel();
+            final FileLock lock = channel.tryLock();
+            if ( lock == null ) {
+                throw new IOException( file + " is in use by another process" );
+            }
+
+            if ( channel.size() < FILE_HEADER_BYTES ) {
+                final ByteBuffer header = ByteBuffer.allocate( FILE_HEADER_BYTES );
+                header.putInt( MAGIC ).putInt( VERSION ).flip();
+                channel.truncate( 0 );
+                writeFully( channel, header, 0 );
+            }
+            final ByteBuffer header = ByteBuffer.allocate( FILE_HEADER_BYTES );
+            readFully( channel, header, 0 );
+            if ( header.getInt( 0 ) != MAGIC || header.getInt( 4 ) != VERSION ) {
+                throw new IOException( file + " is no avatar archive" );
+            }
+
+            final ConcurrentMap<String, ConcurrentMap<Integer, Record>> index = Maps.newConcurrentMap();
+            final List<Long> boundaries = Lists.newArrayList();
+            final long end = scan( channel, index, boundaries );
+            if ( end < channel.size() ) {
+                System.err.println( "Dropping " + ( channel.size() - end ) + " bytes of incomplete records at the end of " + file );
+                channel.truncate( end );
+            }
+
+            final List<Segment> segments = Lists.newArrayList();
+            long start = FILE_HEADER_BYTES;
+            for ( int i = 0; i < boundaries.size(); i++ ) {
+                final long boundary = boundaries.get( i ).longValue();
+                final boolean last = i == boundaries.size() - 1;
+                if ( last || boundaries.get( i + 1 ).longValue() - start > SEGMENT_BYTES ) {
+                    segments.add( new Segment( start, boundary, channel.map( FileChannel.MapMode.READ_ONLY, start, boundary - start ) ) );
+                    start = boundary;
+                }
+            }
+
+            return new AvatarArchive( file, access, lock, index, segments.toArray( new Segment[segments.size()] ), end );
+        } catch ( final IOException e ) {
+            access.close();
+            throw e;
+        } catch ( final RuntimeException e ) {
+            access.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Walks the record headers and indexes the records.
+     *
+     * @param boundaries receives the end of every valid record
+     * @return the end of the last valid record
+     */
+    private static long scan( final FileChannel channel, final ConcurrentMap<String, ConcurrentMap<Integer, Record>> index, final List<Long> boundaries )
+    throws IOException {
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate( RECORD_HEADER_BYTES );
+        final byte[] keyBytes = new byte[16];
+        long position = FILE_HEADER_BYTES;
+        while ( position + RECORD_HEADER_BYTES <= size ) {
+            header.clear();
+            readFully( channel, header, position );
+            header.flip();
+            if ( header.getInt() != RECORD_MARKER ) {
+                break;
+            }
+            final int crc = header.getInt();
+            final long time = header.getLong();
+            header.get( keyBytes );
+            final int variant = header.getInt();
+            final int length = header.getInt();
+            final long next = position + RECORD_HEADER_BYTES + length;
+            if ( length < 0 || next > size ) {
+                break;
+            }
+            final Record record = new Record( position, length, time, crc );
+            if ( next + RECORD_HEADER_BYTES > size ) {
+                // the last record, which is the one a crash can tear
+                if ( crc( channel, record ) != crc ) {
+                    break;
+                }
+                record._verified = true;
+            }
+
+            apply( index, hex( keyBytes ), variant, record );
+            boundaries.add( Long.valueOf( next ) );
+            position = next;
+        }
+        return position;
+    }
+
+    private static void apply( final ConcurrentMap<String, ConcurrentMap<Integer, Record>> index, final String key, final int variant, final Record record ) {
+        if ( variant == DELETED ) {
+            index.remove( key );
+            return;
+        }
+        ConcurrentMap<Integer, Record> variants = index.get( key );
+        if ( variants == null ) {
+            variants = Maps.newConcurrentMap();
+            final ConcurrentMap<Integer, Record> raced = index.putIfAbsent( key, variants );
+            if ( raced != null ) {
+                variants = raced;
+            }
+        }
+        variants.put( Integer.valueOf( variant ), record );
+    }
+
+    private static int crc( final FileChannel channel, final Record record ) throws IOException {
+        final ByteBuffer bytes = ByteBuffer.allocate( RECORD_HEADER_BYTES - 8 + record._length );
+        readFully( channel, bytes, record._offset + 8 );
+        bytes.flip();
+        return crc( bytes );
+    }
+
+    private static int crc( final ByteBuffer bytes ) {
+        final CRC32 crc = new CRC32();
+        if ( bytes.hasArray() ) {
+            crc.update( bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining() );
+            return (int)crc.getValue();
+        }
+        final byte[] chunk = new byte[8192];
+        final ByteBuffer source = bytes.duplicate();
+        while ( source.hasRemaining() ) {
+            final int length = Math.min( chunk.length, source.remaining() );
+            source.get( chunk, 0, length );
+            crc.update( chunk, 0, length );
+        }
+        return (int)crc.getValue();
+    }
+
+    @Override
+    public ByteBuffer read( final String key, final int variant ) throws IOException {
+        final Record record = record( key, variant );
+        if ( record == null ) {
+            return null;
+        }
+
+        final Segment segment = segment( record._offset );
+        final ByteBuffer view = segment._buffer.duplicate();
+        view.position( (int)( record._offset - segment._start ) + 8 );
+        view.limit( (int)( record._offset - segment._start ) + RECORD_HEADER_BYTES + record._length );
+        if ( !record._verified ) {
+            if ( crc( view ) != record._crc ) {
+                System.err.println( "Ignoring damaged record at " + record._offset + " of " + _file );
+                return null;
+            }
+            record._verified = true;
+        }
+        view.position( view.position() + RECORD_HEADER_BYTES - 8 );
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    private Record record( final String key, final int variant ) {
+        final Map<Integer, Record> variants = _index.get( key );
+        return variants == null ? null : variants.get( Integer.valueOf( variant ) );
+    }
+
+    /**
+     * @return the segment holding the record at <code>offset</code>, mapping what was appended
+     *         since the last mapping if needed
+     */
+    private Segment segment( final long offset ) throws IOException {
+        Segment[] segments = _segments;
+        if ( segments.length == 0 || offset >= segments[segments.length - 1]._end ) {
+            segments = mapAppended();
+        }
+        int low = 0;
+        int high = segments.length - 1;
+        while ( low < high ) {
+            final int middle = ( low + high + 1 ) >>> 1;
+            if ( segments[middle]._start <= offset ) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return segments[low];
+    }
+
+    private synchronized Segment[] mapAppended() throws IOException {
+        final Segment[] segments = _segments;
+        final long start = segments.length == 0 ? FILE_HEADER_BYTES : segments[segments.length - 1]._end;
+        if ( start == _end ) {
+            return segments;
+        }
+        if ( _end - start > Integer.MAX_VALUE ) {
+            throw new IOException( "More than 2 GB appended to " + _file + " in one run" );
+        }
+        final Segment[] mapped = Arrays.copyOf( segments, segments.length + 1 );
+        mapped[segments.length] = new Segment( start, _end, _channel.map( FileChannel.MapMode.READ_ONLY, start, _end - start ) );
+        _segments = mapped;
+        return mapped;
+    }
+
+    @Override
+    public long written( final String key, final int variant ) {
+        final Record record = record( key, variant );
+        return record == null ? 0 : record._time;
+    }
+
+    @Override
+    public void write( final String key, final int variant, final byte[] bytes ) throws IOException {
+        append( key, variant, bytes );
+    }
+
+    @Override
+    public void delete( final String key ) throws IOException {
+        if ( _index.containsKey( key ) ) {
+            append( key, DELETED, new byte[0] );
+        }
+    }
+
+    private void append( final String key, final int variant, final byte[] bytes ) throws IOException {
+        append( key, variant, bytes, System.currentTimeMillis() );
+    }
+
+    private synchronized void append( final String key, final int variant, final byte[] bytes, final long time ) throws IOException {
+        final ByteBuffer record = ByteBuffer.allocate( RECORD_HEADER_BYTES + bytes.length );
+        record.putInt( RECORD_MARKER ).putInt( 0 ).putLong( time ).put( unhex( key ) ).putInt( variant ).putInt( bytes.length ).put( bytes );
+        record.position( 8 );
+        final int crc = crc( record );
+        record.putInt( 4, crc );
+        record.position( 0 );
+
+        writeFully( _channel, record, _end );
+        final Record written = new Record( _end, bytes.length, time, crc );
+        written._verified = true;
+        _end += RECORD_HEADER_BYTES + bytes.length;
+        apply( _index, key, variant, written );
+    }
+
+    /**
+     * Superseded records are only dropped by compaction, which needs the archive closed.
+     */
+    @Override
+    public void evict( final long maxBytes ) throws IOException {
+        final long size;
+        synchronized ( this ) {
+            size = _end;
+        }
+        if ( size > maxBytes ) {
+            System.out.println( "The image archive " + _file + " holds " + ( size >> 20 ) + " MB, more than the " + ( maxBytes >> 20 )
+                    + " MB allowed, compact it with --compact-avatars" );
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            _channel.force( true );
+            _lock.release();
+        } finally {
+            _access.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Rewrites the archive with only the current entries, oldest first, and with
+     * <code>maxBytes</code> above 0 drops the least recently written avatars until it fits.
+     * Damaged records are left out. The new file replaces the old one only once it is complete.
+     * </p>
+     *
+     * @return the size of the compacted archive
+     */
+    static long compact( final File file, final long maxBytes ) throws IOException {
+        final AvatarArchive archive = open( file );
+        final File temp = new File( file.getPath() + ".compact" );
+        try {
+            final List<Object[]> entries = Lists.newArrayList();
+            final Map<String, Long> newest = Maps.newHashMap();
+            long total = FILE_HEADER_BYTES;
+            for ( final Map.Entry<String, ConcurrentMap<Integer, Record>> avatar : archive._index.entrySet() ) {
+                long avatarNewest = 0;
+                for ( final Map.Entry<Integer, Record> variant : avatar.getValue().entrySet() ) {
+                    entries.add( new Object[] { avatar.getKey(), variant.getKey(), variant.getValue() } );
+                    avatarNewest = Math.max( avatarNewest, variant.getValue()._time );
+                    total += RECORD_HEADER_BYTES + variant.getValue()._length;
+                }
+                newest.put( avatar.getKey(), Long.valueOf( avatarNewest ) );
+            }
+
+            if ( maxBytes > 0 && total > maxBytes ) {
+                final String[] keys = newest.keySet().toArray( new String[newest.size()] );
+                Arrays.sort( keys, new Comparator<String>() {
+                    @Override
+                    public int compare( final String o1, final String o2 ) {
+                        return newest.get( o1 ).compareTo( newest.get( o2 ) );
+                    }
+                } );
+                for ( int i = 0; i < keys.length && total > maxBytes; i++ ) {
+                    for ( final Record record : archive._index.get( keys[i] ).values() ) {
+                        total -= RECORD_HEADER_BYTES + record._length;
+                    }
+                    newest.remove( keys[i] );
+                }
+            }
+
+            Collections.sort( entries, new Comparator<Object[]>() {
+                @Override
+                public int compare( final Object[] o1, final Object[] o2 ) {
+                    return Long.valueOf( ( (Record)o1[2] )._offset ).compareTo( Long.valueOf( ( (Record)o2[2] )._offset ) );
+                }
+            } );
+
+            temp.delete();
+            final AvatarArchive compacted = open( temp );
+            try {
+                for ( final Object[] entry : entries ) {
+                    final String key = (String)entry[0];
+                    final int variant = ( (Integer)entry[1] ).intValue();
+                    if ( !newest.containsKey( key ) ) {
+                        continue;
+                    }
+                    final ByteBuffer data = archive.read( key, variant );
+                    if ( data == null ) {
+                        continue;
+                    }
+                    final byte[] bytes = new byte[data.remaining()];
+                    data.get( bytes );
+                    compacted.append( key, variant, bytes, ( (Record)entry[2] )._time );
+                }
+            } finally {
+                compacted.close();
+            }
+        } catch ( final IOException e ) {
+            archive.close();
+            temp.delete();
+            throw e;
+        }
+
+        archive.close();
+        if ( !temp.renameTo( file ) ) {
+            file.delete();
+            if ( !temp.renameTo( file ) ) {
+                throw new IOException( "Could not replace " + file );
+            }
+        }
+        return file.length();
+    }
+
+    private static void readFully( final FileChannel channel, final ByteBuffer buffer, final long position ) throws IOException {
+        long at = position;
+        while ( buffer.hasRemaining() ) {
+            final int read = channel.read( buffer, at );
+            if ( read < 0 ) {
+                throw new IOException( "Unexpected end of file" );
+            }
+            at += read;
+        }
+    }
+
+    private static void writeFully( final FileChannel channel, final ByteBuffer buffer, final long position ) throws IOException {
+        long at = position;
+        while ( buffer.hasRemaining() ) {
+            at += channel.write( buffer, at );
+        }
+    }
+
+    private static String hex( final byte[] bytes ) {
+        return Main.MD5Util.hex( bytes );
+    }
+
+    private static byte[] unhex( final String hex ) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for ( int i = 0; i < bytes.length; i++ ) {
+            bytes[i] = (byte)Integer.parseInt( hex.substring( 2 * i, 2 * i + 2 ), 16 );
+        }
+        return bytes;
+    }
+
+}
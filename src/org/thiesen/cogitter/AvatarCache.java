@@ -0,0 +1,281 @@
+package org.thiesen.cogitter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import com.google.common.io.Files;
+
+/**
+ * <p>
+ * The avatars on disk and in memory. An avatar is stored in the {@link AvatarStore} under the md5
+ * of its email: the downloaded image, its <code>ETag</code> and <code>Last-Modified</code>, and
+ * every size it was scaled to as lossless PNG, so that a repeated render neither decodes the full
+ * image nor scales it again. Scaled copies are kept per filter, so that choosing another filter
+ * takes effect on the next run. Avatars in the old layout, one file per email directly in the cache
+ * directory, are moved into the store on first use.
+ * </p>
+ * <p>
+ * The time the validators were written is the time the avatar was last checked with the server.
+ * Next to them the size the original was requested in is kept, originals without it are from
+ * before sizes were chosen per tile and have {@link AvatarClient#MAX_SIZE}.
+ * </p>
+ * <p>
+ * Decoded images are additionally kept in a memory tier of <code>memoryBytes</code>, which pays
+ * off in long running processes and batch runs rendering the same authors several times. Images
+ * handed out are copies and may be drawn on.
+ * </p>
+ */
+final class AvatarCache {
+
+    private final File _root;
+    private final AvatarStore _store;
+    private final long _maxBytes;
+    private final LruCache<String, BufferedImage> _memory;
+
+    /**
+     * @param root the directory of the old layout
+     * @param maxBytes the size the store is trimmed to by {@link #evict()}, or 0 for no limit
+     */
+    AvatarCache( final File root, final AvatarStore store, final long maxBytes, final long memoryBytes ) {
+        _root = root;
+        _store = store;
+        _maxBytes = maxBytes;
+        _memory = new LruCache<String, BufferedImage>( memoryBytes );
+    }
+
+    private static String key( final String email ) {
+        return Main.MD5Util.md5Hex( email );
+    }
+
+    boolean hasOriginal( final String email ) throws IOException {
+        return _store.written( key( email ), AvatarStore.ORIGINAL ) > 0 || migrate( email );
+    }
+
+    /**
+     * @return the downloaded image, or <code>null</code> if it is not cached
+     */
+    ByteBuffer readOriginal( final String email ) throws IOException {
+        final ByteBuffer original = _store.read( key( email ), AvatarStore.ORIGINAL );
+        if ( original != null || !migrate( email ) ) {
+            return original;
+        }
+        return _store.read( key( email ), AvatarStore.ORIGINAL );
+    }
+
+    /**
+     * Moves an avatar of the old flat layout into the store.
+     */
+    private boolean migrate( final String email ) throws IOException {
+        final File legacy = new File( _root, email );
+        if ( !legacy.isFile() ) {
+            return false;
+        }
+        final File legacyValidators = new File( _root, email + ".validators" );
+        if ( legacyValidators.isFile() ) {
+            _store.write( key( email ), AvatarStore.VALIDATORS, Files.toByteArray( legacyValidators ) );
+            legacyValidators.delete();
+        }
+        _store.write( key( email ), AvatarStore.ORIGINAL, Files.toByteArray( legacy ) );
+        legacy.delete();
+        return true;
+    }
+
+    /**
+     * Stores a fresh download and drops the variants scaled from the previous one.
+     *
+     * @param size the size the original was requested in
+     */
+    void storeOriginal( final String email, final byte[] bytes, final int size, final String etag, final String lastModified ) throws IOException {
+        invalidate( email );
+        _store.write( key( email ), AvatarStore.ORIGINAL, bytes );
+        writeValidators( email, etag, lastModified, size );
+    }
+
+    private void writeValidators( final String email, final String etag, final String lastModified, final int size ) throws IOException {
+        final String validators = ( etag == null ? "" : etag ) + "\n" + ( lastModified == null ? "" : lastModified ) + "\n" + size + "\n";
+        _store.write( key( email ), AvatarStore.VALIDATORS, validators.getBytes( GitPaths.UTF8 ) );
+    }
+
+    /**
+     * @return the <code>ETag</code>, the <code>Last-Modified</code> and the size the original was
+     *         requested in, any of them can be <code>null</code>
+     */
+    String[] readValidators( final String email ) throws IOException {
+        final ByteBuffer validators = _store.read( key( email ), AvatarStore.VALIDATORS );
+        final String[] result = new String[3];
+        if ( validators == null ) {
+            return result;
+        }
+        final byte[] bytes = new byte[validators.remaining()];
+        validators.get( bytes );
+        final String[] lines = new String( bytes, GitPaths.UTF8 ).split( "\n" );
+        for ( int i = 0; i < result.length && i < lines.length; i++ ) {
+            result[i] = lines[i].isEmpty() ? null : lines[i];
+        }
+        return result;
+    }
+
+    /**
+     * @return when the avatar was last downloaded or confirmed by the server, 0 if never
+     */
+    long validatedAt( final String email ) {
+        return _store.written( key( email ), AvatarStore.VALIDATORS );
+    }
+
+    void markValidated( final String email ) throws IOException {
+        final String[] validators = readValidators( email );
+        writeValidators( email, validators[0], validators[1], originalSize( validators ) );
+    }
+
+    /**
+     * @param validators as returned by {@link #readValidators(String)}
+     * @return the size the cached original was requested in
+     */
+    static int originalSize( final String[] validators ) {
+        return validators[2] == null ? AvatarClient.MAX_SIZE : Integer.parseInt( validators[2] );
+    }
+
+    /**
+     * @return the encoded avatar scaled to <code>size</code> with <code>filter</code>, or
+     *         <code>null</code> if it is not cached
+     */
+    ByteBuffer readVariant( final String email, final int size, final AvatarScaler.Filter filter ) throws IOException {
+        return _store.read( key( email ), variant( size, filter ) );
+    }
+
+    void storeVariant( final String email, final int size, final AvatarScaler.Filter filter, final BufferedImage image ) throws IOException {
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        if ( !ImageIO.write( image, "png", png ) ) {
+            throw new IOException( "no PNG writer" );
+        }
+        _store.write( key( email ), variant( size, filter ), png.toByteArray() );
+    }
+
+    /**
+     * @return the store variant of a scaled copy: the size for {@link AvatarScaler.Filter#BOX},
+     *         the default that copies stored before filters could be chosen are taken for, and the
+     *         size above one bit per filter otherwise. Tiles stay far below 2^24 pixels.
+     */
+    private static int variant( final int size, final AvatarScaler.Filter filter ) {
+        return filter == AvatarScaler.Filter.BOX ? size : ( filter.ordinal() + 1 ) << 24 | size;
+    }
+
+    /**
+     * Deletes everything stored of an avatar. The memory tier is dropped as a whole, which is
+     * cheap enough as avatars rarely change.
+     */
+    void invalidate( final String email ) throws IOException {
+        _store.delete( key( email ) );
+        _memory.clear();
+    }
+
+    /**
+     * @param size the size of the image, 0 for the decoded original
+     * @param filter the filter it was scaled with, ignored for the original
+     * @return a copy of the decoded image, or <code>null</code>
+     */
+    BufferedImage getDecoded( final String email, final int size, final AvatarScaler.Filter filter ) {
+        final BufferedImage image = _memory.get( memoryKey( email, size, filter ) );
+        return image == null ? null : copy( image );
+    }
+
+    void putDecoded( final String email, final int size, final AvatarScaler.Filter filter, final BufferedImage image ) {
+        _memory.put( memoryKey( email, size, filter ), copy( image ), image.getWidth() * (long)image.getHeight() * 4 + 64 );
+    }
+
+    private static String memoryKey( final String email, final int size, final AvatarScaler.Filter filter ) {
+        return key( email ) + "-" + ( size == AvatarStore.ORIGINAL ? AvatarStore.ORIGINAL : variant( size, filter ) );
+    }
+
+    /**
+     * @return a copy of the same type and pixels
+     */
+    static BufferedImage copy( final BufferedImage image ) {
+        final WritableRaster raster = image.copyData( image.getRaster().createCompatibleWritableRaster() );
+        return new BufferedImage( image.getColorModel(), raster, image.isAlphaPremultiplied(), null );
+    }
+
+    /**
+     * Decodes an image straight from the buffer, which may be a view of a mapped file.
+     */
+    static BufferedImage decode( final ByteBuffer bytes ) throws IOException {
+        return decode( bytes, 0 );
+    }
+
+    /**
+     * Decodes an image straight from the buffer, which may be a view of a mapped file, reading
+     * only every n-th pixel of every n-th row so that the result is as small as possible but still
+     * at least <code>size</code> wide and high. The reader drops the other pixels while decoding,
+     * so a small tile never holds the raster of a large original.
+     *
+     * @param size the size the image is going to be scaled to, or 0 to decode it completely
+     */
+    static BufferedImage decode( final ByteBuffer bytes, final int size ) throws IOException {
+        final ImageInputStream stream = new MemoryCacheImageInputStream( inputStream( bytes.duplicate() ) );
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders( stream );
+            if ( !readers.hasNext() ) {
+                throw new IOException( "unknown image format" );
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput( stream, true, true );
+                final ImageReadParam param = reader.getDefaultReadParam();
+                final int step = size > 0 ? Math.min( reader.getWidth( 0 ), reader.getHeight( 0 ) ) / size : 1;
+                if ( step > 1 ) {
+                    param.setSourceSubsampling( step, step, 0, 0 );
+                }
+                return reader.read( 0, param );
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static InputStream inputStream( final ByteBuffer source ) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read( final byte[] b, final int off, final int len ) {
+                if ( !source.hasRemaining() ) {
+                    return -1;
+                }
+                final int length = Math.min( len, source.remaining() );
+                source.get( b, off, length );
+                return length;
+            }
+        };
+    }
+
+    /**
+     * Trims the store to its limit.
+     */
+    void evict() throws IOException {
+        if ( _maxBytes > 0 ) {
+            _store.evict( _maxBytes );
+        }
+    }
+
+    void close() throws IOException {
+        _store.close();
+    }
+
+}
@@ -0,0 +1,207 @@
+package org.thiesen.cogitter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Random;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * <p>
+ * Downloads avatars from a gravatar compatible endpoint: <code>baseUrl</code> followed by the md5
+ * of the email. Connections are kept alive and reused through the pool of
+ * {@link HttpURLConnection}, which is why every response is read to the end, errors included.
+ * </p>
+ * <p>
+ * Connecting and reading time out, and failed requests, server errors and <code>429</code> are
+ * retried with exponential backoff and jitter. Other client errors are not retried. A request
+ * can carry the <code>ETag</code> and <code>Last-Modified</code> of a cached copy, so that an
+ * unchanged avatar costs a <code>304</code> instead of the whole image.
+ * </p>
+ * <p>
+ * Avatars are requested in the size of the tile rounded up to a power of two, see
+ * {@link #sourceSize(int)}, so that a minor contributor does not cost a 512 pixel download and
+ * decode, while a handful of sizes keeps the cache reusable across renders.
+ * </p>
+ */
+final class AvatarClient {
+
+    static final String DEFAULT_URL = "http://www.gravatar.com/avatar/";
+
+    /**
+     * The size every avatar was downloaded in before sizes were chosen per tile.
+     */
+    static final int MAX_SIZE = 512;
+
+    private static final int MIN_SIZE = 32;
+
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    /**
+     * A status that asking again will not change.
+     */
+    private static final class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private RejectedException( final String message ) {
+            super( message );
+        }
+    }
+
+    static final class Response {
+        private final byte[] _body;
+        private final String _etag;
+        private final String _lastModified;
+
+        private Response( final byte[] body, final String etag, final String lastModified ) {
+            _body = body;
+            _etag = etag;
+            _lastModified = lastModified;
+        }
+
+        /**
+         * @return the image, or <code>null</code> if the cached copy is still current
+         */
+        byte[] getBody() {
+            return _body;
+        }
+
+        boolean isNotModified() {
+            return _body == null;
+        }
+
+        String getEtag() {
+            return _etag;
+        }
+
+        String getLastModified() {
+            return _lastModified;
+        }
+    }
+
+    private final String _baseUrl;
+    private final int _connectTimeoutMillis;
+    private final int _readTimeoutMillis;
+    private final int _retries;
+    private final Random _jitter = new Random();
+
+    /**
+     * @param poolSize the number of idle connections to keep per host, applied only if
+     *            <code>http.maxConnections</code> is neither set nor in use yet
+     */
+    AvatarClient( final String baseUrl, final int connectTimeoutMillis, final int readTimeoutMillis, final int retries, final int poolSize ) {
+        _baseUrl = baseUrl;
+        _connectTimeoutMillis = connectTimeoutMillis;
+        _readTimeoutMillis = readTimeoutMillis;
+        _retries = retries;
+        if ( System.getProperty( "http.maxConnections" ) == null ) {
+            System.setProperty( "http.maxConnections", String.valueOf( poolSize ) );
+        }
+    }
+
+    /**
+     * @return the size to download for a tile of <code>tileSize</code>, the smallest power of two
+     *         not below it, but at least {@value #MIN_SIZE} and at most {@value #MAX_SIZE}
+     */
+    static int sourceSize( final int tileSize ) {
+        int size = MIN_SIZE;
+        while ( size < tileSize && size < MAX_SIZE ) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * @param size the width and height to request, one of {@link #sourceSize(int)}
+     * @param etag the <code>ETag</code> of the cached copy, or <code>null</code>
+     * @param lastModified the <code>Last-Modified</code> of the cached copy, or <code>null</code>
+     */
+    Response fetch( final String email, final int size, final String etag, final String lastModified ) throws IOException {
+        final URL url = new URL( _baseUrl + Main.MD5Util.md5Hex( email ) + "?s=" + size + "&d=identicon&r=x" );
+        for ( int attempt = 0;; attempt++ ) {
+            try {
+                final Response response = request( url, etag, lastModified );
+                if ( response != null ) {
+                    return response;
+                }
+                if ( attempt >= _retries ) {
+                    throw new IOException( url + " still fails after " + ( attempt + 1 ) + " attempts" );
+                }
+            } catch ( final IOException e ) {
+                if ( attempt >= _retries || e instanceof RejectedException
+                        || e instanceof InterruptedIOException && !( e instanceof SocketTimeoutException ) ) {
+                    throw e;
+                }
+            }
+            backoff( attempt );
+        }
+    }
+
+    /**
+     * @return the response, or <code>null</code> for a status worth retrying
+     */
+    private Response request( final URL url, final String etag, final String lastModified ) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setConnectTimeout( _connectTimeoutMillis );
+        connection.setReadTimeout( _readTimeoutMillis );
+        connection.setUseCaches( false );
+        if ( etag != null ) {
+            connection.setRequestProperty( "If-None-Match", etag );
+        }
+        if ( lastModified != null ) {
+            connection.setRequestProperty( "If-Modified-Since", lastModified );
+        }
+
+        final int status = connection.getResponseCode();
+        if ( status == HttpURLConnection.HTTP_OK ) {
+            final InputStream in = connection.getInputStream();
+            try {
+                return new Response( ByteStreams.toByteArray( in ), connection.getHeaderField( "ETag" ), connection.getHeaderField( "Last-Modified" ) );
+            } finally {
+                in.close();
+            }
+        }
+
+        drain( status >= 400 ? connection.getErrorStream() : connection.getInputStream() );
+        if ( status == HttpURLConnection.HTTP_NOT_MODIFIED ) {
+            return new Response( null, etag, lastModified );
+        }
+        if ( status >= 500 || status == 429 ) {
+            return null;
+        }
+        throw new RejectedException( url + " answered " + status );
+    }
+
+    /**
+     * Reads a response body to the end so that the connection can go back to the pool.
+     */
+    private static void drain( final InputStream in ) throws IOException {
+        if ( in == null ) {
+            return;
+        }
+        try {
+            ByteStreams.toByteArray( in );
+        } finally {
+            in.close();
+        }
+    }
+
+    private void backoff( final int attempt ) throws InterruptedIOException {
+        final long base = Math.min( MAX_BACKOFF_MILLIS, 250L << Math.min( attempt, 8 ) );
+        final long millis;
+        synchronized ( _jitter ) {
+            millis = base / 2 + (long)( _jitter.nextDouble() * base / 2 );
+        }
+        try {
+            Thread.sleep( millis );
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted while waiting to retry" );
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package org.thiesen.cogitter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs {@link AvatarClient} against a stub server on a local port and checks its answers: a
+ * <code>200</code> with <code>ETag</code> and the <code>304</code> for the follow-up request
+ * carrying it, server errors and <code>429</code> retried until the avatar comes, a read timeout
+ * retried, and a <code>404</code> given up on after the first attempt. Prints one line per case
+ * and exits with 1 if any of them fails.
+ */
+public class AvatarClientCheck {
+
+    private static final byte[] AVATAR = { 1, 2, 3, 4, 5 };
+    private static final String ETAG = "\"v1\"";
+    private static final int READ_TIMEOUT_MILLIS = 500;
+
+    /**
+     * Answers by the email the md5 in the path stands for, and counts the requests per email.
+     */
+    private static final class Stub implements HttpHandler {
+        private final Map<String, String> _emails = Maps.newHashMap();
+        private final ConcurrentMap<String, AtomicInteger> _requests = Maps.newConcurrentMap();
+
+        private Stub( final String... emails ) {
+            for ( final String email : emails ) {
+                _emails.put( Main.MD5Util.md5Hex( email ), email );
+                _requests.put( email, new AtomicInteger() );
+            }
+        }
+
+        int requests( final String email ) {
+            return _requests.get( email ).get();
+        }
+
+        @Override
+        public void handle( final HttpExchange exchange ) throws IOException {
+            final String path = exchange.getRequestURI().getPath();
+            final String email = _emails.get( path.substring( path.lastIndexOf( '/' ) + 1 ) );
+            final int attempt = email == null ? 0 : _requests.get( email ).incrementAndGet();
+            try {
+                if ( "etag@x".equals( email ) ) {
+                    if ( ETAG.equals( exchange.getRequestHeaders().getFirst( "If-None-Match" ) ) ) {
+                        respond( exchange, 304, null );
+                    } else {
+                        exchange.getResponseHeaders().set( "ETag", ETAG );
+                        respond( exchange, 200, AVATAR );
+                    }
+                } else if ( "flaky@x".equals( email ) ) {
+                    respond( exchange, attempt == 1 ? 503 : attempt == 2 ? 429 : 200, AVATAR );
+                } else if ( "slow@x".equals( email ) ) {
+                    if ( attempt == 1 ) {
+                        Thread.sleep( READ_TIMEOUT_MILLIS * 3 );
+                    }
+                    respond( exchange, 200, AVATAR );
+                } else {
+                    respond( exchange, 404, new byte[] { 'n', 'o' } );
+                }
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private static void respond( final HttpExchange exchange, final int status, final byte[] body ) throws IOException {
+            exchange.sendResponseHeaders( status, body == null ? -1 : body.length );
+            if ( body != null ) {
+                final OutputStream out = exchange.getResponseBody();
+                out.write( body );
+                out.close();
+            }
+        }
+    }
+
+    private static int _failures;
+
+    public static void main( final String[] args ) throws IOException {
+        final Stub stub = new Stub( "etag@x", "flaky@x", "slow@x", "missing@x" );
+        final HttpServer server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+        server.createContext( "/avatar/", stub );
+        // the timed out request is still sleeping while its retry comes in
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        server.setExecutor( executor );
+        server.start();
+        try {
+            final AvatarClient client = new AvatarClient( "http://127.0.0.1:" + server.getAddress().getPort() + "/avatar/", 1000,
+                    READ_TIMEOUT_MILLIS, 3, 4 );
+
+            final AvatarClient.Response fresh = client.fetch( "etag@x", 64, null, null );
+            check( "200 with ETag", Arrays.equals( AVATAR, fresh.getBody() ) && ETAG.equals( fresh.getEtag() ) );
+            final AvatarClient.Response unchanged = client.fetch( "etag@x", 64, fresh.getEtag(), fresh.getLastModified() );
+            check( "304 on the follow-up", unchanged.isNotModified() && ETAG.equals( unchanged.getEtag() ) && stub.requests( "etag@x" ) == 2 );
+
+            final AvatarClient.Response flaky = client.fetch( "flaky@x", 64, null, null );
+            check( "503 and 429 retried", Arrays.equals( AVATAR, flaky.getBody() ) && stub.requests( "flaky@x" ) == 3 );
+
+            final AvatarClient.Response slow = client.fetch( "slow@x", 64, null, null );
+            check( "read timeout retried", Arrays.equals( AVATAR, slow.getBody() ) && stub.requests( "slow@x" ) == 2 );
+
+            boolean failed = false;
+            try {
+                client.fetch( "missing@x", 64, null, null );
+            } catch ( final IOException e ) {
+                failed = true;
+            }
+            check( "404 not retried", failed && stub.requests( "missing@x" ) == 1 );
+        } finally {
+            server.stop( 0 );
+            executor.shutdownNow();
+        }
+        if ( _failures > 0 ) {
+            System.exit( 1 );
+        }
+    }
+
+    private static void check( final String name, final boolean passed ) {
+        System.out.println( ( passed ? "ok\t" : "FAILED\t" ) + name );
+        if ( !passed ) {
+            _failures++;
+        }
+    }
+
+}
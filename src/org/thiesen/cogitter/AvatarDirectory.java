@@ -0,0 +1,147 @@
+package org.thiesen.cogitter;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * <p>
+ * Stores every avatar entry as its own file in one of 256 shard directories named after the
+ * first two hex digits of the key: <code>key.orig</code>, <code>key.validators</code> and
+ * <code>key-size.png</code>. Files are replaced by renaming a complete temporary file over them.
+ * </p>
+ * <p>
+ * Reading an image touches it, so its time stamp is the time it was last used and
+ * {@link #evict(long)} deletes the least recently used files first. A validators file goes
+ * together with its original.
+ * </p>
+ */
+final class AvatarDirectory implements AvatarStore {
+
+    private static final String ORIGINAL_SUFFIX = ".orig";
+    private static final String VALIDATORS_SUFFIX = ".validators";
+
+    private final File _root;
+
+    AvatarDirectory( final File root ) {
+        _root = root;
+    }
+
+    private File file( final String key, final int variant ) {
+        final String suffix = variant == ORIGINAL ? ORIGINAL_SUFFIX : variant == VALIDATORS ? VALIDATORS_SUFFIX : "-" + variant + ".png";
+        return new File( new File( _root, key.substring( 0, 2 ) ), key + suffix );
+    }
+
+    @Override
+    public ByteBuffer read( final String key, final int variant ) throws IOException {
+        final File file = file( key, variant );
+        if ( !file.exists() ) {
+            return null;
+        }
+        if ( variant != VALIDATORS ) {
+            file.setLastModified( System.currentTimeMillis() );
+        }
+        return ByteBuffer.wrap( Files.toByteArray( file ) );
+    }
+
+    @Override
+    public long written( final String key, final int variant ) {
+        return file( key, variant ).lastModified();
+    }
+
+    @Override
+    public void write( final String key, final int variant, final byte[] bytes ) throws IOException {
+        final File file = file( key, variant );
+        file.getParentFile().mkdirs();
+        final File temp = new File( file.getPath() + ".tmp" );
+        Files.write( bytes, temp );
+        if ( !temp.renameTo( file ) ) {
+            temp.delete();
+            throw new IOException( "Could not write " + file );
+        }
+    }
+
+    @Override
+    public void delete( final String key ) {
+        final File[] files = new File( _root, key.substring( 0, 2 ) ).listFiles();
+        if ( files != null ) {
+            for ( final File file : files ) {
+                if ( file.getName().startsWith( key ) ) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void evict( final long maxBytes ) {
+        final File[] shards = _root.listFiles( new FileFilter() {
+            @Override
+            public boolean accept( final File file ) {
+                return file.isDirectory() && file.getName().length() == 2;
+            }
+        } );
+        if ( shards == null ) {
+            return;
+        }
+
+        final List<File> files = Lists.newArrayList();
+        long total = 0;
+        for ( final File shard : shards ) {
+            final File[] shardFiles = shard.listFiles();
+            if ( shardFiles == null ) {
+                continue;
+            }
+            for ( final File file : shardFiles ) {
+                total += file.length();
+                if ( !file.getName().endsWith( VALIDATORS_SUFFIX ) ) {
+                    files.add( file );
+                }
+            }
+        }
+        if ( total <= maxBytes ) {
+            return;
+        }
+
+        final File[] byAge = files.toArray( new File[files.size()] );
+        final long[] used = new long[byAge.length];
+        final Integer[] order = new Integer[byAge.length];
+        for ( int i = 0; i < byAge.length; i++ ) {
+            used[i] = byAge[i].lastModified();
+            order[i] = Integer.valueOf( i );
+        }
+        Arrays.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( final Integer o1, final Integer o2 ) {
+                return Long.valueOf( used[o1.intValue()] ).compareTo( Long.valueOf( used[o2.intValue()] ) );
+            }
+        } );
+
+        int evicted = 0;
+        for ( int i = 0; i < order.length && total > maxBytes; i++ ) {
+            final File file = byAge[order[i].intValue()];
+            total -= file.length();
+            file.delete();
+            if ( file.getName().endsWith( ORIGINAL_SUFFIX ) ) {
+                final File validators = new File( file.getParentFile(), file.getName().replace( ORIGINAL_SUFFIX, VALIDATORS_SUFFIX ) );
+                total -= validators.length();
+                validators.delete();
+            }
+            evicted++;
+        }
+        System.out.println( "Evicted " + evicted + " files from the image cache" );
+    }
+
+    @Override
+    public void close() {
+        // every write is complete on its own
+    }
+
+}
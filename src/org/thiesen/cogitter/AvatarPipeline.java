@@ -0,0 +1,447 @@
+package org.thiesen.cogitter;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * <p>
+ * Turns author emails into labeled, scaled avatar tiles in two stages: fetching the image bytes
+ * from the {@link AvatarCache} or the {@link AvatarClient} on threads sized for I/O, then decoding,
+ * scaling and labeling on threads sized for the CPUs.
+ * </p>
+ * <p>
+ * The cheapest cached form of an avatar wins: a decoded tile of the right size in memory, then a
+ * pre-scaled variant on disk, then the decoded original in memory, then the original on disk. Only
+ * an avatar in none of them is downloaded.
+ * </p>
+ * <p>
+ * Originals are downloaded in the size {@link AvatarClient#sourceSize(int)} picks for the tile and
+ * decoded subsampled to just above the tile size, so small tiles neither download nor decode a
+ * large image. A cached original smaller than a tile needs is downloaded again in the larger size.
+ * </p>
+ * <p>
+ * The {@link Mode} decides what happens to avatars that would have to be downloaded: wait for them,
+ * draw an {@link Identicon} instead, or draw one and download the avatar in the background for the
+ * next render. An avatar that cannot be downloaded is drawn as an identicon in any mode.
+ * </p>
+ * <p>
+ * Tiles are handed to the consumer in request order as soon as they and all tiles before them are
+ * done, so the packing stays deterministic while later avatars are still loading. At most
+ * <code>window</code> requests are in flight, which bounds the memory of finished tiles waiting for
+ * a slow one before them.
+ * </p>
+ */
+final class AvatarPipeline {
+
+    static final class Request {
+        private final String _email;
+        private final int _size;
+        private final String _label;
+
+        /**
+         * @param size the width and height of the tile
+         */
+        Request( final String email, final int size, final String label ) {
+            _email = email;
+            _size = size;
+            _label = label;
+        }
+
+        String getEmail() {
+            return _email;
+        }
+
+        int getSize() {
+            return _size;
+        }
+
+        /**
+         * @return the same request for a tile of another size
+         */
+        Request resized( final int size ) {
+            return new Request( _email, size, _label );
+        }
+    }
+
+    enum Mode {
+        /**
+         * Downloads missing avatars and revalidates old ones before drawing them.
+         */
+        FETCH,
+        /**
+         * Uses only what is cached and never connects to the server.
+         */
+        OFFLINE,
+        /**
+         * Draws from the cache right away and fetches what is missing or old in the background.
+         */
+        PLACEHOLDER;
+
+        static Mode parse( final String name ) {
+            return valueOf( name.toUpperCase( Locale.ROOT ) );
+        }
+    }
+
+    interface Consumer {
+        void tile( Request request, BufferedImage tile ) throws IOException;
+    }
+
+    /**
+     * An avatar as the fetch stage found it: decoded from memory, or bytes of a scaled variant, of
+     * the cached original or of a download.
+     */
+    private static final class Fetched {
+        private final BufferedImage _image;
+        private final ByteBuffer _bytes;
+        private final boolean _scaled;
+        private final AvatarClient.Response _response;
+        private final int _sourceSize;
+
+        /**
+         * @param scaled whether the image or bytes already have the size of the tile
+         * @param response the download the bytes are from, or <code>null</code> if they are cached
+         * @param sourceSize the size the download was requested in
+         */
+        private Fetched( final BufferedImage image, final ByteBuffer bytes, final boolean scaled, final AvatarClient.Response response, final int sourceSize ) {
+            _image = image;
+            _bytes = bytes;
+            _scaled = scaled;
+            _response = response;
+            _sourceSize = sourceSize;
+        }
+
+        private Fetched( final BufferedImage image, final ByteBuffer bytes, final boolean scaled ) {
+            this( image, bytes, scaled, null, 0 );
+        }
+    }
+
+    private final AvatarCache _cache;
+    private final AvatarClient _client;
+    private final long _maxAgeMillis;
+    private final int _fetchThreads;
+    private final int _scaleThreads;
+    private final AvatarScaler _scaler;
+    private final Mode _mode;
+    private final ExecutorService _background;
+    private final Set<String> _queued = Sets.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    private final AtomicInteger _refreshed = new AtomicInteger();
+
+    /**
+     * @param maxAgeMillis the age after which a cached avatar is revalidated with a conditional
+     *            request, or 0 to use cached avatars as they are
+     */
+    AvatarPipeline( final AvatarCache cache, final AvatarClient client, final long maxAgeMillis, final int fetchThreads, final int scaleThreads,
+            final AvatarScaler scaler, final Mode mode ) {
+        _cache = cache;
+        _client = client;
+        _maxAgeMillis = maxAgeMillis;
+        _fetchThreads = fetchThreads;
+        _scaleThreads = scaleThreads;
+        _scaler = scaler;
+        _mode = mode;
+        _background = mode == Mode.PLACEHOLDER ? Executors.newFixedThreadPool( fetchThreads ) : null;
+    }
+
+    /**
+     * Loads the tiles of all requests and hands each one to <code>consumer</code>, in order. A
+     * request whose avatar cannot be loaded at all is reported and skipped.
+     */
+    void run( final List<Request> requests, final Consumer consumer ) throws IOException, InterruptedException {
+        final ExecutorService fetchers = Executors.newFixedThreadPool( _fetchThreads );
+        final ExecutorService scalers = Executors.newFixedThreadPool( _scaleThreads );
+        final int window = _fetchThreads + 2 * _scaleThreads;
+        try {
+            final List<SettableFuture<BufferedImage>> tiles = Lists.newArrayListWithCapacity( requests.size() );
+            int next = 0;
+            for ( final Request request : requests ) {
+                if ( tiles.size() - next >= window ) {
+                    deliver( requests.get( next ), tiles.get( next ), consumer );
+                    tiles.set( next++, null );
+                }
+                tiles.add( submit( request, fetchers, scalers ) );
+            }
+            while ( next < tiles.size() ) {
+                deliver( requests.get( next ), tiles.get( next ), consumer );
+                tiles.set( next++, null );
+            }
+        } finally {
+            fetchers.shutdownNow();
+            scalers.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the avatars fetched in the background, so that they are in the cache before it is
+     * closed.
+     */
+    void finish() throws InterruptedException {
+        if ( _background == null ) {
+            return;
+        }
+        _background.shutdown();
+        while ( !_background.awaitTermination( 1, TimeUnit.SECONDS ) ) {
+            // wait
+        }
+        if ( _refreshed.get() > 0 ) {
+            System.out.println( "Fetched " + _refreshed.get() + " avatars in the background for the next render" );
+        }
+    }
+
+    private static void deliver( final Request request, final SettableFuture<BufferedImage> tile, final Consumer consumer )
+    throws IOException, InterruptedException {
+        final BufferedImage image;
+        try {
+            image = tile.get();
+        } catch ( final ExecutionException e ) {
+            System.err.println("Could not load image for " + request._email + ": " + e.getCause() );
+            return;
+        }
+        if ( image != null ) {
+            consumer.tile( request, image );
+        }
+    }
+
+    private SettableFuture<BufferedImage> submit( final Request request, final ExecutorService fetchers, final ExecutorService scalers ) {
+        final SettableFuture<BufferedImage> tile = SettableFuture.create();
+        fetchers.execute( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Fetched fetched = fetch( request );
+                    scalers.execute( new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                tile.set( label( request, scaled( request, fetched ) ) );
+                            } catch ( final Throwable e ) {
+                                tile.setException( e );
+                            }
+                        }
+                    } );
+                } catch ( final Throwable e ) {
+                    tile.setException( e );
+                }
+            }
+        } );
+        return tile;
+    }
+
+    /**
+     * Looks the avatar up in the cache, after asking the server whether it changed if the cached
+     * one is older than the maximum age. If the server cannot be reached the cached avatar is used
+     * anyway.
+     */
+    private Fetched fetch( final Request request ) throws IOException {
+        final String email = request._email;
+        final BufferedImage remembered = _cache.getDecoded( email, request._size, _scaler.getFilter() );
+        if ( remembered != null ) {
+            return new Fetched( remembered, null, true );
+        }
+
+        final int size = AvatarClient.sourceSize( request._size );
+        if ( _maxAgeMillis > 0 && _mode != Mode.OFFLINE && _cache.hasOriginal( email ) && System.currentTimeMillis() - _cache.validatedAt( email ) > _maxAgeMillis ) {
+            if ( _mode == Mode.PLACEHOLDER ) {
+                refreshLater( email, size );
+            } else {
+                final Fetched revalidated = revalidate( email );
+                if ( revalidated != null ) {
+                    return revalidated;
+                }
+            }
+        }
+
+        final ByteBuffer variant = _cache.readVariant( email, request._size, _scaler.getFilter() );
+        if ( variant != null ) {
+            return new Fetched( null, variant, true );
+        }
+        final BufferedImage original = _cache.getDecoded( email, 0, _scaler.getFilter() );
+        if ( original != null && original.getWidth() >= request._size ) {
+            return new Fetched( original, null, false );
+        }
+        final ByteBuffer bytes = _cache.readOriginal( email );
+        if ( bytes != null && AvatarCache.originalSize( _cache.readValidators( email ) ) >= size ) {
+            return new Fetched( null, bytes, false );
+        }
+        if ( _mode != Mode.FETCH ) {
+            if ( _mode == Mode.PLACEHOLDER ) {
+                refreshLater( email, size );
+            }
+            return bytes != null ? new Fetched( null, bytes, false ) : placeholder( request );
+        }
+        try {
+            return download( email, size );
+        } catch ( final IOException e ) {
+            System.err.println("Could not download image for " + email + ", drawing an identicon: " + e.getMessage() );
+            return placeholder( request );
+        }
+    }
+
+    private static Fetched placeholder( final Request request ) {
+        return new Fetched( Identicon.render( request._email, request._size ), null, true );
+    }
+
+    /**
+     * Asks the server whether the cached avatar changed.
+     *
+     * @return the changed avatar, or <code>null</code> to use the cached one
+     */
+    private Fetched revalidate( final String email ) throws IOException {
+        final String[] validators = _cache.readValidators( email );
+        final int size = AvatarCache.originalSize( validators );
+        try {
+            final AvatarClient.Response response = _client.fetch( email, size, validators[0], validators[1] );
+            if ( !response.isNotModified() ) {
+                return new Fetched( null, ByteBuffer.wrap( response.getBody() ), false, response, size );
+            }
+            _cache.markValidated( email );
+        } catch ( final IOException e ) {
+            System.err.println("Could not revalidate cached image for " + email + ", using it anyway: " + e.getMessage() );
+        }
+        return null;
+    }
+
+    /**
+     * Brings an avatar in the cache up to date in the background: revalidates the cached original
+     * if it is large enough for <code>size</code>, downloads it otherwise. An avatar is queued only
+     * once per pipeline.
+     */
+    private void refreshLater( final String email, final int size ) {
+        if ( !_queued.add( email ) ) {
+            return;
+        }
+        _background.execute( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Fetched fetched;
+                    if ( _cache.hasOriginal( email ) && AvatarCache.originalSize( _cache.readValidators( email ) ) >= size ) {
+                        fetched = revalidate( email );
+                    } else {
+                        fetched = download( email, size );
+                    }
+                    if ( fetched != null ) {
+                        store( email, fetched );
+                        _refreshed.incrementAndGet();
+                    }
+                } catch ( final IOException e ) {
+                    System.err.println("Could not fetch image for " + email + " in the background: " + e.getMessage() );
+                }
+            }
+        } );
+    }
+
+    private Fetched download( final String email, final int size ) throws IOException {
+        final AvatarClient.Response response = _client.fetch( email, size, null, null );
+        return new Fetched( null, ByteBuffer.wrap( response.getBody() ), false, response, size );
+    }
+
+    /**
+     * @return the unlabeled avatar in the size of the tile, remembered in the cache
+     */
+    private BufferedImage scaled( final Request request, final Fetched fetched ) throws IOException {
+        final String email = request._email;
+        if ( fetched._scaled ) {
+            if ( fetched._image != null ) {
+                return fetched._image;
+            }
+            try {
+                final BufferedImage image = AvatarCache.decode( fetched._bytes );
+                _cache.putDecoded( email, request._size, _scaler.getFilter(), image );
+                return image;
+            } catch ( final IOException e ) {
+                System.err.println("Could not read cached image for " + email + ", scaling it again: " + e.getMessage() );
+                final ByteBuffer bytes = _cache.readOriginal( email );
+                return scaled( request, bytes == null ? fetch( request ) : new Fetched( null, bytes, false ) );
+            }
+        }
+
+        final BufferedImage original = fetched._image != null ? fetched._image : original( email, request._size, fetched );
+        if ( original.getWidth() == request._size ) {
+            return original;
+        }
+        final BufferedImage scaled = _scaler.scale( original, request._size );
+        try {
+            _cache.storeVariant( email, request._size, _scaler.getFilter(), scaled );
+        } catch ( final IOException e ) {
+            System.err.println("Could not store scaled image for " + email + ": " + e.getMessage() );
+        }
+        _cache.putDecoded( email, request._size, _scaler.getFilter(), scaled );
+        return scaled;
+    }
+
+    /**
+     * Decodes the original avatar for a tile of <code>size</code> and caches a fresh download. A
+     * cached image that cannot be read is deleted and downloaded again, unless the mode does not
+     * wait for downloads. The decoded image is remembered as the original, for tiles up to its size.
+     */
+    private BufferedImage original( final String email, final int size, final Fetched fetched ) throws IOException {
+        if ( fetched._response == null ) {
+            try {
+                final BufferedImage image = AvatarCache.decode( fetched._bytes, size );
+                _cache.putDecoded( email, 0, _scaler.getFilter(), image );
+                return image;
+            } catch ( final IOException e  ) {
+                System.err.println("Could not read cached image for " + email + ": " + e.getMessage() );
+            }
+            _cache.invalidate( email );
+            if ( _mode != Mode.FETCH ) {
+                if ( _mode == Mode.PLACEHOLDER ) {
+                    refreshLater( email, AvatarClient.sourceSize( size ) );
+                }
+                return Identicon.render( email, size );
+            }
+            return original( email, size, download( email, AvatarClient.sourceSize( size ) ) );
+        }
+
+        final BufferedImage image = AvatarCache.decode( fetched._bytes, size );
+        store( email, fetched );
+        _cache.putDecoded( email, 0, _scaler.getFilter(), image );
+        return image;
+    }
+
+    /**
+     * Caches a download, or drops what is cached of the avatar if that fails.
+     */
+    private void store( final String email, final Fetched fetched ) throws IOException {
+        try {
+            _cache.storeOriginal( email, fetched._response.getBody(), fetched._sourceSize, fetched._response.getEtag(), fetched._response.getLastModified() );
+        } catch ( final IOException e ) {
+            System.err.println("Could not store cache image for " + email + ": " + e.getMessage() );
+            _cache.invalidate( email );
+        }
+    }
+
+    /**
+     * Draws the label on the tile.
+     */
+    private static BufferedImage label( final Request request, final BufferedImage current ) {
+        final Graphics2D graphics = current.createGraphics();
+        graphics.setColor( Color.RED );
+
+        final int fontSize = Math.max( 20, (int)( ( current.getHeight() * 0.05 ) ) );
+
+        graphics.setFont( new Font( "SansSerif", Font.BOLD, fontSize ) );
+        graphics.drawString( request._label, 1, current.getHeight() - fontSize );
+
+        graphics.dispose();
+        return current;
+    }
+
+}
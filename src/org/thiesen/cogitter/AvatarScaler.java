@@ -0,0 +1,241 @@
+package org.thiesen.cogitter;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * <p>
+ * Scales avatars to the size of their tile. Besides the bilinear interpolation of Java2D, which
+ * samples only the four nearest pixels and therefore aliases badly when shrinking a lot, there
+ * are two separable filters working directly on the pixels of <code>TYPE_INT_RGB</code> images:
+ * </p>
+ * <ul>
+ * <li>{@link Filter#BOX} averages the area a target pixel covers, the fast choice. It enlarges
+ * with linear interpolation.</li>
+ * <li>{@link Filter#LANCZOS} weighs a window of three target pixels with the Lanczos kernel,
+ * sharper at about three times the cost.</li>
+ * </ul>
+ * <p>
+ * The filter runs over columns first, adding every source row the taps of a target row need into
+ * one accumulator per channel, in fixed point. Each channel has its own loop that walks two arrays
+ * sequentially with integer arithmetic only, the shape the JIT compiles to SIMD instructions. The
+ * rows then only need to be filtered at the target height.
+ * </p>
+ */
+final class AvatarScaler {
+
+    enum Filter {
+        BILINEAR, BOX, LANCZOS;
+
+        static Filter parse( final String name ) {
+            return valueOf( name.toUpperCase( Locale.ROOT ) );
+        }
+    }
+
+    private static final int LANCZOS_LOBES = 3;
+
+    /**
+     * The fraction bits of the weights of the column pass, which accumulates in integers. With the
+     * largest sum of weights Lanczos can reach an accumulator stays far below the range of an int.
+     */
+    private static final int PRECISION_BITS = 14;
+    private static final float FIXED_ONE = 1 << PRECISION_BITS;
+
+    /**
+     * The source pixels and their weights for each target pixel along one axis.
+     */
+    private static final class Taps {
+        private final int[] _first;
+        private final int[] _count;
+        private final float[] _weights;
+        private final int[] _fixedWeights;
+        private final int _stride;
+
+        private Taps( final int size, final int stride ) {
+            _first = new int[size];
+            _count = new int[size];
+            _weights = new float[size * stride];
+            _fixedWeights = new int[size * stride];
+            _stride = stride;
+        }
+
+        private void set( final int target, final int first, final double[] weights, final int count ) {
+            double total = 0;
+            for ( int i = 0; i < count; i++ ) {
+                total += weights[i];
+            }
+            _first[target] = first;
+            _count[target] = count;
+            for ( int i = 0; i < count; i++ ) {
+                _weights[target * _stride + i] = (float)( weights[i] / total );
+                _fixedWeights[target * _stride + i] = (int)Math.round( weights[i] / total * FIXED_ONE );
+            }
+        }
+    }
+
+    private final Filter _filter;
+
+    AvatarScaler( final Filter filter ) {
+        _filter = filter;
+    }
+
+    Filter getFilter() {
+        return _filter;
+    }
+
+    /**
+     * @return a new <code>TYPE_INT_RGB</code> image of <code>size</code> by <code>size</code>
+     */
+    BufferedImage scale( final BufferedImage image, final int size ) {
+        return scale( image, size, size );
+    }
+
+    BufferedImage scale( final BufferedImage image, final int width, final int height ) {
+        if ( _filter == Filter.BILINEAR ) {
+            final BufferedImage scaledImage = new BufferedImage( width, height, BufferedImage.TYPE_INT_RGB );
+            final Graphics2D graphics2D = scaledImage.createGraphics();
+            graphics2D.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+            graphics2D.drawImage( image, 0, 0, width, height, null );
+            graphics2D.dispose();
+            return scaledImage;
+        }
+
+        final BufferedImage source = intRgb( image );
+        final int sourceWidth = source.getWidth();
+        final int[] in = pixels( source );
+        final BufferedImage target = new BufferedImage( width, height, BufferedImage.TYPE_INT_RGB );
+        final int[] out = pixels( target );
+
+        final Taps columns = taps( source.getHeight(), height );
+        final Taps rows = taps( sourceWidth, width );
+        final int[] red = new int[sourceWidth];
+        final int[] green = new int[sourceWidth];
+        final int[] blue = new int[sourceWidth];
+
+        for ( int y = 0; y < height; y++ ) {
+            Arrays.fill( red, 0 );
+            Arrays.fill( green, 0 );
+            Arrays.fill( blue, 0 );
+            for ( int t = 0; t < columns._count[y]; t++ ) {
+                final int weight = columns._fixedWeights[y * columns._stride + t];
+                final int row = ( columns._first[y] + t ) * sourceWidth;
+                for ( int x = 0; x < sourceWidth; x++ ) {
+                    red[x] += weight * ( ( in[row + x] >> 16 ) & 0xff );
+                }
+                for ( int x = 0; x < sourceWidth; x++ ) {
+                    green[x] += weight * ( ( in[row + x] >> 8 ) & 0xff );
+                }
+                for ( int x = 0; x < sourceWidth; x++ ) {
+                    blue[x] += weight * ( in[row + x] & 0xff );
+                }
+            }
+
+            final int line = y * width;
+            for ( int x = 0; x < width; x++ ) {
+                final int first = rows._first[x];
+                final int offset = x * rows._stride;
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                for ( int t = 0; t < rows._count[x]; t++ ) {
+                    final float weight = rows._weights[offset + t];
+                    r += weight * red[first + t];
+                    g += weight * green[first + t];
+                    b += weight * blue[first + t];
+                }
+                r /= FIXED_ONE;
+                g /= FIXED_ONE;
+                b /= FIXED_ONE;
+                out[line + x] = clamp( r ) << 16 | clamp( g ) << 8 | clamp( b );
+            }
+        }
+        return target;
+    }
+
+    private static int clamp( final float value ) {
+        final int rounded = (int)( value + 0.5f );
+        return rounded < 0 ? 0 : rounded > 255 ? 255 : rounded;
+    }
+
+    private Taps taps( final int sourceSize, final int targetSize ) {
+        final double scale = (double)sourceSize / targetSize;
+        if ( _filter == Filter.BOX && scale >= 1 ) {
+            return areaTaps( sourceSize, targetSize, scale );
+        }
+
+        final double filterScale = Math.max( scale, 1 );
+        final double support = ( _filter == Filter.LANCZOS ? LANCZOS_LOBES : 1 ) * filterScale;
+        final int stride = (int)Math.ceil( support ) * 2 + 1;
+        final Taps taps = new Taps( targetSize, stride );
+        final double[] weights = new double[stride];
+        for ( int i = 0; i < targetSize; i++ ) {
+            final double center = ( i + 0.5 ) * scale;
+            final int first = Math.max( (int)( center - support + 0.5 ), 0 );
+            final int last = Math.min( (int)( center + support + 0.5 ), sourceSize );
+            for ( int s = first; s < last; s++ ) {
+                final double distance = ( s + 0.5 - center ) / filterScale;
+                weights[s - first] = _filter == Filter.LANCZOS ? lanczos( distance ) : Math.max( 0, 1 - Math.abs( distance ) );
+            }
+            taps.set( i, first, weights, last - first );
+        }
+        return taps;
+    }
+
+    /**
+     * @return the share each source pixel has in the area of a target pixel
+     */
+    private static Taps areaTaps( final int sourceSize, final int targetSize, final double scale ) {
+        final int stride = (int)Math.ceil( scale ) + 1;
+        final Taps taps = new Taps( targetSize, stride );
+        final double[] weights = new double[stride];
+        for ( int i = 0; i < targetSize; i++ ) {
+            final double left = i * scale;
+            final double right = Math.min( ( i + 1 ) * scale, sourceSize );
+            final int first = (int)left;
+            final int last = Math.min( (int)Math.ceil( right ), sourceSize );
+            for ( int s = first; s < last; s++ ) {
+                weights[s - first] = Math.min( right, s + 1 ) - Math.max( left, s );
+            }
+            taps.set( i, first, weights, last - first );
+        }
+        return taps;
+    }
+
+    private static double lanczos( final double x ) {
+        if ( x == 0 ) {
+            return 1;
+        }
+        if ( x <= -LANCZOS_LOBES || x >= LANCZOS_LOBES ) {
+            return 0;
+        }
+        final double pi = Math.PI * x;
+        return LANCZOS_LOBES * Math.sin( pi ) * Math.sin( pi / LANCZOS_LOBES ) / ( pi * pi );
+    }
+
+    /**
+     * @return the image itself if its pixels are one packed array, otherwise a copy that is
+     */
+    static BufferedImage intRgb( final BufferedImage image ) {
+        if ( image.getType() == BufferedImage.TYPE_INT_RGB && image.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel
+                && ( (SinglePixelPackedSampleModel)image.getRaster().getSampleModel() ).getScanlineStride() == image.getWidth()
+                && image.getRaster().getDataBuffer().getOffset() == 0 && image.getRaster().getSampleModelTranslateX() == 0
+                && image.getRaster().getSampleModelTranslateY() == 0 ) {
+            return image;
+        }
+        final BufferedImage copy = new BufferedImage( image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB );
+        final Graphics2D graphics = copy.createGraphics();
+        graphics.drawImage( image, 0, 0, null );
+        graphics.dispose();
+        return copy;
+    }
+
+    static int[] pixels( final BufferedImage image ) {
+        return ( (DataBufferInt)image.getRaster().getDataBuffer() ).getData();
+    }
+
+}
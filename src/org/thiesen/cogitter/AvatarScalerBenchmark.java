@@ -0,0 +1,84 @@
+package org.thiesen.cogitter;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the filters of {@link AvatarScaler} on one avatar scaled to a range of tile sizes, by
+ * time per tile and by how far each one is from the exact area average, which shows the aliasing
+ * of the bilinear filter on large reductions. Tiles are scaled both from the whole image and from
+ * a copy in the size {@link AvatarClient#sourceSize(int)} downloads for them, which is what the
+ * pipeline usually scales from. Without an image a synthetic pattern of thin lines is used, the
+ * worst case for aliasing.
+ */
+public class AvatarScalerBenchmark {
+
+    public static void main( final String[] args ) throws IOException {
+        final BufferedImage image = args.length > 0 && !args[0].equals( "-" ) ? ImageIO.read( new File( args[0] ) ) : pattern( 512 );
+        final int iterations = args.length > 1 ? Integer.parseInt( args[1] ) : 200;
+        if ( image == null ) {
+            System.out.println("Usage: AvatarScalerBenchmark [image|-] [iterations]");
+            System.exit( 1 );
+        }
+        System.out.println( "Scaling " + image.getWidth() + "x" + image.getHeight() + " to 24, 40, 100, 200 and 400 pixels" );
+
+        final int[] sizes = { 24, 40, 100, 200, 400 };
+        final AvatarScaler reference = new AvatarScaler( AvatarScaler.Filter.BOX );
+        final BufferedImage[] whole = new BufferedImage[sizes.length];
+        final BufferedImage[] downloaded = new BufferedImage[sizes.length];
+        for ( int i = 0; i < sizes.length; i++ ) {
+            whole[i] = image;
+            downloaded[i] = reference.scale( image, Math.min( AvatarClient.sourceSize( sizes[i] ), image.getWidth() ) );
+        }
+
+        for ( int round = 0; round < 2; round++ ) {
+            for ( final AvatarScaler.Filter filter : AvatarScaler.Filter.values() ) {
+                final AvatarScaler scaler = new AvatarScaler( filter );
+                System.out.printf( "%s\t%.1f us/tile from whole\t%.1f us/tile from download size\t%.2f mean error at 40%n", filter.name().toLowerCase(),
+                        Double.valueOf( measure( scaler, whole, sizes, iterations ) ), Double.valueOf( measure( scaler, downloaded, sizes, iterations ) ),
+                        Double.valueOf( meanError( scaler.scale( image, 40 ), reference.scale( image, 40 ) ) ) );
+            }
+        }
+    }
+
+    private static double measure( final AvatarScaler scaler, final BufferedImage[] sources, final int[] sizes, final int iterations ) {
+        final long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ ) {
+            for ( int j = 0; j < sizes.length; j++ ) {
+                scaler.scale( sources[j], sizes[j] );
+            }
+        }
+        return ( System.nanoTime() - start ) / 1E3 / iterations / sizes.length;
+    }
+
+    /**
+     * @return the mean absolute difference per channel
+     */
+    private static double meanError( final BufferedImage a, final BufferedImage b ) {
+        long sum = 0;
+        for ( int y = 0; y < a.getHeight(); y++ ) {
+            for ( int x = 0; x < a.getWidth(); x++ ) {
+                final int p = a.getRGB( x, y );
+                final int q = b.getRGB( x, y );
+                for ( int shift = 0; shift < 24; shift += 8 ) {
+                    sum += Math.abs( ( p >> shift & 0xff ) - ( q >> shift & 0xff ) );
+                }
+            }
+        }
+        return (double)sum / ( a.getWidth() * a.getHeight() * 3 );
+    }
+
+    private static BufferedImage pattern( final int size ) {
+        final BufferedImage image = new BufferedImage( size, size, BufferedImage.TYPE_3BYTE_BGR );
+        for ( int y = 0; y < size; y++ ) {
+            for ( int x = 0; x < size; x++ ) {
+                image.setRGB( x, y, ( x + y ) % 4 < 2 ? 0xffffff : ( x * 255 / size ) << 16 | ( y * 255 / size ) );
+            }
+        }
+        return image;
+    }
+
+}
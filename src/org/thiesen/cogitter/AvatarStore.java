@@ -0,0 +1,48 @@
+package org.thiesen.cogitter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Where {@link AvatarCache} keeps avatars on disk. Entries are addressed by the md5 of the email
+ * and a variant: {@link #ORIGINAL} for the downloaded image, {@link #VALIDATORS} for its HTTP
+ * validators and the size in pixels for a scaled copy.
+ * </p>
+ * <p>
+ * Implementations are safe to use from several threads.
+ * </p>
+ */
+interface AvatarStore {
+
+    int ORIGINAL = 0;
+    int VALIDATORS = -1;
+
+    /**
+     * @return the entry, or <code>null</code> if there is none
+     */
+    ByteBuffer read( String key, int variant ) throws IOException;
+
+    /**
+     * @return when the entry was written, or 0 if there is none
+     */
+    long written( String key, int variant );
+
+    /**
+     * Adds or replaces an entry.
+     */
+    void write( String key, int variant, byte[] bytes ) throws IOException;
+
+    /**
+     * Removes all variants of an avatar.
+     */
+    void delete( String key ) throws IOException;
+
+    /**
+     * Brings the store down to at most <code>maxBytes</code>, as far as it can while in use.
+     */
+    void evict( long maxBytes ) throws IOException;
+
+    void close() throws IOException;
+
+}
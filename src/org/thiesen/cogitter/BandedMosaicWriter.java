@@ -0,0 +1,230 @@
+package org.thiesen.cogitter;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+/**
+ * <p>
+ * Streams a mosaic of any size to a PNG in horizontal bands of <code>bandHeight</code> rows, for
+ * canvases far too large to be held as one image. Only the current band and the avatars of the
+ * tiles crossing it are in memory: an avatar is loaded when the first band reaches its tile and
+ * dropped after the last one.
+ * </p>
+ * <p>
+ * Avatars are loaded in at most {@link #MAX_TILE_SIZE} pixels, the largest size they are
+ * downloaded in. Larger tiles are enlarged bilinearly while their rows are drawn, the label
+ * grows with them as it is sized relative to the tile anyway.
+ * </p>
+ */
+final class BandedMosaicWriter {
+
+    static final int MAX_TILE_SIZE = AvatarClient.MAX_SIZE;
+
+    /**
+     * A tile crossing the current band, with the source columns and weights of its pixels.
+     */
+    private static final class Active {
+        private final int _placement;
+        private final int _left;
+        private final int _top;
+        private final int _size;
+        private BufferedImage _image;
+        private int[] _columns;
+        private int[] _weights;
+
+        private Active( final int placement, final int left, final int top, final int size ) {
+            _placement = placement;
+            _left = left;
+            _top = top;
+            _size = size;
+        }
+    }
+
+    private final int _width;
+    private final int _height;
+    private final int _bandHeight;
+    private final AvatarPipeline _avatars;
+    private final ExecutorService _executor;
+    private final int _pngLevel;
+
+    /**
+     * @param pngLevel the deflate level of the PNG
+     */
+    BandedMosaicWriter( final int width, final int height, final int bandHeight, final AvatarPipeline avatars, final ExecutorService executor,
+            final int pngLevel ) {
+        _width = width;
+        _height = height;
+        _bandHeight = bandHeight;
+        _avatars = avatars;
+        _executor = executor;
+        _pngLevel = pngLevel;
+    }
+
+    /**
+     * @param requests the tiles, with the sizes the layout was made for
+     */
+    void write( final List<AvatarPipeline.Request> requests, final MosaicRenderer.Layout layout, final File file ) throws IOException, InterruptedException {
+        final Integer[] byTop = new Integer[layout.size()];
+        for ( int i = 0; i < byTop.length; i++ ) {
+            byTop[i] = Integer.valueOf( i );
+        }
+        Arrays.sort( byTop, new Comparator<Integer>() {
+            @Override
+            public int compare( final Integer o1, final Integer o2 ) {
+                return layout.y( o1.intValue() ) - layout.y( o2.intValue() );
+            }
+        } );
+
+        final int[] band = new int[_width * _bandHeight];
+        final List<Active> active = Lists.newArrayList();
+        int next = 0;
+        final PngStreamWriter png = new PngStreamWriter( file, _width, _height, _pngLevel );
+        boolean complete = false;
+        try {
+            for ( int top = 0; top < _height; top += _bandHeight ) {
+                final int rows = Math.min( _bandHeight, _height - top );
+
+                final List<Active> starting = Lists.newArrayList();
+                while ( next < byTop.length && layout.y( byTop[next].intValue() ) < top + rows ) {
+                    final int placement = byTop[next++].intValue();
+                    starting.add( new Active( placement, layout.x( placement ), layout.y( placement ),
+                            requests.get( layout.tile( placement ) ).getSize() ) );
+                }
+                load( requests, layout, starting );
+                active.addAll( starting );
+
+                Arrays.fill( band, 0, _width * rows, 0 );
+                draw( active, top, rows, band );
+                png.write( band, rows );
+
+                for ( final Iterator<Active> it = active.iterator(); it.hasNext(); ) {
+                    final Active tile = it.next();
+                    if ( tile._top + tile._size <= top + rows ) {
+                        it.remove();
+                    }
+                }
+            }
+            complete = true;
+        } finally {
+            if ( !complete ) {
+                Closeables.closeQuietly( png );
+            }
+        }
+        png.close();
+    }
+
+    /**
+     * Loads the avatars of the tiles, leaving out those that cannot be loaded.
+     */
+    private void load( final List<AvatarPipeline.Request> requests, final MosaicRenderer.Layout layout, final List<Active> tiles )
+    throws IOException, InterruptedException {
+        final Map<AvatarPipeline.Request, Active> byRequest = Maps.newIdentityHashMap();
+        final List<AvatarPipeline.Request> resized = Lists.newArrayListWithCapacity( tiles.size() );
+        for ( final Active tile : tiles ) {
+            final AvatarPipeline.Request request = requests.get( layout.tile( tile._placement ) ).resized( Math.min( tile._size, MAX_TILE_SIZE ) );
+            byRequest.put( request, tile );
+            resized.add( request );
+        }
+        _avatars.run( resized, new AvatarPipeline.Consumer() {
+            @Override
+            public void tile( final AvatarPipeline.Request request, final BufferedImage image ) {
+                final Active tile = byRequest.get( request );
+                tile._image = AvatarScaler.intRgb( image );
+                if ( image.getWidth() != tile._size ) {
+                    tile._columns = new int[tile._size];
+                    tile._weights = new int[tile._size];
+                    for ( int x = 0; x < tile._size; x++ ) {
+                        final double source = sourceCoordinate( x, tile._size, image.getWidth() );
+                        tile._columns[x] = (int)source;
+                        tile._weights[x] = (int)( ( source - (int)source ) * 256 );
+                    }
+                }
+            }
+        } );
+    }
+
+    /**
+     * @return the position in the source of the center of a target pixel, at least 0
+     */
+    private static double sourceCoordinate( final int target, final int targetSize, final int sourceSize ) {
+        return Math.max( 0, ( target + 0.5 ) * sourceSize / targetSize - 0.5 );
+    }
+
+    private void draw( final List<Active> tiles, final int top, final int rows, final int[] band ) throws InterruptedException {
+        final List<Future<?>> draws = Lists.newArrayListWithCapacity( tiles.size() );
+        for ( final Active tile : tiles ) {
+            if ( tile._image == null ) {
+                continue;
+            }
+            draws.add( _executor.submit( new Runnable() {
+                @Override
+                public void run() {
+                    draw( tile, top, rows, band );
+                }
+            } ) );
+        }
+        for ( final Future<?> draw : draws ) {
+            try {
+                draw.get();
+            } catch ( final ExecutionException e ) {
+                throw new IllegalStateException( e.getCause() );
+            }
+        }
+    }
+
+    /**
+     * Draws the rows of the tile that fall into the band.
+     */
+    private void draw( final Active tile, final int top, final int rows, final int[] band ) {
+        final int[] source = AvatarScaler.pixels( tile._image );
+        final int sourceSize = tile._image.getWidth();
+        final int first = Math.max( tile._top, top );
+        final int last = Math.min( tile._top + tile._size, top + rows );
+        final int width = Math.min( tile._size, _width - tile._left );
+
+        for ( int y = first; y < last; y++ ) {
+            final int offset = ( y - top ) * _width + tile._left;
+            if ( tile._columns == null ) {
+                System.arraycopy( source, ( y - tile._top ) * sourceSize, band, offset, width );
+                continue;
+            }
+            final double sourceY = sourceCoordinate( y - tile._top, tile._size, sourceSize );
+            final int upper = (int)sourceY * sourceSize;
+            final int lower = Math.min( (int)sourceY + 1, sourceSize - 1 ) * sourceSize;
+            final int weightY = (int)( ( sourceY - (int)sourceY ) * 256 );
+            for ( int x = 0; x < width; x++ ) {
+                final int left = tile._columns[x];
+                final int right = Math.min( left + 1, sourceSize - 1 );
+                band[offset + x] = blend( source[upper + left], source[upper + right], source[lower + left], source[lower + right],
+                        tile._weights[x], weightY );
+            }
+        }
+    }
+
+    /**
+     * @return the bilinear mix of four pixels, with weights in 1/256
+     */
+    private static int blend( final int upperLeft, final int upperRight, final int lowerLeft, final int lowerRight, final int weightX, final int weightY ) {
+        int result = 0;
+        for ( int shift = 0; shift < 24; shift += 8 ) {
+            final int upper = ( upperLeft >> shift & 0xff ) * ( 256 - weightX ) + ( upperRight >> shift & 0xff ) * weightX;
+            final int lower = ( lowerLeft >> shift & 0xff ) * ( 256 - weightX ) + ( lowerRight >> shift & 0xff ) * weightX;
+            result |= ( ( upper * ( 256 - weightY ) + lower * weightY + 32768 ) >> 16 ) << shift;
+        }
+        return result;
+    }
+
+}
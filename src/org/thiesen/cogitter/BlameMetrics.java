@@ -0,0 +1,297 @@
+package org.thiesen.cogitter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.Lists;
+
+/**
+ * <p>
+ * Counters and histograms of the blame pipeline, safe to update from all worker threads.
+ * </p>
+ * <p>
+ * Per file the time to start the git process, the time to read and parse its output, the number
+ * of attributed lines and the bytes read are recorded into log2 histograms, and the slowest files
+ * are kept for a report. Everything can be written as JSON or in the Prometheus text format.
+ * </p>
+ */
+final class BlameMetrics {
+
+    /**
+     * What is known about one file, filled in by the scheduler and the handler.
+     */
+    static final class FileStats {
+        private final String _path;
+        private long _spawnNanos;
+        private long _parseNanos;
+        private long _lines;
+        private long _bytes;
+
+        FileStats( final String path ) {
+            _path = path;
+        }
+
+        void setSpawnNanos( final long spawnNanos ) {
+            _spawnNanos = spawnNanos;
+        }
+
+        void setParseNanos( final long parseNanos ) {
+            _parseNanos = parseNanos;
+        }
+
+        void setContent( final long lines, final long bytes ) {
+            _lines = lines;
+            _bytes = bytes;
+        }
+
+        long totalNanos() {
+            return _spawnNanos + _parseNanos;
+        }
+    }
+
+    /**
+     * Histogram with power of two buckets, bucket <code>i</code> counts values below <code>2^i</code>.
+     */
+    private static final class Histogram {
+        private final AtomicLongArray _buckets = new AtomicLongArray( 64 );
+        private final AtomicLong _sum = new AtomicLong();
+        private final AtomicLong _count = new AtomicLong();
+
+        private void record( final long value ) {
+            final long positive = Math.max( value, 0 );
+            _buckets.incrementAndGet( 64 - Long.numberOfLeadingZeros( positive ) );
+            _sum.addAndGet( positive );
+            _count.incrementAndGet();
+        }
+
+        private int highestBucket() {
+            for ( int i = _buckets.length() - 1; i >= 0; i-- ) {
+                if ( _buckets.get( i ) > 0 ) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static final Comparator<FileStats> BY_TOTAL_TIME = new Comparator<FileStats>() {
+        @Override
+        public int compare( final FileStats o1, final FileStats o2 ) {
+            return Long.valueOf( o1.totalNanos() ).compareTo( Long.valueOf( o2.totalNanos() ) );
+        }
+    };
+
+    private final int _slowFileCount;
+    private final AtomicInteger _files = new AtomicInteger();
+    private final AtomicInteger _failures = new AtomicInteger();
+    private final AtomicLong _lines = new AtomicLong();
+    private final AtomicLong _bytes = new AtomicLong();
+    private final Histogram _spawnNanos = new Histogram();
+    private final Histogram _parseNanos = new Histogram();
+    private final Histogram _fileNanos = new Histogram();
+    private final Histogram _fileLines = new Histogram();
+    private final Histogram _fileBytes = new Histogram();
+    private final PriorityQueue<FileStats> _slowest;
+    private final long _startNanos = System.nanoTime();
+    private volatile long _endNanos;
+
+    /**
+     * @param slowFileCount the number of slowest files to keep
+     */
+    BlameMetrics( final int slowFileCount ) {
+        _slowFileCount = slowFileCount;
+        _slowest = new PriorityQueue<FileStats>( Math.max( slowFileCount, 1 ), BY_TOTAL_TIME );
+    }
+
+    void record( final FileStats stats ) {
+        _files.incrementAndGet();
+        _lines.addAndGet( stats._lines );
+        _bytes.addAndGet( stats._bytes );
+        _spawnNanos.record( stats._spawnNanos );
+        _parseNanos.record( stats._parseNanos );
+        _fileNanos.record( stats.totalNanos() );
+        _fileLines.record( stats._lines );
+        _fileBytes.record( stats._bytes );
+
+        if ( _slowFileCount > 0 ) {
+            synchronized ( _slowest ) {
+                _slowest.add( stats );
+                if ( _slowest.size() > _slowFileCount ) {
+                    _slowest.poll();
+                }
+            }
+        }
+    }
+
+    void recordFailure() {
+        _failures.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of the run for the reported wall time.
+     */
+    void finish() {
+        _endNanos = System.nanoTime();
+    }
+
+    int files() {
+        return _files.get();
+    }
+
+    int failures() {
+        return _failures.get();
+    }
+
+    /**
+     * @return the slowest files, slowest first
+     */
+    List<FileStats> slowest() {
+        final List<FileStats> slowest;
+        synchronized ( _slowest ) {
+            slowest = Lists.newArrayList( _slowest );
+        }
+        Collections.sort( slowest, Collections.reverseOrder( BY_TOTAL_TIME ) );
+        return slowest;
+    }
+
+    void printSlowest( final PrintWriter out ) {
+        out.println( "Slowest files (total / spawn / parse ms, lines, bytes):" );
+        for ( final FileStats stats : slowest() ) {
+            out.printf( Locale.ROOT, "%10.1f %8.1f %10.1f %8d %10d  %s%n", Double.valueOf( millis( stats.totalNanos() ) ),
+                    Double.valueOf( millis( stats._spawnNanos ) ), Double.valueOf( millis( stats._parseNanos ) ),
+                    Long.valueOf( stats._lines ), Long.valueOf( stats._bytes ), stats._path );
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the metrics as Prometheus text if the file name ends with <code>.prom</code>, as
+     * JSON otherwise.
+     */
+    void write( final File file ) throws IOException {
+        final PrintWriter out = new PrintWriter( new OutputStreamWriter( new FileOutputStream( file ), GitPaths.UTF8 ) );
+        try {
+            if ( file.getName().endsWith( ".prom" ) ) {
+                writePrometheus( out );
+            } else {
+                writeJson( out );
+            }
+        } finally {
+            out.close();
+        }
+        if ( out.checkError() ) {
+            throw new IOException( "Could not write metrics to " + file );
+        }
+    }
+
+    private double wallSeconds() {
+        final long end = _endNanos == 0 ? System.nanoTime() : _endNanos;
+        return ( end - _startNanos ) / 1E9;
+    }
+
+    private void writeJson( final PrintWriter out ) {
+        out.println( "{" );
+        out.printf( Locale.ROOT, "  \"wallSeconds\": %.3f,%n", Double.valueOf( wallSeconds() ) );
+        out.printf( Locale.ROOT, "  \"files\": %d,%n", Integer.valueOf( _files.get() ) );
+        out.printf( Locale.ROOT, "  \"failures\": %d,%n", Integer.valueOf( _failures.get() ) );
+        out.printf( Locale.ROOT, "  \"lines\": %d,%n", Long.valueOf( _lines.get() ) );
+        out.printf( Locale.ROOT, "  \"bytes\": %d,%n", Long.valueOf( _bytes.get() ) );
+        out.println( "  \"histograms\": {" );
+        writeJsonHistogram( out, "spawnNanos", _spawnNanos, "," );
+        writeJsonHistogram( out, "parseNanos", _parseNanos, "," );
+        writeJsonHistogram( out, "fileNanos", _fileNanos, "," );
+        writeJsonHistogram( out, "fileLines", _fileLines, "," );
+        writeJsonHistogram( out, "fileBytes", _fileBytes, "" );
+        out.println( "  }," );
+        out.println( "  \"slowest\": [" );
+        final List<FileStats> slowest = slowest();
+        for ( int i = 0; i < slowest.size(); i++ ) {
+            final FileStats stats = slowest.get( i );
+            out.printf( Locale.ROOT, "    { \"path\": %s, \"spawnNanos\": %d, \"parseNanos\": %d, \"lines\": %d, \"bytes\": %d }%s%n", jsonString( stats._path ),
+                    Long.valueOf( stats._spawnNanos ), Long.valueOf( stats._parseNanos ), Long.valueOf( stats._lines ), Long.valueOf( stats._bytes ),
+                    i + 1 < slowest.size() ? "," : "" );
+        }
+        out.println( "  ]" );
+        out.println( "}" );
+    }
+
+    private static void writeJsonHistogram( final PrintWriter out, final String name, final Histogram histogram, final String separator ) {
+        out.printf( Locale.ROOT, "    \"%s\": { \"count\": %d, \"sum\": %d, \"buckets\": [", name, Long.valueOf( histogram._count.get() ), Long.valueOf( histogram._sum.get() ) );
+        final int highest = histogram.highestBucket();
+        for ( int i = 0; i <= highest; i++ ) {
+            out.printf( Locale.ROOT, "%s{ \"lt\": %d, \"count\": %d }", i == 0 ? " " : ", ", Long.valueOf( 1L << i ), Long.valueOf( histogram._buckets.get( i ) ) );
+        }
+        out.printf( " ] }%s%n", separator );
+    }
+
+    private void writePrometheus( final PrintWriter out ) {
+        writePrometheusValue( out, "cogitter_blame_wall_seconds", "gauge", "Wall time of the blame phase.", wallSeconds() );
+        writePrometheusValue( out, "cogitter_blame_files_total", "counter", "Files blamed.", _files.get() );
+        writePrometheusValue( out, "cogitter_blame_failures_total", "counter", "Files that could not be blamed.", _failures.get() );
+        writePrometheusValue( out, "cogitter_blame_lines_total", "counter", "Attributed lines.", _lines.get() );
+        writePrometheusValue( out, "cogitter_blame_bytes_total", "counter", "Bytes of annotate output read.", _bytes.get() );
+        writePrometheusHistogram( out, "cogitter_blame_spawn_seconds", "Time to start a git process.", _spawnNanos, 1E9 );
+        writePrometheusHistogram( out, "cogitter_blame_parse_seconds", "Time to read and parse the output of a git process.", _parseNanos, 1E9 );
+        writePrometheusHistogram( out, "cogitter_blame_file_seconds", "Time spent on one file.", _fileNanos, 1E9 );
+        writePrometheusHistogram( out, "cogitter_blame_file_lines", "Attributed lines per file.", _fileLines, 1 );
+        writePrometheusHistogram( out, "cogitter_blame_file_bytes", "Bytes of annotate output per file.", _fileBytes, 1 );
+    }
+
+    private static void writePrometheusValue( final PrintWriter out, final String name, final String type, final String help, final double value ) {
+        out.printf( "# HELP %s %s%n# TYPE %s %s%n", name, help, name, type );
+        out.printf( Locale.ROOT, "%s %s%n", name, prometheusNumber( value ) );
+    }
+
+    private static void writePrometheusHistogram( final PrintWriter out, final String name, final String help, final Histogram histogram, final double divisor ) {
+        out.printf( "# HELP %s %s%n# TYPE %s histogram%n", name, help, name );
+        final int highest = histogram.highestBucket();
+        long cumulative = 0;
+        for ( int i = 0; i <= highest; i++ ) {
+            cumulative += histogram._buckets.get( i );
+            // bucket i holds values below 2^i, i.e. at most 2^i - 1
+            out.printf( Locale.ROOT, "%s_bucket{le=\"%s\"} %d%n", name, prometheusNumber( ( ( 1L << i ) - 1 ) / divisor ), Long.valueOf( cumulative ) );
+        }
+        out.printf( Locale.ROOT, "%s_bucket{le=\"+Inf\"} %d%n", name, Long.valueOf( histogram._count.get() ) );
+        out.printf( Locale.ROOT, "%s_sum %s%n", name, prometheusNumber( histogram._sum.get() / divisor ) );
+        out.printf( Locale.ROOT, "%s_count %d%n", name, Long.valueOf( histogram._count.get() ) );
+    }
+
+    private static String prometheusNumber( final double value ) {
+        if ( value == Math.rint( value ) && Math.abs( value ) < 1E15 ) {
+            return String.valueOf( (long)value );
+        }
+        return String.valueOf( value );
+    }
+
+    private static double millis( final long nanos ) {
+        return nanos / 1E6;
+    }
+
+    private static String jsonString( final String value ) {
+        final StringBuilder sb = new StringBuilder( value.length() + 2 );
+        sb.append( '"' );
+        for ( int i = 0; i < value.length(); i++ ) {
+            final char c = value.charAt( i );
+            if ( c == '"' || c == '\\' ) {
+                sb.append( '\\' ).append( c );
+            } else if ( c < 0x20 ) {
+                sb.append( String.format( "\\u%04x", Integer.valueOf( c ) ) );
+            } else {
+                sb.append( c );
+            }
+        }
+        return sb.append( '"' ).toString();
+    }
+
+}
@@ -0,0 +1,352 @@
+package org.thiesen.cogitter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * <p>
+ * Runs <code>git annotate</code> for the files of one or more repositories, most expensive files
+ * first.
+ * </p>
+ * <p>
+ * The cost of a file is estimated from its blob size, which is fetched for all files of a
+ * repository with a single <code>git cat-file --batch-check</code>. The files of all added
+ * repositories are ordered together, so the workers stay busy while single repositories are
+ * finishing and the stragglers of one repository overlap with the work of the others. One launcher thread starts the annotate
+ * processes in cost order while at most <code>gitProcesses</code> of them are alive; a pool of
+ * <code>parserThreads</code> threads takes the started processes from a shared queue and reads
+ * their output. Whichever parser becomes idle takes the next process, so a few huge files
+ * started first no longer leave the other threads waiting at the end of the run. Allowing more
+ * git processes than parser threads keeps git busy on hosts where it is I/O bound.
+ * </p>
+ * <p>
+ * In the virtual thread mode every file gets a virtual thread of its own that starts the process,
+ * reads it and waits for it, and only a fair semaphore limits the number of live git processes.
+ * Threads blocked on the pipe cost next to nothing then, so many more annotate streams can be in
+ * flight. Virtual threads need Java 21; on older runtimes the mode falls back to one platform
+ * thread per allowed git process.
+ * </p>
+ */
+final class BlameScheduler {
+
+    /**
+     * Consumes the output of the annotate process of one file and records the lines and bytes
+     * read in <code>stats</code>.
+     */
+    interface Handler {
+        void blamed( SourceFile file, Process process, BlameMetrics.FileStats stats ) throws IOException, InterruptedException;
+    }
+
+    private static final class Task {
+        private final File _repo;
+        private final SourceFile _file;
+        private final Handler _handler;
+        private final long _size;
+
+        private Task( final File repo, final SourceFile file, final Handler handler, final long size ) {
+            _repo = repo;
+            _file = file;
+            _handler = handler;
+            _size = size;
+        }
+    }
+
+    private static final class Started {
+        private final Task _task;
+        private final Process _process;
+        private final BlameMetrics.FileStats _stats;
+
+        private Started( final Task task, final Process process, final BlameMetrics.FileStats stats ) {
+            _task = task;
+            _process = process;
+            _stats = stats;
+        }
+    }
+
+    private final static Started END = new Started( null, null, null );
+
+    private final List<Task> _tasks = Lists.newArrayList();
+    private final Set<File> _repos = Sets.newHashSet();
+    private final int _parserThreads;
+    private final boolean _virtualThreads;
+    private final BlameMetrics _metrics;
+    private final Semaphore _processes;
+    private final BlockingQueue<Started> _started = new LinkedBlockingQueue<Started>();
+    private final AtomicInteger _completed = new AtomicInteger();
+    private final CountDownLatch _done;
+    private volatile int _total;
+    private volatile ExecutorService _executor;
+
+    /**
+     * @param parserThreads the number of threads reading annotate output, ignored with virtual threads
+     * @param gitProcesses the maximum number of concurrently running git processes
+     * @param virtualThreads whether to run every file in a virtual thread of its own
+     * @param metrics receives the timings of every file
+     */
+    BlameScheduler( final int parserThreads, final int gitProcesses, final boolean virtualThreads, final BlameMetrics metrics ) {
+        _parserThreads = parserThreads;
+        _virtualThreads = virtualThreads;
+        _metrics = metrics;
+        _processes = new Semaphore( gitProcesses, true );
+        _done = new CountDownLatch( parserThreads );
+    }
+
+    /**
+     * Adds files of a repository, to be handed to <code>handler</code> once blamed. All files have
+     * to be added before {@link #start()}.
+     */
+    void add( final File repo, final List<SourceFile> files, final Handler handler ) throws IOException, InterruptedException {
+        final Map<String, Long> sizes = blobSizes( repo, files );
+        for ( final SourceFile file : files ) {
+            final Long size = sizes.get( file.getBlob() );
+            _tasks.add( new Task( repo, file, handler, size == null ? 0 : size.longValue() ) );
+        }
+        _repos.add( repo );
+    }
+
+    /**
+     * Starts working through the added files in the background.
+     */
+    void start() {
+        final List<Task> ordered = Lists.newArrayList( _tasks );
+        Collections.sort( ordered, new Comparator<Task>() {
+            @Override
+            public int compare( final Task o1, final Task o2 ) {
+                return Long.valueOf( o2._size ).compareTo( Long.valueOf( o1._size ) );
+            }
+        } );
+        _tasks.clear();
+        _total = ordered.size();
+
+        if ( _virtualThreads ) {
+            startThreadPerFile( ordered );
+            return;
+        }
+
+        final Thread launcher = new Thread( "blame-launcher" ) {
+            @Override
+            public void run() {
+                launch( ordered );
+            }
+        };
+        launcher.start();
+
+        for ( int i = 0; i < _parserThreads; i++ ) {
+            new Thread( "blame-parser-" + i ) {
+                @Override
+                public void run() {
+                    try {
+                        parse();
+                    } finally {
+                        _done.countDown();
+                    }
+                }
+            }.start();
+        }
+    }
+
+    int total() {
+        return _total;
+    }
+
+    int completed() {
+        return _completed.get();
+    }
+
+    boolean awaitTermination( final long timeout, final TimeUnit unit ) throws InterruptedException {
+        final ExecutorService executor = _executor;
+        if ( executor != null ) {
+            return executor.awaitTermination( timeout, unit );
+        }
+        return _done.await( timeout, unit );
+    }
+
+    private void startThreadPerFile( final List<Task> ordered ) {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if ( executor == null ) {
+            System.err.println("Virtual threads need Java 21, using one thread per git process instead");
+            executor = Executors.newFixedThreadPool( _processes.availablePermits() );
+        }
+        _executor = executor;
+
+        for ( final Task task : ordered ) {
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        _processes.acquire();
+                    } catch ( final InterruptedException e ) {
+                        _completed.incrementAndGet();
+                        return;
+                    }
+                    try {
+                        final BlameMetrics.FileStats stats = newStats( task );
+                        final Process process = spawn( task, stats );
+                        try {
+                            blame( task, process, stats );
+                        } finally {
+                            process.destroy();
+                        }
+                    } catch ( final IOException e ) {
+                        _metrics.recordFailure();
+                        e.printStackTrace();
+                    } catch ( final InterruptedException e ) {
+                        _metrics.recordFailure();
+                        e.printStackTrace();
+                    } catch ( final RuntimeException e ) {
+                        _metrics.recordFailure();
+                        e.printStackTrace();
+                    } finally {
+                        _processes.release();
+                        _completed.incrementAndGet();
+                    }
+                }
+            } );
+        }
+        executor.shutdown();
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        } catch ( final ReflectiveOperationException e ) {
+            return null;
+        }
+    }
+
+    private void launch( final List<Task> ordered ) {
+        try {
+            for ( final Task task : ordered ) {
+                _processes.acquire();
+                final BlameMetrics.FileStats stats = newStats( task );
+                try {
+                    _started.put( new Started( task, spawn( task, stats ), stats ) );
+                } catch ( final IOException e ) {
+                    _metrics.recordFailure();
+                    e.printStackTrace();
+                    _processes.release();
+                    _completed.incrementAndGet();
+                }
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for ( int i = 0; i < _parserThreads; i++ ) {
+                _started.add( END );
+            }
+        }
+    }
+
+    private void parse() {
+        try {
+            Started started;
+            while ( ( started = _started.take() ) != END ) {
+                try {
+                    blame( started._task, started._process, started._stats );
+                } catch ( final IOException e ) {
+                    _metrics.recordFailure();
+                    e.printStackTrace();
+                } catch ( final RuntimeException e ) {
+                    // a bug in parser or handler fails the file, not the thread, which would leave
+                    // fewer threads taking processes and the run waiting for the file forever
+                    _metrics.recordFailure();
+                    e.printStackTrace();
+                } finally {
+                    started._process.destroy();
+                    _processes.release();
+                    _completed.incrementAndGet();
+                }
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the statistics of a task, named by path and, with several repositories, by repository
+     */
+    private BlameMetrics.FileStats newStats( final Task task ) {
+        final String path = task._file.getPath();
+        return new BlameMetrics.FileStats( _repos.size() > 1 ? task._repo.getPath() + ":" + path : path );
+    }
+
+    private Process spawn( final Task task, final BlameMetrics.FileStats stats ) throws IOException {
+        final long start = System.nanoTime();
+        final Process process = Git.start( task._repo, "annotate", "-e", "--", task._file.getPath() );
+        stats.setSpawnNanos( System.nanoTime() - start );
+        return process;
+    }
+
+    /**
+     * Runs the handler and records the time from taking up the process until it is done, which
+     * includes git still computing the blame while its output is read.
+     */
+    private void blame( final Task task, final Process process, final BlameMetrics.FileStats stats ) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        task._handler.blamed( task._file, process, stats );
+        stats.setParseNanos( System.nanoTime() - start );
+        _metrics.record( stats );
+    }
+
+    /**
+     * Looks up the sizes of the blobs of all files with one <code>git cat-file</code> process.
+     */
+    static Map<String, Long> blobSizes( final File repo, final Collection<SourceFile> files ) throws IOException, InterruptedException {
+        final Process process = Git.start( repo, "cat-file", "--batch-check" );
+
+        final Thread writer = new Thread( "cat-file-writer" ) {
+            @Override
+            public void run() {
+                try {
+                    final Writer out = new OutputStreamWriter( process.getOutputStream(), GitPaths.UTF8 );
+                    for ( final SourceFile file : files ) {
+                        out.write( file.getBlob() );
+                        out.write( '\n' );
+                    }
+                    out.close();
+                } catch ( final IOException e ) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+
+        final Map<String, Long> sizes = Maps.newHashMap();
+        final BufferedReader reader = Git.reader( process );
+        String line;
+        while ( ( line = reader.readLine() ) != null ) {
+            // <blob> blob <size>, or <blob> missing
+            final String[] fields = line.split( " " );
+            if ( fields.length == 3 ) {
+                sizes.put( fields[0], Long.valueOf( fields[2] ) );
+            }
+        }
+        reader.close();
+        writer.join();
+        process.waitFor();
+
+        return sizes;
+    }
+
+}
@@ -0,0 +1,50 @@
+package org.thiesen.cogitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the blame throughput of the fixed parser pool against one virtual thread per file on
+ * the same repository. Each mode runs <code>iterations</code> times, alternating, so that the
+ * file system cache is equally warm for both.
+ */
+public class ExecutionBenchmark {
+
+    public static void main( final String[] args ) throws IOException, InterruptedException {
+        if ( args.length < 1 ) {
+            System.out.println("Usage: ExecutionBenchmark git-directory [iterations] [git-processes]");
+            System.exit( 1 );
+        }
+        final File repo = new File( args[0] );
+        final int iterations = args.length > 1 ? Integer.parseInt( args[1] ) : 3;
+        final int gitProcesses = args.length > 2 ? Integer.parseInt( args[2] ) : Main.DEFAULT_THREADS;
+
+        final List<SourceFile> files = Main.listSourceFiles( repo );
+        System.out.println( files.size() + " files, " + Main.DEFAULT_THREADS + " parser threads, " + gitProcesses + " git processes" );
+
+        for ( int i = 0; i < iterations; i++ ) {
+            measure( "pool", repo, files, gitProcesses, false );
+            measure( "virtual", repo, files, gitProcesses, true );
+        }
+    }
+
+    private static void measure( final String name, final File repo, final List<SourceFile> files, final int gitProcesses, final boolean virtualThreads )
+    throws IOException, InterruptedException {
+        final AuthorCounter counter = new AuthorCounter( Main.AUTHORS );
+        final BlameScheduler scheduler = new BlameScheduler( Main.DEFAULT_THREADS, gitProcesses, virtualThreads, new BlameMetrics( 0 ) );
+        scheduler.add( repo, files, new Main.LineCounter( counter, null ) );
+
+        final long start = System.nanoTime();
+        scheduler.start();
+        while ( !scheduler.awaitTermination( 1, TimeUnit.SECONDS ) ) {
+            // wait
+        }
+        final double seconds = ( System.nanoTime() - start ) / 1E9;
+
+        System.out.printf( "%s\t%.2f s\t%.1f files/s\t%s lines%n", name, Double.valueOf( seconds ), Double.valueOf( files.size() / seconds ),
+                String.valueOf( counter.snapshot().total() ) );
+    }
+
+}
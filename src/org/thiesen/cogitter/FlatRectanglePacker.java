@@ -0,0 +1,448 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The blackpawn packer of {@link RectanglePacker}, with the tree kept in parallel <code>int</code>
+ * arrays instead of objects: position, size, first child and occupant of every node. The two
+ * children of a split are always allocated as a pair, so the right child is the one after the left.
+ * Pairs freed by {@link #remove(int)} are reused.
+ * </p>
+ * <p>
+ * The blackpawn insert takes the first free leaf, from left to right, the rectangle fits into.
+ * Walking the tree for it makes packing n rectangles quadratic, and the tree gets as deep as there
+ * are rectangles in a row. So the leaves are also kept, in that order, in a treap, a binary search
+ * tree balanced by a pseudo random priority per position. Every node of the treap knows the widest
+ * and the highest free leaf below it, and the largest square that fits into one, which leads the
+ * search past everything too small. The square matters most: blackpawn leaves many long slivers,
+ * which are wide or high enough but do not fit. For square tiles the search goes straight down to
+ * the leaf, so an insert costs about the logarithm of the number of leaves. It places every
+ * rectangle exactly where the recursive packer does.
+ * </p>
+ * <p>
+ * Nothing is allocated once the arrays have grown to the size of a packing, and {@link #reset()}
+ * keeps them for the next one. Rectangles are identified by node, and occupants by an int that is
+ * not negative.
+ * </p>
+ */
+final class FlatRectanglePacker implements Packer {
+
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int _border;
+
+    // the blackpawn tree
+    private int[] _x;
+    private int[] _y;
+    private int[] _width;
+    private int[] _height;
+    private int[] _child;
+    private int[] _parent;
+    private int[] _occupant;
+
+    // the treap of its leaves
+    private int[] _before;
+    private int[] _after;
+    private int[] _up;
+    private int[] _fitWidth;
+    private int[] _fitHeight;
+    private int[] _fitSide;
+    private int[] _priority;
+    private int _leaves;
+    private int _random;
+
+    private int[] _stack;
+    private int _count;
+    private int _free = NONE;
+    private int _inserted;
+
+    FlatRectanglePacker( final int width, final int height, final int border ) {
+        _border = border;
+        _x = new int[INITIAL_CAPACITY];
+        _y = new int[INITIAL_CAPACITY];
+        _width = new int[INITIAL_CAPACITY];
+        _height = new int[INITIAL_CAPACITY];
+        _child = new int[INITIAL_CAPACITY];
+        _parent = new int[INITIAL_CAPACITY];
+        _occupant = new int[INITIAL_CAPACITY];
+        _before = new int[INITIAL_CAPACITY];
+        _after = new int[INITIAL_CAPACITY];
+        _up = new int[INITIAL_CAPACITY];
+        _fitWidth = new int[INITIAL_CAPACITY];
+        _fitHeight = new int[INITIAL_CAPACITY];
+        _fitSide = new int[INITIAL_CAPACITY];
+        _priority = new int[INITIAL_CAPACITY];
+        _stack = new int[2 * INITIAL_CAPACITY + 2];
+        _width[ROOT] = width;
+        _height[ROOT] = height;
+        reset();
+    }
+
+    /**
+     * Removes all rectangles, keeping the arrays.
+     */
+    @Override
+    public void reset() {
+        _inserted = 0;
+        _count = 1;
+        _free = NONE;
+        _child[ROOT] = NONE;
+        _parent[ROOT] = NONE;
+        _occupant[ROOT] = NONE;
+        _leaves = ROOT;
+        _before[ROOT] = NONE;
+        _after[ROOT] = NONE;
+        _up[ROOT] = NONE;
+        _random = 0x2545f491;
+        _priority[ROOT] = nextPriority();
+        aggregate( ROOT );
+    }
+
+    int getWidth() {
+        return _width[ROOT];
+    }
+
+    int getHeight() {
+        return _height[ROOT];
+    }
+
+    /**
+     * Places the rectangle with the number of rectangles inserted before as occupant.
+     */
+    @Override
+    public int insert( final int width, final int height ) {
+        return insert( width, height, _inserted++ );
+    }
+
+    /**
+     * @return the node the rectangle was placed in, or -1 if it does not fit
+     */
+    int insert( final int width, final int height, final int occupant ) {
+        final int w = width + 2 * _border;
+        final int h = height + 2 * _border;
+        int node = firstFit( w, h );
+        if ( node == NONE ) {
+            return NONE;
+        }
+        while ( w != _width[node] || h != _height[node] ) {
+            split( node, w, h );
+            node = _child[node];
+        }
+        _occupant[node] = occupant;
+        update( node );
+        return node;
+    }
+
+    /**
+     * @return the first free leaf from the left the size fits into, or -1
+     */
+    private int firstFit( final int width, final int height ) {
+        final int side = Math.min( width, height );
+        // in order through the treap, a node as itself to check, ~node to check its own leaf
+        int top = 0;
+        _stack[top++] = _leaves;
+        while ( top > 0 ) {
+            final int entry = _stack[--top];
+            if ( entry < 0 ) {
+                final int leaf = ~entry;
+                if ( _occupant[leaf] == NONE && width <= _width[leaf] && height <= _height[leaf] ) {
+                    return leaf;
+                }
+                continue;
+            }
+            if ( side > _fitSide[entry] || width > _fitWidth[entry] || height > _fitHeight[entry] ) {
+                continue;
+            }
+            if ( _after[entry] != NONE ) {
+                _stack[top++] = _after[entry];
+            }
+            _stack[top++] = ~entry;
+            if ( _before[entry] != NONE ) {
+                _stack[top++] = _before[entry];
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the node holding the occupant, or -1
+     */
+    int find( final int occupant ) {
+        int top = 0;
+        _stack[top++] = ROOT;
+        while ( top > 0 ) {
+            final int node = _stack[--top];
+            final int child = _child[node];
+            if ( child != NONE ) {
+                _stack[top++] = child + 1;
+                _stack[top++] = child;
+            } else if ( _occupant[node] == occupant ) {
+                return node;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Frees the space of the occupant, merging it back into its parents as far as they have no
+     * other occupants, just like {@link RectanglePacker#remove(Object)}.
+     *
+     * @return <code>true</code> if the occupant was found
+     */
+    boolean remove( final int occupant ) {
+        final int node = find( occupant );
+        if ( node == NONE ) {
+            return false;
+        }
+        _occupant[node] = NONE;
+        update( node );
+        for ( int parent = _parent[node]; parent != NONE; parent = _parent[parent] ) {
+            final int left = _child[parent];
+            if ( !isFree( left ) || !isFree( left + 1 ) ) {
+                break;
+            }
+            delete( left + 1 );
+            _child[parent] = NONE;
+            replace( left, parent );
+            update( parent );
+            _child[left] = _free;
+            _free = left;
+        }
+        return true;
+    }
+
+    private boolean isFree( final int node ) {
+        return _child[node] == NONE && _occupant[node] == NONE;
+    }
+
+    /**
+     * @return the left of the rectangle in the node, inside the border
+     */
+    @Override
+    public int x( final int node ) {
+        return _x[node] + _border;
+    }
+
+    @Override
+    public int y( final int node ) {
+        return _y[node] + _border;
+    }
+
+    int width( final int node ) {
+        return _width[node] - 2 * _border;
+    }
+
+    int height( final int node ) {
+        return _height[node] - 2 * _border;
+    }
+
+    /**
+     * Splits along the axis with more room left, the left child taking the rectangle's width or
+     * height. The children take the place of the node among the leaves.
+     */
+    private void split( final int node, final int width, final int height ) {
+        final int left = allocatePair();
+        final int right = left + 1;
+        final int x = _x[node];
+        final int y = _y[node];
+        final int dw = _width[node] - width;
+        final int dh = _height[node] - height;
+        if ( dw > dh ) {
+            set( left, node, x, y, width, _height[node] );
+            set( right, node, x + width, y, _width[node] - width, _height[node] );
+        } else {
+            set( left, node, x, y, _width[node], height );
+            set( right, node, x, y + height, _width[node], _height[node] - height );
+        }
+        _child[node] = left;
+
+        replace( node, left );
+        insertAfter( left, right );
+        update( left );
+    }
+
+    private void set( final int node, final int parent, final int x, final int y, final int width, final int height ) {
+        _x[node] = x;
+        _y[node] = y;
+        _width[node] = width;
+        _height[node] = height;
+        _child[node] = NONE;
+        _parent[node] = parent;
+        _occupant[node] = NONE;
+    }
+
+    /**
+     * Puts the leaf <code>replacement</code> where <code>leaf</code> is in the treap.
+     */
+    private void replace( final int leaf, final int replacement ) {
+        final int up = _up[leaf];
+        _before[replacement] = _before[leaf];
+        _after[replacement] = _after[leaf];
+        _up[replacement] = up;
+        _fitWidth[replacement] = _fitWidth[leaf];
+        _fitHeight[replacement] = _fitHeight[leaf];
+        _fitSide[replacement] = _fitSide[leaf];
+        _priority[replacement] = _priority[leaf];
+        relink( up, leaf, replacement );
+        if ( _before[replacement] != NONE ) {
+            _up[_before[replacement]] = replacement;
+        }
+        if ( _after[replacement] != NONE ) {
+            _up[_after[replacement]] = replacement;
+        }
+    }
+
+    /**
+     * Adds <code>leaf</code> to the treap right after <code>previous</code>.
+     */
+    private void insertAfter( final int previous, final int leaf ) {
+        _before[leaf] = NONE;
+        _after[leaf] = NONE;
+        _priority[leaf] = nextPriority();
+        if ( _after[previous] == NONE ) {
+            _after[previous] = leaf;
+            _up[leaf] = previous;
+        } else {
+            int next = _after[previous];
+            while ( _before[next] != NONE ) {
+                next = _before[next];
+            }
+            _before[next] = leaf;
+            _up[leaf] = next;
+        }
+        aggregate( leaf );
+        while ( _up[leaf] != NONE && _priority[leaf] > _priority[_up[leaf]] ) {
+            rotateUp( leaf );
+        }
+        update( leaf );
+    }
+
+    /**
+     * Takes <code>leaf</code> out of the treap.
+     */
+    private void delete( final int leaf ) {
+        while ( _before[leaf] != NONE || _after[leaf] != NONE ) {
+            final int before = _before[leaf];
+            final int after = _after[leaf];
+            rotateUp( after == NONE || before != NONE && _priority[before] > _priority[after] ? before : after );
+        }
+        final int up = _up[leaf];
+        relink( up, leaf, NONE );
+        if ( up != NONE ) {
+            update( up );
+        }
+    }
+
+    /**
+     * Rotates the node above its treap parent.
+     */
+    private void rotateUp( final int node ) {
+        final int up = _up[node];
+        final int grand = _up[up];
+        if ( _before[up] == node ) {
+            _before[up] = _after[node];
+            if ( _after[node] != NONE ) {
+                _up[_after[node]] = up;
+            }
+            _after[node] = up;
+        } else {
+            _after[up] = _before[node];
+            if ( _before[node] != NONE ) {
+                _up[_before[node]] = up;
+            }
+            _before[node] = up;
+        }
+        _up[up] = node;
+        _up[node] = grand;
+        relink( grand, up, node );
+        aggregate( up );
+        aggregate( node );
+    }
+
+    private void relink( final int up, final int from, final int to ) {
+        if ( up == NONE ) {
+            _leaves = to;
+        } else if ( _before[up] == from ) {
+            _before[up] = to;
+        } else {
+            _after[up] = to;
+        }
+    }
+
+    /**
+     * Brings the largest free sizes up to date from the node to the root of the treap.
+     */
+    private void update( final int node ) {
+        for ( int t = node; t != NONE; t = _up[t] ) {
+            aggregate( t );
+        }
+    }
+
+    private void aggregate( final int node ) {
+        final boolean free = _occupant[node] == NONE;
+        int width = free ? _width[node] : 0;
+        int height = free ? _height[node] : 0;
+        int side = Math.min( width, height );
+        final int before = _before[node];
+        if ( before != NONE ) {
+            width = Math.max( width, _fitWidth[before] );
+            height = Math.max( height, _fitHeight[before] );
+            side = Math.max( side, _fitSide[before] );
+        }
+        final int after = _after[node];
+        if ( after != NONE ) {
+            width = Math.max( width, _fitWidth[after] );
+            height = Math.max( height, _fitHeight[after] );
+            side = Math.max( side, _fitSide[after] );
+        }
+        _fitWidth[node] = width;
+        _fitHeight[node] = height;
+        _fitSide[node] = side;
+    }
+
+    /**
+     * @return the next number of a xorshift generator, the same sequence after every reset
+     */
+    private int nextPriority() {
+        _random ^= _random << 13;
+        _random ^= _random >>> 17;
+        _random ^= _random << 5;
+        return _random;
+    }
+
+    /**
+     * @return the first of two adjacent unused nodes
+     */
+    private int allocatePair() {
+        if ( _free != NONE ) {
+            final int pair = _free;
+            _free = _child[pair];
+            return pair;
+        }
+        if ( _count + 2 > _x.length ) {
+            final int capacity = _x.length * 2;
+            _x = Arrays.copyOf( _x, capacity );
+            _y = Arrays.copyOf( _y, capacity );
+            _width = Arrays.copyOf( _width, capacity );
+            _height = Arrays.copyOf( _height, capacity );
+            _child = Arrays.copyOf( _child, capacity );
+            _parent = Arrays.copyOf( _parent, capacity );
+            _occupant = Arrays.copyOf( _occupant, capacity );
+            _before = Arrays.copyOf( _before, capacity );
+            _after = Arrays.copyOf( _after, capacity );
+            _up = Arrays.copyOf( _up, capacity );
+            _fitWidth = Arrays.copyOf( _fitWidth, capacity );
+            _fitHeight = Arrays.copyOf( _fitHeight, capacity );
+            _fitSide = Arrays.copyOf( _fitSide, capacity );
+            _priority = Arrays.copyOf( _priority, capacity );
+            _stack = Arrays.copyOf( _stack, 2 * capacity + 2 );
+        }
+        final int pair = _count;
+        _count += 2;
+        return pair;
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.thiesen.cogitter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Starts git processes in a repository.
+ */
+final class Git {
+
+    private Git() {
+        // utility class
+    }
+
+    static Process start( final File repo, final String... arguments ) throws IOException {
+        final List<String> command = Lists.newArrayList( "git" );
+        command.addAll( Lists.newArrayList( arguments ) );
+        final ProcessBuilder builder = new ProcessBuilder( command );
+        builder.directory( repo );
+        return builder.start();
+    }
+
+    static BufferedReader reader( final Process process ) {
+        return new BufferedReader( new InputStreamReader( process.getInputStream(), GitPaths.UTF8 ) );
+    }
+
+    /**
+     * Runs the command and returns its output lines, or <code>null</code> if it failed.
+     */
+    static List<String> lines( final File repo, final String... arguments ) throws IOException, InterruptedException {
+        final Process process = start( repo, arguments );
+        final BufferedReader reader = reader( process );
+
+        final List<String> lines = Lists.newArrayList();
+        String line;
+        while ( ( line = reader.readLine() ) != null ) {
+            lines.add( line );
+        }
+        reader.close();
+        return process.waitFor() == 0 ? lines : null;
+    }
+
+    /**
+     * Runs the command, ignoring its output, and returns the exit code.
+     */
+    static int run( final File repo, final String... arguments ) throws IOException, InterruptedException {
+        final Process process = start( repo, arguments );
+        ByteStreams.toByteArray( process.getInputStream() );
+        return process.waitFor();
+    }
+
+}
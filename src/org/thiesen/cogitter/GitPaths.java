@@ -0,0 +1,54 @@
+package org.thiesen.cogitter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Helpers for path names as printed by git commands.
+ */
+final class GitPaths {
+
+    static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private GitPaths() {
+        // utility class
+    }
+
+    /**
+     * Reverts the C-style quoting git applies to path names containing special or non-ASCII
+     * characters (see <code>core.quotePath</code>). Unquoted names are returned as they are.
+     */
+    static String unquote( final String path ) {
+        if ( path.length() < 2 || path.charAt( 0 ) != '"' || path.charAt( path.length() - 1 ) != '"' ) {
+            return path;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream( path.length() );
+        for ( int i = 1; i < path.length() - 1; i++ ) {
+            final char c = path.charAt( i );
+            if ( c != '\\' ) {
+                final byte[] encoded = String.valueOf( c ).getBytes( UTF8 );
+                bytes.write( encoded, 0, encoded.length );
+                continue;
+            }
+            final char escaped = path.charAt( ++i );
+            switch ( escaped ) {
+                case 'a': bytes.write( 7 ); break;
+                case 'b': bytes.write( '\b' ); break;
+                case 't': bytes.write( '\t' ); break;
+                case 'n': bytes.write( '\n' ); break;
+                case 'v': bytes.write( 11 ); break;
+                case 'f': bytes.write( '\f' ); break;
+                case 'r': bytes.write( '\r' ); break;
+                case '0': case '1': case '2': case '3':
+                    bytes.write( Integer.parseInt( path.substring( i, i + 3 ), 8 ) );
+                    i += 2;
+                    break;
+                default: bytes.write( escaped ); break;
+            }
+        }
+
+        return new String( bytes.toByteArray(), UTF8 );
+    }
+
+}
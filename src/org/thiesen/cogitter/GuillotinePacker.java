@@ -0,0 +1,137 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A guillotine packer: the free space is a list of disjoint rectangles. A new rectangle goes into
+ * the free one it leaves the least area of, at its top left corner, and the rest of that free
+ * rectangle is cut in two by a straight cut through the whole of it. The cut runs along the
+ * shorter leftover, which keeps the larger of the two pieces as square as possible.
+ * </p>
+ * <p>
+ * Unlike the binary tree it picks the best fitting place instead of the first, and unlike
+ * MaxRects its free rectangles never overlap, so an insert costs only a walk over them.
+ * </p>
+ */
+final class GuillotinePacker implements Packer {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int _width;
+    private final int _height;
+
+    private int[] _freeX = new int[INITIAL_CAPACITY];
+    private int[] _freeY = new int[INITIAL_CAPACITY];
+    private int[] _freeWidth = new int[INITIAL_CAPACITY];
+    private int[] _freeHeight = new int[INITIAL_CAPACITY];
+    private int _free;
+
+    private int[] _x = new int[INITIAL_CAPACITY];
+    private int[] _y = new int[INITIAL_CAPACITY];
+    private int _placed;
+
+    GuillotinePacker( final int width, final int height ) {
+        _width = width;
+        _height = height;
+        reset();
+    }
+
+    @Override
+    public void reset() {
+        _free = 0;
+        _placed = 0;
+        addFree( 0, 0, _width, _height );
+    }
+
+    @Override
+    public int insert( final int width, final int height ) {
+        int best = -1;
+        long bestArea = Long.MAX_VALUE;
+        for ( int i = 0; i < _free; i++ ) {
+            if ( width > _freeWidth[i] || height > _freeHeight[i] ) {
+                continue;
+            }
+            final long area = (long)_freeWidth[i] * _freeHeight[i] - (long)width * height;
+            if ( area < bestArea ) {
+                best = i;
+                bestArea = area;
+            }
+        }
+        if ( best < 0 ) {
+            return -1;
+        }
+
+        final int x = _freeX[best];
+        final int y = _freeY[best];
+        final int freeWidth = _freeWidth[best];
+        final int freeHeight = _freeHeight[best];
+        removeFree( best );
+
+        final int leftoverWidth = freeWidth - width;
+        final int leftoverHeight = freeHeight - height;
+        if ( leftoverWidth <= leftoverHeight ) {
+            // horizontal cut, the piece below spans the whole width
+            addFree( x, y + height, freeWidth, leftoverHeight );
+            addFree( x + width, y, leftoverWidth, height );
+        } else {
+            // vertical cut, the piece to the right spans the whole height
+            addFree( x, y + height, width, leftoverHeight );
+            addFree( x + width, y, leftoverWidth, freeHeight );
+        }
+        return place( x, y );
+    }
+
+    @Override
+    public int x( final int handle ) {
+        return _x[handle];
+    }
+
+    @Override
+    public int y( final int handle ) {
+        return _y[handle];
+    }
+
+    /**
+     * Adds a free rectangle unless it is empty.
+     */
+    private void addFree( final int x, final int y, final int width, final int height ) {
+        if ( width <= 0 || height <= 0 ) {
+            return;
+        }
+        if ( _free == _freeX.length ) {
+            final int capacity = _free * 2;
+            _freeX = Arrays.copyOf( _freeX, capacity );
+            _freeY = Arrays.copyOf( _freeY, capacity );
+            _freeWidth = Arrays.copyOf( _freeWidth, capacity );
+            _freeHeight = Arrays.copyOf( _freeHeight, capacity );
+        }
+        _freeX[_free] = x;
+        _freeY[_free] = y;
+        _freeWidth[_free] = width;
+        _freeHeight[_free] = height;
+        _free++;
+    }
+
+    /**
+     * Removes a free rectangle by moving the last one into its place.
+     */
+    private void removeFree( final int index ) {
+        _free--;
+        _freeX[index] = _freeX[_free];
+        _freeY[index] = _freeY[_free];
+        _freeWidth[index] = _freeWidth[_free];
+        _freeHeight[index] = _freeHeight[_free];
+    }
+
+    private int place( final int x, final int y ) {
+        if ( _placed == _x.length ) {
+            _x = Arrays.copyOf( _x, _placed * 2 );
+            _y = Arrays.copyOf( _y, _placed * 2 );
+        }
+        _x[_placed] = x;
+        _y[_placed] = y;
+        return _placed++;
+    }
+
+}
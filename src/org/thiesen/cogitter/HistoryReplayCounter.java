@@ -0,0 +1,428 @@
+package org.thiesen.cogitter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * <p>
+ * Computes the per-author line counts of a whole repository from one <code>git log -p</code>
+ * stream instead of starting a <code>git annotate</code> process for every file.
+ * </p>
+ * <p>
+ * The history is replayed oldest commit first. For every file the author of each line is kept
+ * as an index into the author table and the diff hunks of each commit are applied to these
+ * arrays, so after the last commit they hold the attribution <code>git blame</code> computes
+ * for HEAD. Merges are resolved the way blame does it: a file identical to one of the parents
+ * is taken over from that parent, otherwise unchanged lines are inherited from the parents in
+ * order and the rest is attributed to the merge itself. Renames are followed, copies are not.
+ * Rename detection runs over whole commits, so if several new files are similar to the same
+ * removed one, blame (which searches per path) can pick a different source.
+ * </p>
+ * <p>
+ * The number of git processes is fixed: <code>rev-list</code> to learn the commit graph and
+ * <code>log</code> for the diffs. Uncommitted changes are not seen, the counts are those of HEAD.
+ * </p>
+ */
+class HistoryReplayCounter {
+
+    private final static int UNASSIGNED = -1;
+    private final static int[] EMPTY = new int[0];
+
+    private static class Hunk {
+        private final int _oldStart;
+        private final int _oldCount;
+        private final int _newCount;
+
+        private Hunk( final int oldStart, final int oldCount, final int newCount ) {
+            // with -U0 an empty side names the line after which the change happens
+            _oldStart = oldCount == 0 ? oldStart : oldStart - 1;
+            _oldCount = oldCount;
+            _newCount = newCount;
+        }
+    }
+
+    private static class FileDiff {
+        private String _oldPath;
+        private String _newPath;
+        private boolean _binary;
+        private final List<Hunk> _hunks = Lists.newArrayList();
+    }
+
+    private static class Commit {
+        private final String _id;
+        private final String[] _parents;
+        private final List<List<FileDiff>> _diffs;
+        private final boolean[] _diffed;
+        private int _author = UNASSIGNED;
+        // the diffs of each side by new path, built on the first lookup once the commit is read
+        private List<Map<String, FileDiff>> _byPath;
+
+        private Commit( final String id, final String[] parents ) {
+            _id = id;
+            _parents = parents;
+            final int sides = Math.max( parents.length, 1 );
+            _diffs = Lists.newArrayListWithCapacity( sides );
+            for ( int i = 0; i < sides; i++ ) {
+                _diffs.add( Lists.<FileDiff>newArrayList() );
+            }
+            _diffed = new boolean[sides];
+        }
+
+        private FileDiff find( final int parent, final String path ) {
+            if ( _byPath == null ) {
+                _byPath = Lists.newArrayListWithCapacity( _diffs.size() );
+                for ( final List<FileDiff> diffs : _diffs ) {
+                    final Map<String, FileDiff> byPath = Maps.newHashMapWithExpectedSize( diffs.size() );
+                    for ( final FileDiff diff : diffs ) {
+                        if ( diff._newPath != null && !byPath.containsKey( diff._newPath ) ) {
+                            byPath.put( diff._newPath, diff );
+                        }
+                    }
+                    _byPath.add( byPath );
+                }
+            }
+            return _byPath.get( parent ).get( path );
+        }
+    }
+
+    private final File _repo;
+    private final AuthorTable _authors;
+    private final Map<String, Integer> _pendingChildren = Maps.newHashMap();
+    private final Map<String, Map<String, int[]>> _states = Maps.newHashMap();
+    private String _head;
+
+    HistoryReplayCounter( final File repo, final AuthorTable authors ) {
+        _repo = repo;
+        _authors = authors;
+    }
+
+    /**
+     * Replays the history of HEAD and adds the lines of the given files to the counter. If an
+     * index is given the counts of every file are recorded there as well.
+     */
+    void count( final Iterable<SourceFile> files, final AuthorCounter counter, final OwnershipIndex index )
+    throws IOException, InterruptedException {
+        readGraph();
+        if ( _head == null ) {
+            return;
+        }
+        replay();
+
+        final Map<String, int[]> head = _states.get( _head );
+        final int[] perFile = new int[_authors.size()];
+        final int[] fileAuthors = new int[perFile.length];
+        final int[] fileLines = new int[perFile.length];
+        for ( final SourceFile file : files ) {
+            final int[] lines = head.get( file.getPath() );
+            if ( lines == null ) {
+                continue;
+            }
+            int authorCount = 0;
+            for ( final int author : lines ) {
+                if ( perFile[author]++ == 0 ) {
+                    fileAuthors[authorCount++] = author;
+                }
+            }
+            for ( int i = 0; i < authorCount; i++ ) {
+                fileLines[i] = perFile[fileAuthors[i]];
+                perFile[fileAuthors[i]] = 0;
+                counter.add( fileAuthors[i], fileLines[i] );
+            }
+            if ( index != null ) {
+                index.put( file, fileAuthors, fileLines, authorCount );
+            }
+        }
+    }
+
+    private void readGraph() throws IOException, InterruptedException {
+        final Process process = Git.start( _repo, "rev-list", "--topo-order", "--parents", "HEAD" );
+        final BufferedReader reader = Git.reader( process );
+
+        String line;
+        while ( ( line = reader.readLine() ) != null ) {
+            final String[] ids = line.trim().split( " " );
+            if ( _head == null ) {
+                _head = ids[0];
+                // the state of HEAD is read once more after the replay
+                _pendingChildren.put( _head, Integer.valueOf( 1 ) );
+            }
+            for ( int i = 1; i < ids.length; i++ ) {
+                final Integer pending = _pendingChildren.get( ids[i] );
+                _pendingChildren.put( ids[i], Integer.valueOf( pending == null ? 1 : pending.intValue() + 1 ) );
+            }
+        }
+        reader.close();
+        process.waitFor();
+    }
+
+    private void replay() throws IOException, InterruptedException {
+        final Process process = Git.start( _repo, "log", "--topo-order", "--reverse", "--parents", "-m", "-p", "-U0", "-M", "--root",
+                "--use-mailmap", "--no-color", "--no-ext-diff", "--src-prefix=a/", "--dst-prefix=b/", "--format=medium", "HEAD" );
+        final BufferedReader reader = Git.reader( process );
+
+        Commit commit = null;
+        FileDiff file = null;
+        int side = 0;
+        int skip = 0;
+        String line;
+        while ( ( line = reader.readLine() ) != null ) {
+            if ( skip > 0 ) {
+                if ( !line.startsWith( "\\" ) ) {
+                    skip--;
+                }
+                continue;
+            }
+
+            if ( line.startsWith( "commit " ) ) {
+                final String[] header = line.substring( "commit ".length() ).split( " " );
+                if ( commit != null && !commit._id.equals( header[0] ) ) {
+                    apply( commit );
+                    commit = null;
+                }
+
+                int parentCount = header.length - 1;
+                String from = null;
+                if ( parentCount >= 2 && header[parentCount - 1].equals( "(from" ) ) {
+                    from = header[parentCount].substring( 0, header[parentCount].length() - 1 );
+                    parentCount -= 2;
+                }
+                if ( commit == null ) {
+                    final String[] parents = new String[parentCount];
+                    System.arraycopy( header, 1, parents, 0, parentCount );
+                    commit = new Commit( header[0], parents );
+                }
+                side = from == null ? 0 : Lists.newArrayList( commit._parents ).indexOf( from );
+                commit._diffed[side] = true;
+                file = null;
+            } else if ( commit == null ) {
+                continue;
+            } else if ( line.startsWith( "diff --git " ) ) {
+                file = new FileDiff();
+                file._oldPath = file._newPath = pathOfDiffHeader( line.substring( "diff --git ".length() ) );
+                commit._diffs.get( side ).add( file );
+            } else if ( file == null ) {
+                if ( line.startsWith( "Author: " ) && commit._author == UNASSIGNED ) {
+                    commit._author = author( line );
+                }
+            } else if ( line.startsWith( "@@ " ) ) {
+                final Hunk hunk = parseHunk( line );
+                file._hunks.add( hunk );
+                skip = hunk._oldCount + hunk._newCount;
+            } else if ( line.startsWith( "rename from " ) ) {
+                file._oldPath = GitPaths.unquote( line.substring( "rename from ".length() ) );
+            } else if ( line.startsWith( "rename to " ) ) {
+                file._newPath = GitPaths.unquote( line.substring( "rename to ".length() ) );
+            } else if ( line.startsWith( "new file mode " ) ) {
+                file._oldPath = null;
+            } else if ( line.startsWith( "deleted file mode " ) ) {
+                file._newPath = null;
+            } else if ( line.startsWith( "Binary files " ) ) {
+                file._binary = true;
+            }
+        }
+        if ( commit != null ) {
+            apply( commit );
+        }
+
+        reader.close();
+        if ( process.waitFor() != 0 ) {
+            throw new IOException( "git log failed in " + _repo );
+        }
+    }
+
+    private void apply( final Commit commit ) {
+        final boolean merge = commit._parents.length > 1;
+        final Map<String, int[]> parent = commit._parents.length == 0 ? Maps.<String, int[]>newHashMap() : state( commit._parents[0] );
+        final Map<String, int[]> result = commit._parents.length == 0 ? parent : take( commit._parents[0] );
+
+        final Set<String> removed = Sets.newHashSet();
+        final Map<String, int[]> updated = Maps.newHashMap();
+        for ( final FileDiff diff : commit._diffs.get( 0 ) ) {
+            if ( diff._oldPath != null && !diff._oldPath.equals( diff._newPath ) ) {
+                removed.add( diff._oldPath );
+            }
+            if ( diff._newPath == null ) {
+                continue;
+            }
+            if ( diff._binary ) {
+                removed.add( diff._newPath );
+                continue;
+            }
+
+            final int[] lines = patch( lines( parent, diff._oldPath ), diff._hunks, merge ? UNASSIGNED : commit._author );
+            updated.put( diff._newPath, merge ? resolveMerge( commit, diff._newPath, lines ) : lines );
+        }
+        result.keySet().removeAll( removed );
+        result.putAll( updated );
+
+        for ( int i = 1; i < commit._parents.length; i++ ) {
+            release( commit._parents[i] );
+        }
+        final Integer pending = _pendingChildren.get( commit._id );
+        if ( pending != null ) {
+            _states.put( commit._id, result );
+        }
+    }
+
+    private int[] resolveMerge( final Commit commit, final String path, final int[] lines ) {
+        for ( int i = 1; i < commit._parents.length; i++ ) {
+            if ( !commit._diffed[i] || commit.find( i, path ) == null ) {
+                final int[] identical = state( commit._parents[i] ).get( path );
+                if ( identical != null ) {
+                    return identical;
+                }
+            }
+        }
+
+        for ( int i = 1; i < commit._parents.length; i++ ) {
+            final FileDiff diff = commit.find( i, path );
+            if ( diff != null && !diff._binary ) {
+                inherit( lines, lines( state( commit._parents[i] ), diff._oldPath ), diff._hunks );
+            }
+        }
+        for ( int i = 0; i < lines.length; i++ ) {
+            if ( lines[i] == UNASSIGNED ) {
+                lines[i] = commit._author;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Applies the hunks to the owners of the old file, new lines are owned by <code>author</code>.
+     * Arrays are never modified once stored so unchanged files can be shared between states.
+     */
+    private static int[] patch( final int[] old, final List<Hunk> hunks, final int author ) {
+        if ( hunks.isEmpty() ) {
+            return old;
+        }
+
+        int length = old.length;
+        for ( final Hunk hunk : hunks ) {
+            length += hunk._newCount - hunk._oldCount;
+        }
+        final int[] result = new int[Math.max( length, 0 )];
+
+        int oldPos = 0;
+        int newPos = 0;
+        for ( final Hunk hunk : hunks ) {
+            final int unchanged = Math.min( hunk._oldStart, old.length ) - oldPos;
+            if ( unchanged > 0 ) {
+                System.arraycopy( old, oldPos, result, newPos, Math.min( unchanged, result.length - newPos ) );
+                newPos += unchanged;
+            }
+            for ( int i = 0; i < hunk._newCount && newPos < result.length; i++ ) {
+                result[newPos++] = author;
+            }
+            oldPos = Math.min( hunk._oldStart + hunk._oldCount, old.length );
+        }
+        if ( oldPos < old.length && newPos < result.length ) {
+            System.arraycopy( old, oldPos, result, newPos, Math.min( old.length - oldPos, result.length - newPos ) );
+        }
+        return result;
+    }
+
+    /**
+     * Fills the still unassigned lines that are unchanged against another parent of a merge.
+     */
+    private static void inherit( final int[] lines, final int[] old, final List<Hunk> hunks ) {
+        int oldPos = 0;
+        int newPos = 0;
+        for ( final Hunk hunk : hunks ) {
+            final int unchanged = Math.min( hunk._oldStart, old.length ) - oldPos;
+            for ( int i = 0; i < unchanged && newPos + i < lines.length; i++ ) {
+                if ( lines[newPos + i] == UNASSIGNED ) {
+                    lines[newPos + i] = old[oldPos + i];
+                }
+            }
+            newPos += Math.max( unchanged, 0 ) + hunk._newCount;
+            oldPos = Math.min( hunk._oldStart + hunk._oldCount, old.length );
+        }
+        for ( int i = 0; oldPos + i < old.length && newPos + i < lines.length; i++ ) {
+            if ( lines[newPos + i] == UNASSIGNED ) {
+                lines[newPos + i] = old[oldPos + i];
+            }
+        }
+    }
+
+    private static int[] lines( final Map<String, int[]> state, final String path ) {
+        final int[] lines = path == null ? null : state.get( path );
+        return lines == null ? EMPTY : lines;
+    }
+
+    private Map<String, int[]> state( final String commit ) {
+        final Map<String, int[]> state = _states.get( commit );
+        return state == null ? Maps.<String, int[]>newHashMap() : state;
+    }
+
+    /**
+     * Hands out the state of a parent for modification. The last child gets the instance
+     * itself, earlier children get a copy that shares the immutable line arrays.
+     */
+    private Map<String, int[]> take( final String commit ) {
+        final Map<String, int[]> state = state( commit );
+        if ( release( commit ) ) {
+            return state;
+        }
+        return Maps.newHashMap( state );
+    }
+
+    /**
+     * @return <code>true</code> if this was the last pending child and the state got dropped
+     */
+    private boolean release( final String commit ) {
+        final Integer pending = _pendingChildren.get( commit );
+        if ( pending == null || pending.intValue() <= 1 ) {
+            _pendingChildren.remove( commit );
+            _states.remove( commit );
+            return true;
+        }
+        _pendingChildren.put( commit, Integer.valueOf( pending.intValue() - 1 ) );
+        return false;
+    }
+
+    private int author( final String line ) {
+        final int start = line.lastIndexOf( '<' );
+        final int end = line.lastIndexOf( '>' );
+        final String email = start >= 0 && end > start ? line.substring( start + 1, end ) : line.substring( "Author: ".length() );
+        return _authors.intern( email.toLowerCase( Locale.ROOT ) );
+    }
+
+    private static String pathOfDiffHeader( final String paths ) {
+        if ( paths.startsWith( "\"" ) ) {
+            final int end = paths.indexOf( "\" ", 1 );
+            return GitPaths.unquote( paths.substring( 0, end + 1 ) ).substring( 2 );
+        }
+        // "a/<path> b/<path>", renames are taken from the extended header lines
+        return paths.substring( 2, 2 + ( paths.length() - 5 ) / 2 );
+    }
+
+    private static Hunk parseHunk( final String line ) {
+        final int[] numbers = new int[] { 0, 1, 0, 1 };
+        int index = -1;
+        for ( int i = 3; i < line.length() && index < 4; i++ ) {
+            final char c = line.charAt( i );
+            if ( c == '-' || c == '+' ) {
+                index = c == '-' ? 0 : 2;
+                numbers[index] = 0;
+            } else if ( c == ',' ) {
+                numbers[++index] = 0;
+            } else if ( c >= '0' && c <= '9' && index >= 0 ) {
+                numbers[index] = numbers[index] * 10 + ( c - '0' );
+            } else if ( c == '@' ) {
+                break;
+            }
+        }
+        return new Hunk( numbers[0], numbers[1], numbers[3] );
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.thiesen.cogitter;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * <p>
+ * Draws an identicon for an email without asking any server: a 5 by 5 grid, mirrored at the
+ * middle column, in one color on a light background, all taken from the md5 of the email that
+ * also names the avatar on gravatar. The same email always gets the same picture.
+ * </p>
+ * <p>
+ * The first 15 hex digits of the hash decide the cells of the left three columns, an odd digit
+ * fills its cell. The last seven pick hue, saturation and brightness. The grid is drawn right at
+ * the size of the tile, with a margin of half a cell, so it needs no scaling.
+ * </p>
+ */
+final class Identicon {
+
+    private static final int CELLS = 5;
+    private static final Color BACKGROUND = new Color( 0xf0f0f0 );
+
+    private Identicon() {
+        // utility class
+    }
+
+    /**
+     * @return a new <code>TYPE_INT_RGB</code> image of <code>size</code> by <code>size</code>
+     */
+    static BufferedImage render( final String email, final int size ) {
+        final String hash = Main.MD5Util.md5Hex( email );
+        final float hue = Integer.parseInt( hash.substring( 25, 28 ), 16 ) / 4096f;
+        final float saturation = 0.45f + Integer.parseInt( hash.substring( 28, 30 ), 16 ) / 255f * 0.2f;
+        final float brightness = 0.55f + Integer.parseInt( hash.substring( 30, 32 ), 16 ) / 255f * 0.2f;
+
+        final BufferedImage image = new BufferedImage( size, size, BufferedImage.TYPE_INT_RGB );
+        final Graphics2D graphics = image.createGraphics();
+        graphics.setColor( BACKGROUND );
+        graphics.fillRect( 0, 0, size, size );
+        graphics.setColor( Color.getHSBColor( hue, saturation, brightness ) );
+
+        final double cell = size / ( CELLS + 1.0 );
+        for ( int column = 0; column < ( CELLS + 1 ) / 2; column++ ) {
+            for ( int row = 0; row < CELLS; row++ ) {
+                if ( Character.digit( hash.charAt( column * CELLS + row ), 16 ) % 2 == 0 ) {
+                    continue;
+                }
+                fill( graphics, cell, column, row );
+                fill( graphics, cell, CELLS - 1 - column, row );
+            }
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Fills a cell from edge to rounded edge, so that neighbouring cells meet without a gap.
+     */
+    private static void fill( final Graphics2D graphics, final double cell, final int column, final int row ) {
+        final int left = (int)Math.round( ( column + 0.5 ) * cell );
+        final int top = (int)Math.round( ( row + 0.5 ) * cell );
+        graphics.fillRect( left, top, (int)Math.round( ( column + 1.5 ) * cell ) - left, (int)Math.round( ( row + 1.5 ) * cell ) - top );
+    }
+
+}
@@ -19,11 +19,18 @@ import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
@@ -33,7 +40,7 @@ import javax.imageio.ImageIO;
  * </p>
  * 
  * <p>
- * See http://www.blackpawn.com/texts/lightmaps/default.html for details.
+ * See http://www.blackpawn.com/texts/lightmaps/default.html for details. The tree is kept by a {@link FlatRectanglePacker}.
  * </p>
  * 
  * <p>
@@ -45,6 +52,14 @@ import javax.imageio.ImageIO;
  * </p>
  * 
  * <p>
+ * To place many images at once, pass their names and sizes to {@link #plan(List)} first. It only computes where they go and
+ * reports the ones that do not fit instead of failing, so the layout can also be used without any pixels, say for an HTML image
+ * map. The output image is only allocated once pixels are needed. {@link #compose(Plan, List, ExecutorService)} then copies the images into the output image, each one by its own task
+ * straight into the pixel array. Placed images never overlap, including their padding and duplicated border, so no locking is
+ * needed.
+ * </p>
+ * 
+ * <p>
  * See the {@link #main(String[])} method for an example that will generate 100 random images, pack them and then output the
  * packed image as a png along with a json file holding the image descriptors.
  * </p>
@@ -63,29 +78,73 @@ import javax.imageio.ImageIO;
  * 
  */
 public class ImagePacker {
-    static final class Node {
-        public Node leftChild;
-        public Node rightChild;
-        public Rectangle rect;
-        public String leaveName;
-
-        public Node(final int x, final int y, final int width, final int height,
-                final Node leftChild, final Node rightChild, final String leaveName) {
-            this .rect = new Rectangle(x, y, width, height);
-            this .leftChild = leftChild;
-            this .rightChild = rightChild;
-            this .leaveName = leaveName;
+    /**
+     * An image to be placed, by name and size.
+     */
+    public static final class Tile {
+        public final String name;
+        public final int width;
+        public final int height;
+
+        public Tile(final String name, final int width, final int height) {
+            this .name = name;
+            this .width = width;
+            this .height = height;
+        }
+    }
+
+    /**
+     * Where a {@link Tile} went.
+     */
+    public static final class Placement {
+        public final Tile tile;
+        /**
+         * The area of the image within the output image, without padding and border, or <code>null</code> if it did not fit.
+         */
+        public final Rectangle rect;
+
+        Placement(final Tile tile, final Rectangle rect) {
+            this .tile = tile;
+            this .rect = rect;
+        }
+
+        public boolean isPlaced() {
+            return rect != null;
+        }
+    }
+
+    /**
+     * The placements of a call to {@link #plan(List)}, in the order of the tiles.
+     */
+    public static final class Plan {
+        private final List<Placement> placements;
+
+        Plan(final List<Placement> placements) {
+            this .placements = Collections.unmodifiableList(placements);
         }
 
-        public Node() {
-            rect = new Rectangle();
+        public List<Placement> getPlacements() {
+            return placements;
+        }
+
+        /**
+         * @return the placements of the tiles that did not fit
+         */
+        public List<Placement> getFailures() {
+            final List<Placement> failures = new ArrayList<Placement>();
+            for (final Placement placement : placements)
+                if (!placement.isPlaced())
+                    failures.add(placement);
+            return failures;
         }
     }
 
+    final int width;
+    final int height;
     BufferedImage image;
     int padding;
     boolean duplicateBorder;
-    Node root;
+    FlatRectanglePacker packer;
     Map<String, Rectangle> rects;
 
     /**
@@ -102,11 +161,11 @@ public class ImagePacker {
      */
     public ImagePacker(final int width, final int height, final int padding,
             final boolean duplicateBorder) {
-        this .image = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_RGB);
+        this .width = width;
+        this .height = height;
         this .padding = padding;
         this .duplicateBorder = duplicateBorder;
-        this .root = new Node(0, 0, width, height, null, null, null);
+        this .packer = new FlatRectanglePacker(width, height, padding + (duplicateBorder ? 1 : 0));
         this .rects = new HashMap<String, Rectangle>();
     }
 
@@ -121,127 +180,119 @@ public class ImagePacker {
      * @throws RuntimeException in case the image did not fit or you specified a duplicate name
      */
     public void insertImage(final String name, final BufferedImage image) {
-        if (rects.containsKey(name))
-            throw new RuntimeException("Key with name '" + name
-                    + "' is already in map");
+        final Placement placement = place(new Tile(name, image.getWidth(), image.getHeight()));
+        if (!placement.isPlaced())
+            throw new RuntimeException("Image didn't fit");
 
-        int borderPixels = padding + (duplicateBorder ? 1 : 0);
-        borderPixels <<= 1;
-        Rectangle rect = new Rectangle(0, 0, image.getWidth()
-                + borderPixels, image.getHeight() + borderPixels);
-        final Node node = insert(root, rect);
+        copy(image, placement.rect, AvatarScaler.pixels(getImage()));
+    }
 
-        if (node == null)
-            throw new RuntimeException("Image didn't fit");
+    /**
+     * <p>
+     * Places the tiles in the given order without drawing anything. Tiles that do not fit are returned without a rectangle and
+     * take no space. The placed ones are also added to {@link #getRects()}, and later calls continue with the space left.
+     * </p>
+     * 
+     * @param tiles the names and sizes of the images
+     * @return the placement of every tile
+     * @throws RuntimeException in case you specified a duplicate name
+     */
+    public Plan plan(final List<Tile> tiles) {
+        final List<Placement> placements = new ArrayList<Placement>(tiles.size());
+        for (final Tile tile : tiles)
+            placements.add(place(tile));
+        return new Plan(placements);
+    }
 
-        node.leaveName = name;
-        rect = new Rectangle(node.rect);
-        rect.width -= borderPixels;
-        rect.height -= borderPixels;
-        borderPixels >>= 1;
-        rect.x += borderPixels;
-        rect.y += borderPixels;
-        rects.put(name, rect);
-
-        final Graphics2D g = this .image.createGraphics();
-        g.drawImage(image, rect.x, rect.y, null);
-
-        // not terribly efficient (as the rest of the code) but will do :p
-        if (duplicateBorder) {
-            g.drawImage(image, rect.x, rect.y - 1, rect.x + rect.width,
-                    rect.y, 0, 0, image.getWidth(), 1, null);
-            g.drawImage(image, rect.x, rect.y + rect.height, rect.x
-                    + rect.width, rect.y + rect.height + 1, 0, image
-                    .getHeight() - 1, image.getWidth(), image
-                    .getHeight(), null);
-
-            g.drawImage(image, rect.x - 1, rect.y, rect.x, rect.y
-                    + rect.height, 0, 0, 1, image.getHeight(), null);
-            g.drawImage(image, rect.x + rect.width, rect.y, rect.x
-                    + rect.width + 1, rect.y + rect.height, image
-                    .getWidth() - 1, 0, image.getWidth(), image
-                    .getHeight(), null);
-
-            g.drawImage(image, rect.x - 1, rect.y - 1, rect.x, rect.y,
-                    0, 0, 1, 1, null);
-            g.drawImage(image, rect.x + rect.width, rect.y - 1, rect.x
-                    + rect.width + 1, rect.y, image.getWidth() - 1, 0,
-                    image.getWidth(), 1, null);
-
-            g.drawImage(image, rect.x - 1, rect.y + rect.height,
-                    rect.x, rect.y + rect.height + 1, 0, image
-                    .getHeight() - 1, 1, image.getHeight(),
-                    null);
-            g.drawImage(image, rect.x + rect.width, rect.y
-                    + rect.height, rect.x + rect.width + 1, rect.y
-                    + rect.height + 1, image.getWidth() - 1, image
-                    .getHeight() - 1, image.getWidth(), image
-                    .getHeight(), null);
+    /**
+     * <p>
+     * Copies the images of a plan into the output image, each placed one by its own task on the executor. Images of tiles that
+     * did not fit are skipped.
+     * </p>
+     * 
+     * @param plan a plan of this packer
+     * @param images the images of the tiles, in the order of the plan
+     * @throws IllegalArgumentException in case there is not one image per tile or a placed image is not of the size of its tile
+     */
+    public void compose(final Plan plan, final List<BufferedImage> images, final ExecutorService executor)
+    throws InterruptedException {
+        final List<Placement> placements = plan.getPlacements();
+        if (images.size() != placements.size())
+            throw new IllegalArgumentException("Got " + images.size() + " images for " + placements.size() + " tiles");
+        for (int i = 0; i < images.size(); i++) {
+            final Tile tile = placements.get(i).tile;
+            final BufferedImage image = images.get(i);
+            if (placements.get(i).isPlaced() && (image.getWidth() != tile.width || image.getHeight() != tile.height))
+                throw new IllegalArgumentException("Image '" + tile.name + "' is " + image.getWidth() + "x" + image.getHeight()
+                        + " but was planned as " + tile.width + "x" + tile.height);
         }
 
-        g.dispose();
+        final int[] pixels = AvatarScaler.pixels(getImage());
+        final List<Future<?>> copies = new ArrayList<Future<?>>();
+        for (int i = 0; i < images.size(); i++) {
+            final Placement placement = placements.get(i);
+            if (!placement.isPlaced())
+                continue;
+            final BufferedImage image = images.get(i);
+            copies.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    copy(image, placement.rect, pixels);
+                }
+            }));
+        }
+        for (final Future<?> copy : copies) {
+            try {
+                copy.get();
+            } catch (final ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
     }
 
-    private Node insert(final Node node, final Rectangle rect) {
-        if (node.leaveName == null && node.leftChild != null
-                && node.rightChild != null) {
-            Node newNode = null;
-
-            newNode = insert(node.leftChild, rect);
-            if (newNode == null)
-                newNode = insert(node.rightChild, rect);
-
-            return newNode;
-        } else {
-            if (node.leaveName != null)
-                return null;
-
-            if (node.rect.width == rect.width
-                    && node.rect.height == rect.height)
-                return node;
-
-            if (node.rect.width < rect.width
-                    || node.rect.height < rect.height)
-                return null;
-
-            node.leftChild = new Node();
-            node.rightChild = new Node();
-
-            final int deltaWidth = node.rect.width - rect.width;
-            final int deltaHeight = node.rect.height - rect.height;
-
-            if (deltaWidth > deltaHeight) {
-                node.leftChild.rect.x = node.rect.x;
-                node.leftChild.rect.y = node.rect.y;
-                node.leftChild.rect.width = rect.width;
-                node.leftChild.rect.height = node.rect.height;
-
-                node.rightChild.rect.x = node.rect.x + rect.width;
-                node.rightChild.rect.y = node.rect.y;
-                node.rightChild.rect.width = node.rect.width
-                - rect.width;
-                node.rightChild.rect.height = node.rect.height;
-            } else {
-                node.leftChild.rect.x = node.rect.x;
-                node.leftChild.rect.y = node.rect.y;
-                node.leftChild.rect.width = node.rect.width;
-                node.leftChild.rect.height = rect.height;
-
-                node.rightChild.rect.x = node.rect.x;
-                node.rightChild.rect.y = node.rect.y + rect.height;
-                node.rightChild.rect.width = node.rect.width;
-                node.rightChild.rect.height = node.rect.height
-                - rect.height;
-            }
+    private Placement place(final Tile tile) {
+        if (rects.containsKey(tile.name))
+            throw new RuntimeException("Key with name '" + tile.name
+                    + "' is already in map");
+
+        final int node = packer.insert(tile.width, tile.height);
+        if (node < 0)
+            return new Placement(tile, null);
 
-            return insert(node.leftChild, rect);
+        final Rectangle rect = new Rectangle(packer.x(node), packer.y(node), tile.width, tile.height);
+        rects.put(tile.name, rect);
+        return new Placement(tile, rect);
+    }
+
+    /**
+     * Copies the image into the pixels of the output image at the rectangle, and its outermost pixels once more around it if
+     * the border is duplicated.
+     */
+    private void copy(final BufferedImage image, final Rectangle rect, final int[] pixels) {
+        final int[] source = AvatarScaler.pixels(AvatarScaler.intRgb(image));
+        final int stride = width;
+        for (int row = 0; row < rect.height; row++)
+            System.arraycopy(source, row * rect.width, pixels, (rect.y + row) * stride + rect.x, rect.width);
+
+        if (!duplicateBorder)
+            return;
+
+        System.arraycopy(source, 0, pixels, (rect.y - 1) * stride + rect.x, rect.width);
+        System.arraycopy(source, (rect.height - 1) * rect.width, pixels, (rect.y + rect.height) * stride + rect.x, rect.width);
+        for (int row = -1; row <= rect.height; row++) {
+            final int sourceRow = Math.min(Math.max(row, 0), rect.height - 1) * rect.width;
+            final int target = (rect.y + row) * stride;
+            pixels[target + rect.x - 1] = source[sourceRow];
+            pixels[target + rect.x + rect.width] = source[sourceRow + rect.width - 1];
         }
     }
 
     /**
-     * @return the output image
+     * @return the output image, created on first use so that planning alone needs no pixels
      */
     public BufferedImage getImage() {
+        if (image == null)
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
         return image;
     }
 
@@ -252,7 +303,7 @@ public class ImagePacker {
         return rects;
     }
 
-    public static void main(final String[] argv) throws IOException {
+    public static void main(final String[] argv) throws IOException, InterruptedException {
         final Random rand = new Random(0);
         final ImagePacker packer = new ImagePacker(512, 512, 1, true);
 
@@ -273,8 +324,18 @@ public class ImagePacker {
             }
         });
 
+        final List<Tile> tiles = new ArrayList<Tile>();
         for (int i = 0; i < images.length; i++)
-            packer.insertImage("" + i, images[i]);
+            tiles.add(new Tile("" + i, images[i].getWidth(), images[i].getHeight()));
+        final Plan plan = packer.plan(tiles);
+        System.out.println(plan.getFailures().size() + " images didn't fit");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            packer.compose(plan, Arrays.asList(images), executor);
+        } finally {
+            executor.shutdown();
+        }
 
         ImageIO.write(packer.getImage(), "png", new File("packed.png"));
     }
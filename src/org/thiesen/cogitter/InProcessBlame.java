@@ -0,0 +1,340 @@
+package org.thiesen.cogitter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * <p>
+ * Blames the files of HEAD on top of an {@link ObjectDatabase}, without any git process.
+ * </p>
+ * <p>
+ * Like <code>git blame</code> the lines of a file are passed from commit to parent, newest commit
+ * first: if a parent has the identical file all lines go to that parent, otherwise the lines a
+ * diff against the parents finds unchanged are passed to the parents in order, and what is left
+ * is attributed to the commit's author. Commits, trees and the lines of blobs are shared by all
+ * files and threads through the caches of the database and of this class.
+ * </p>
+ * <p>
+ * A file missing in a parent is followed to the file deleted in the commit that is most similar
+ * to it, if at least half of it is the same, as git does for renames. Copies are not followed, and
+ * uncommitted changes are not seen.
+ * </p>
+ */
+final class InProcessBlame {
+
+    /**
+     * Lines of one file version that are still to be attributed to a commit or its ancestors.
+     */
+    private static final class Suspect {
+        private final ObjectId _commitId;
+        private final ObjectDatabase.Commit _commit;
+        private final String _path;
+        private final byte[][] _pathComponents;
+        private final ObjectId _blob;
+        // ascending line numbers in _blob, a line can appear more than once after merges
+        private int[] _lines;
+
+        private Suspect( final ObjectId commitId, final ObjectDatabase.Commit commit, final String path, final ObjectId blob, final int[] lines ) {
+            _commitId = commitId;
+            _commit = commit;
+            _path = path;
+            _pathComponents = components( path );
+            _blob = blob;
+            _lines = lines;
+        }
+    }
+
+    /**
+     * A file only one of two trees has.
+     */
+    private static final class OnlyIn {
+        private final String _path;
+        private final ObjectId _blob;
+
+        private OnlyIn( final String path, final ObjectId blob ) {
+            _path = path;
+            _blob = blob;
+        }
+    }
+
+    private static final Comparator<Suspect> NEWEST_FIRST = new Comparator<Suspect>() {
+        @Override
+        public int compare( final Suspect o1, final Suspect o2 ) {
+            return Long.valueOf( o2._commit.getTime() ).compareTo( Long.valueOf( o1._commit.getTime() ) );
+        }
+    };
+
+    private final ObjectDatabase _objects;
+    private final ObjectId _head;
+    private final LruCache<ObjectId, LineDiff.Lines> _lines;
+    private final LruCache<String, List<OnlyIn>> _deleted;
+
+    /**
+     * @param cacheBytes the memory to use for the split up lines of file versions
+     */
+    InProcessBlame( final ObjectDatabase objects, final ObjectId head, final long cacheBytes ) {
+        _objects = objects;
+        _head = head;
+        _lines = new LruCache<ObjectId, LineDiff.Lines>( cacheBytes );
+        _deleted = new LruCache<String, List<OnlyIn>>( cacheBytes / 16 );
+    }
+
+    /**
+     * Adds the lines of the file in HEAD to the counter and, if given, records them in the index.
+     */
+    void count( final SourceFile file, final AuthorCounter counter, final OwnershipIndex index ) throws IOException {
+        final ObjectId blob = ObjectId.fromHex( file.getBlob() );
+
+        final int[] all = new int[lines( blob ).size()];
+        for ( int i = 0; i < all.length; i++ ) {
+            all[i] = i;
+        }
+
+        final PriorityQueue<Suspect> queue = new PriorityQueue<Suspect>( 64, NEWEST_FIRST );
+        final Map<ObjectId, List<Suspect>> pending = Maps.newHashMap();
+        int[] perAuthor = new int[64];
+        if ( all.length > 0 ) {
+            enqueue( queue, pending, _head, file.getPath(), blob, all, all.length );
+        }
+
+        while ( !queue.isEmpty() ) {
+            final Suspect suspect = queue.poll();
+            final List<Suspect> suspects = pending.get( suspect._commitId );
+            suspects.remove( suspect );
+            if ( suspects.isEmpty() ) {
+                pending.remove( suspect._commitId );
+            }
+
+            final int remaining = passToParents( suspect, queue, pending );
+            final int author = suspect._commit.getAuthor();
+            if ( author >= perAuthor.length ) {
+                perAuthor = Arrays.copyOf( perAuthor, Math.max( author + 1, perAuthor.length * 2 ) );
+            }
+            perAuthor[author] += remaining;
+        }
+
+        int authorCount = 0;
+        for ( final int lines : perAuthor ) {
+            if ( lines > 0 ) {
+                authorCount++;
+            }
+        }
+        final int[] authors = new int[authorCount];
+        final int[] lines = new int[authorCount];
+        int next = 0;
+        for ( int author = 0; author < perAuthor.length; author++ ) {
+            if ( perAuthor[author] > 0 ) {
+                authors[next] = author;
+                lines[next++] = perAuthor[author];
+                counter.add( author, perAuthor[author] );
+            }
+        }
+        if ( index != null ) {
+            index.put( file, authors, lines, authorCount );
+        }
+    }
+
+    /**
+     * @return the number of lines that stay with the suspect's commit
+     */
+    private int passToParents( final Suspect suspect, final PriorityQueue<Suspect> queue, final Map<ObjectId, List<Suspect>> pending ) throws IOException {
+        final ObjectId[] parents = suspect._commit.getParents();
+        final ObjectId[] parentBlobs = new ObjectId[parents.length];
+        final String[] parentPaths = new String[parents.length];
+
+        for ( int i = 0; i < parents.length; i++ ) {
+            final ObjectDatabase.Commit parent = _objects.commit( parents[i] );
+            parentPaths[i] = suspect._path;
+            parentBlobs[i] = _objects.blobAt( parent.getTree(), suspect._pathComponents );
+            if ( parentBlobs[i] == null ) {
+                final OnlyIn source = renameSource( suspect._commit.getTree(), parent.getTree(), suspect._blob );
+                parentPaths[i] = source == null ? suspect._path : source._path;
+                parentBlobs[i] = source == null ? null : source._blob;
+            }
+            if ( suspect._blob.equals( parentBlobs[i] ) ) {
+                enqueue( queue, pending, parents[i], parentPaths[i], suspect._blob, suspect._lines, suspect._lines.length );
+                return 0;
+            }
+        }
+
+        int[] remaining = suspect._lines;
+        int remainingCount = remaining.length;
+        for ( int i = 0; i < parents.length && remainingCount > 0; i++ ) {
+            if ( parentBlobs[i] == null ) {
+                continue;
+            }
+            final int[] childToParent = LineDiff.match( lines( parentBlobs[i] ), lines( suspect._blob ) );
+            final int[] passed = new int[remainingCount];
+            final int[] kept = new int[remainingCount];
+            int passedCount = 0;
+            int keptCount = 0;
+            for ( int j = 0; j < remainingCount; j++ ) {
+                final int parentLine = childToParent[remaining[j]];
+                if ( parentLine >= 0 ) {
+                    passed[passedCount++] = parentLine;
+                } else {
+                    kept[keptCount++] = remaining[j];
+                }
+            }
+            if ( passedCount > 0 ) {
+                enqueue( queue, pending, parents[i], parentPaths[i], parentBlobs[i], passed, passedCount );
+            }
+            remaining = kept;
+            remainingCount = keptCount;
+        }
+        return remainingCount;
+    }
+
+    private void enqueue( final PriorityQueue<Suspect> queue, final Map<ObjectId, List<Suspect>> pending, final ObjectId commitId, final String path,
+            final ObjectId blob, final int[] lines, final int count ) throws IOException {
+        List<Suspect> suspects = pending.get( commitId );
+        if ( suspects == null ) {
+            suspects = Lists.newArrayListWithCapacity( 1 );
+            pending.put( commitId, suspects );
+        }
+        for ( final Suspect suspect : suspects ) {
+            if ( suspect._path.equals( path ) ) {
+                suspect._lines = mergeSorted( suspect._lines, lines, count );
+                return;
+            }
+        }
+        final Suspect suspect = new Suspect( commitId, _objects.commit( commitId ), path, blob, Arrays.copyOf( lines, count ) );
+        suspects.add( suspect );
+        queue.add( suspect );
+    }
+
+    private static int[] mergeSorted( final int[] a, final int[] b, final int bCount ) {
+        final int[] result = new int[a.length + bCount];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while ( i < a.length && j < bCount ) {
+            result[k++] = a[i] <= b[j] ? a[i++] : b[j++];
+        }
+        while ( i < a.length ) {
+            result[k++] = a[i++];
+        }
+        while ( j < bCount ) {
+            result[k++] = b[j++];
+        }
+        return result;
+    }
+
+    /**
+     * <p>
+     * Finds the file a file of the child was renamed from, like git blame does for the one path it
+     * follows: the candidates are the files the child no longer has, an identical one is taken
+     * first, otherwise the most similar one if at least half of it is the same.
+     * </p>
+     * <p>
+     * The similarity is the number of bytes in lines both files have, relative to the larger one.
+     * </p>
+     *
+     * @return the deleted file, or <code>null</code> if there is none similar enough
+     */
+    private OnlyIn renameSource( final ObjectId childTree, final ObjectId parentTree, final ObjectId blob ) throws IOException {
+        final String key = childTree.toHex() + parentTree.toHex();
+        List<OnlyIn> deleted = _deleted.get( key );
+        if ( deleted == null ) {
+            deleted = Lists.newArrayList();
+            onlyIn( childTree, parentTree, "", deleted );
+            _deleted.put( key, deleted, 64 + deleted.size() * 128L );
+        }
+
+        for ( final OnlyIn candidate : deleted ) {
+            if ( candidate._blob.equals( blob ) ) {
+                return candidate;
+            }
+        }
+
+        final LineDiff.Lines target = lines( blob );
+        final Map<Integer, Integer> targetLines = lineCounts( target );
+        OnlyIn best = null;
+        long bestScore = -1;
+        for ( final OnlyIn candidate : deleted ) {
+            final LineDiff.Lines source = lines( candidate._blob );
+            final long larger = Math.max( source.bytes(), target.bytes() );
+            // files of very different size cannot be half the same
+            if ( larger == 0 || Math.min( source.bytes(), target.bytes() ) * 2 < larger ) {
+                continue;
+            }
+            final long shared = sharedBytes( targetLines, source );
+            final long score = shared * 1000000L / larger;
+            if ( shared * 2 >= larger && score > bestScore ) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Collects the files of tree <code>b</code> that tree <code>a</code> does not have at the same
+     * path, skipping all subtrees the two have in common.
+     */
+    private void onlyIn( final ObjectId aTreeId, final ObjectId bTreeId, final String prefix, final List<OnlyIn> files ) throws IOException {
+        final ObjectDatabase.Tree a = aTreeId == null ? null : _objects.tree( aTreeId );
+        final ObjectDatabase.Tree b = _objects.tree( bTreeId );
+        for ( int i = 0; i < b.size(); i++ ) {
+            final boolean isTree = b.isTree( i );
+            final int match = a == null ? -1 : a.find( b.nameBytes( i ), isTree );
+            if ( isTree ) {
+                if ( match < 0 || !a.hasId( match, b.id( i ) ) ) {
+                    onlyIn( match < 0 ? null : a.id( match ), b.id( i ), prefix + b.name( i ) + "/", files );
+                }
+            } else if ( match < 0 && b.isFile( i ) ) {
+                files.add( new OnlyIn( prefix + b.name( i ), b.id( i ) ) );
+            }
+        }
+    }
+
+    private static Map<Integer, Integer> lineCounts( final LineDiff.Lines lines ) {
+        final Map<Integer, Integer> counts = Maps.newHashMap();
+        for ( int line = 0; line < lines.size(); line++ ) {
+            final Integer hash = Integer.valueOf( lines.hash( line ) );
+            final Integer count = counts.get( hash );
+            counts.put( hash, Integer.valueOf( count == null ? 1 : count.intValue() + 1 ) );
+        }
+        return counts;
+    }
+
+    private static long sharedBytes( final Map<Integer, Integer> targetLines, final LineDiff.Lines source ) {
+        final Map<Integer, Integer> remaining = Maps.newHashMap( targetLines );
+        long shared = 0;
+        for ( int line = 0; line < source.size(); line++ ) {
+            final Integer hash = Integer.valueOf( source.hash( line ) );
+            final Integer count = remaining.get( hash );
+            if ( count != null && count.intValue() > 0 ) {
+                remaining.put( hash, Integer.valueOf( count.intValue() - 1 ) );
+                shared += source.length( line );
+            }
+        }
+        return shared;
+    }
+
+    private LineDiff.Lines lines( final ObjectId blob ) throws IOException {
+        LineDiff.Lines lines = _lines.get( blob );
+        if ( lines == null ) {
+            lines = new LineDiff.Lines( _objects.blob( blob ) );
+            _lines.put( blob, lines, lines.weight() );
+        }
+        return lines;
+    }
+
+    private static byte[][] components( final String path ) {
+        final String[] names = path.split( "/" );
+        final byte[][] components = new byte[names.length][];
+        for ( int i = 0; i < names.length; i++ ) {
+            components[i] = names[i].getBytes( GitPaths.UTF8 );
+        }
+        return components;
+    }
+
+}
@@ -0,0 +1,232 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Myers' O(ND) difference algorithm in its linear space variant, working on the lines of two
+ * byte arrays. Lines are compared by hash first and by content only when the hashes match.
+ * </p>
+ * <p>
+ * The result is the longest common subsequence as a mapping from the lines of the new version to
+ * those of the old one. Where several subsequences are equally long the chosen one can differ from
+ * the one of git's xdiff, which also removes lines unique to one side before diffing.
+ * </p>
+ */
+final class LineDiff {
+
+    /**
+     * The lines of a file, a last line without newline counts as a line.
+     */
+    static final class Lines {
+        private final byte[] _data;
+        private final int[] _starts;
+        private final int[] _hashes;
+
+        Lines( final byte[] data ) {
+            int count = 0;
+            for ( int i = 0; i < data.length; i++ ) {
+                if ( data[i] == '\n' ) {
+                    count++;
+                }
+            }
+            if ( data.length > 0 && data[data.length - 1] != '\n' ) {
+                count++;
+            }
+
+            _data = data;
+            _starts = new int[count + 1];
+            _hashes = new int[count];
+            int line = 0;
+            int hash = 0x811c9dc5;
+            for ( int i = 0; i < data.length; i++ ) {
+                hash = ( hash ^ data[i] ) * 0x01000193;
+                if ( data[i] == '\n' ) {
+                    _hashes[line] = hash;
+                    _starts[++line] = i + 1;
+                    hash = 0x811c9dc5;
+                }
+            }
+            if ( line < count ) {
+                _hashes[line] = hash;
+                _starts[++line] = data.length;
+            }
+        }
+
+        int size() {
+            return _hashes.length;
+        }
+
+        int hash( final int line ) {
+            return _hashes[line];
+        }
+
+        /**
+         * @return the length of the line including its newline
+         */
+        int length( final int line ) {
+            return _starts[line + 1] - _starts[line];
+        }
+
+        int bytes() {
+            return _data.length;
+        }
+
+        /**
+         * @return the approximate memory used, for caches
+         */
+        long weight() {
+            return _data.length + _hashes.length * 8L + 64;
+        }
+
+        private boolean same( final int line, final Lines other, final int otherLine ) {
+            if ( _hashes[line] != other._hashes[otherLine] ) {
+                return false;
+            }
+            final int length = _starts[line + 1] - _starts[line];
+            if ( length != other._starts[otherLine + 1] - other._starts[otherLine] ) {
+                return false;
+            }
+            final int start = _starts[line];
+            final int otherStart = other._starts[otherLine];
+            for ( int i = 0; i < length; i++ ) {
+                if ( _data[start + i] != other._data[otherStart + i] ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Lines _a;
+    private final Lines _b;
+    private final int[] _bToA;
+    private int[] _forward;
+    private int[] _backward;
+
+    private LineDiff( final Lines a, final Lines b ) {
+        _a = a;
+        _b = b;
+        _bToA = new int[b.size()];
+        Arrays.fill( _bToA, -1 );
+    }
+
+    /**
+     * @return for every line of <code>b</code> the line of <code>a</code> it was kept from, or -1
+     *         for added and changed lines
+     */
+    static int[] match( final Lines a, final Lines b ) {
+        final LineDiff diff = new LineDiff( a, b );
+        diff.compare( 0, a.size(), 0, b.size() );
+        return diff._bToA;
+    }
+
+    private void compare( int aLow, int aHigh, int bLow, int bHigh ) {
+        while ( aLow < aHigh && bLow < bHigh && _a.same( aLow, _b, bLow ) ) {
+            _bToA[bLow++] = aLow++;
+        }
+        while ( aLow < aHigh && bLow < bHigh && _a.same( aHigh - 1, _b, bHigh - 1 ) ) {
+            _bToA[--bHigh] = --aHigh;
+        }
+        if ( aLow == aHigh || bLow == bHigh ) {
+            return;
+        }
+
+        final int[] split = split( aLow, aHigh, bLow, bHigh );
+        if ( split != null ) {
+            compare( aLow, split[0], bLow, split[1] );
+            compare( split[0], aHigh, split[1], bHigh );
+        }
+    }
+
+    /**
+     * Finds where the forward and the backward search for the shortest edit script between the
+     * ranges meet, both ranges start and end with different lines.
+     *
+     * @return the x and y to split the ranges at, or <code>null</code> if they have no line in common
+     */
+    private int[] split( final int aLow, final int aHigh, final int bLow, final int bHigh ) {
+        final int n = aHigh - aLow;
+        final int m = bHigh - bLow;
+        final int max = ( n + m + 1 ) / 2;
+        final int offset = max;
+        final int length = 2 * max + 2;
+        if ( _forward == null || _forward.length < length ) {
+            _forward = new int[length];
+            _backward = new int[length];
+        }
+        final int[] forward = _forward;
+        final int[] backward = _backward;
+        Arrays.fill( forward, 0, length, -1 );
+        Arrays.fill( backward, 0, length, -1 );
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+
+        final int delta = n - m;
+        final boolean odd = ( delta & 1 ) != 0;
+        // diagonals that left the grid to the right or the bottom are not followed any more
+        int forwardStart = 0;
+        int forwardEnd = 0;
+        int backwardStart = 0;
+        int backwardEnd = 0;
+
+        for ( int d = 0; d < max; d++ ) {
+            // x counts the lines of a consumed from the start
+            for ( int k = -d + forwardStart; k <= d - forwardEnd; k += 2 ) {
+                int x;
+                if ( k == -d || k != d && forward[offset + k - 1] < forward[offset + k + 1] ) {
+                    x = forward[offset + k + 1];
+                } else {
+                    x = forward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while ( x < n && y < m && _a.same( aLow + x, _b, bLow + y ) ) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                if ( x > n ) {
+                    forwardEnd += 2;
+                } else if ( y > m ) {
+                    forwardStart += 2;
+                } else if ( odd ) {
+                    final int backwardOffset = offset + delta - k;
+                    if ( backwardOffset >= 0 && backwardOffset < length && backward[backwardOffset] != -1 && x >= n - backward[backwardOffset] ) {
+                        return new int[] { aLow + x, bLow + y };
+                    }
+                }
+            }
+
+            // x counts the lines of a consumed from the end
+            for ( int k = -d + backwardStart; k <= d - backwardEnd; k += 2 ) {
+                int x;
+                if ( k == -d || k != d && backward[offset + k - 1] < backward[offset + k + 1] ) {
+                    x = backward[offset + k + 1];
+                } else {
+                    x = backward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while ( x < n && y < m && _a.same( aHigh - 1 - x, _b, bHigh - 1 - y ) ) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                if ( x > n ) {
+                    backwardEnd += 2;
+                } else if ( y > m ) {
+                    backwardStart += 2;
+                } else if ( !odd ) {
+                    final int forwardOffset = offset + delta - k;
+                    if ( forwardOffset >= 0 && forwardOffset < length && forward[forwardOffset] != -1 ) {
+                        final int forwardX = forward[forwardOffset];
+                        if ( forwardX >= n - x ) {
+                            return new int[] { aLow + forwardX, bLow + forwardX - ( delta - k ) };
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+}
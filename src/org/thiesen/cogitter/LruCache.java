@@ -0,0 +1,77 @@
+package org.thiesen.cogitter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache limited by the summed up weight of its values, e.g. their size in
+ * bytes. All methods are synchronized.
+ */
+final class LruCache<K, V> {
+
+    private static final class Entry<V> {
+        private final V _value;
+        private final long _weight;
+
+        private Entry( final V value, final long weight ) {
+            _value = value;
+            _weight = weight;
+        }
+    }
+
+    private final LinkedHashMap<K, Entry<V>> _entries = new LinkedHashMap<K, Entry<V>>( 64, 0.75f, true );
+    private final long _maxWeight;
+    private long _weight;
+    private long _hits;
+    private long _misses;
+
+    LruCache( final long maxWeight ) {
+        _maxWeight = maxWeight;
+    }
+
+    synchronized V get( final K key ) {
+        final Entry<V> entry = _entries.get( key );
+        if ( entry == null ) {
+            _misses++;
+            return null;
+        }
+        _hits++;
+        return entry._value;
+    }
+
+    /**
+     * Adds the value unless it alone is heavier than the whole cache, evicting the least recently
+     * used values as needed.
+     */
+    synchronized void put( final K key, final V value, final long weight ) {
+        if ( weight > _maxWeight ) {
+            return;
+        }
+        final Entry<V> previous = _entries.put( key, new Entry<V>( value, weight ) );
+        if ( previous != null ) {
+            _weight -= previous._weight;
+        }
+        _weight += weight;
+
+        final Iterator<Map.Entry<K, Entry<V>>> eldest = _entries.entrySet().iterator();
+        while ( _weight > _maxWeight && eldest.hasNext() ) {
+            _weight -= eldest.next().getValue()._weight;
+            eldest.remove();
+        }
+    }
+
+    synchronized void clear() {
+        _entries.clear();
+        _weight = 0;
+    }
+
+    synchronized long hits() {
+        return _hits;
+    }
+
+    synchronized long misses() {
+        return _misses;
+    }
+
+}
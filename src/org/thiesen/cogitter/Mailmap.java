@@ -0,0 +1,96 @@
+package org.thiesen.cogitter;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * <p>
+ * The email part of a <code>.mailmap</code>: maps the email of a commit, optionally only
+ * together with a name, to the proper email. Emails and names are matched case insensitively.
+ * </p>
+ * <p>
+ * Lines of the form <code>Proper Name &lt;commit@email&gt;</code> only change names and are
+ * ignored.
+ * </p>
+ */
+final class Mailmap {
+
+    private static final class Entry {
+        private final String _name;
+        private final String _email;
+
+        private Entry( final String name, final String email ) {
+            _name = name;
+            _email = email;
+        }
+    }
+
+    static final Mailmap EMPTY = new Mailmap( Maps.<String, List<Entry>>newHashMap() );
+
+    private final Map<String, List<Entry>> _entries;
+
+    private Mailmap( final Map<String, List<Entry>> entries ) {
+        _entries = entries;
+    }
+
+    static Mailmap parse( final String text ) {
+        final Map<String, List<Entry>> entries = Maps.newHashMap();
+        for ( final String rawLine : text.split( "\n" ) ) {
+            final int comment = rawLine.indexOf( '#' );
+            final String line = comment < 0 ? rawLine : rawLine.substring( 0, comment );
+
+            final int firstOpen = line.indexOf( '<' );
+            final int firstClose = line.indexOf( '>', firstOpen + 1 );
+            if ( firstOpen < 0 || firstClose < 0 ) {
+                continue;
+            }
+            final int secondOpen = line.indexOf( '<', firstClose + 1 );
+            final int secondClose = secondOpen < 0 ? -1 : line.indexOf( '>', secondOpen + 1 );
+            if ( secondClose < 0 ) {
+                continue;
+            }
+
+            final String properEmail = line.substring( firstOpen + 1, firstClose ).trim();
+            final String commitName = line.substring( firstClose + 1, secondOpen ).trim();
+            final String commitEmail = line.substring( secondOpen + 1, secondClose ).trim().toLowerCase( Locale.ROOT );
+            if ( properEmail.isEmpty() ) {
+                continue;
+            }
+
+            List<Entry> list = entries.get( commitEmail );
+            if ( list == null ) {
+                list = Lists.newArrayList();
+                entries.put( commitEmail, list );
+            }
+            list.add( new Entry( commitName.isEmpty() ? null : commitName, properEmail ) );
+        }
+        return new Mailmap( entries );
+    }
+
+    /**
+     * @return the proper email of a commit author, or <code>email</code> if there is no mapping
+     */
+    String map( final String name, final String email ) {
+        if ( _entries.isEmpty() ) {
+            return email;
+        }
+        final List<Entry> list = _entries.get( email.toLowerCase( Locale.ROOT ) );
+        if ( list == null ) {
+            return email;
+        }
+        String result = email;
+        for ( final Entry entry : list ) {
+            if ( entry._name == null ) {
+                result = entry._email;
+            } else if ( entry._name.equalsIgnoreCase( name ) ) {
+                return entry._email;
+            }
+        }
+        return result;
+    }
+
+}
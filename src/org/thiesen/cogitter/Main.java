@@ -1,359 +1,623 @@
 package org.thiesen.cogitter;
 
-import java.awt.Color;
-import java.awt.Font;
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.imageio.ImageIO;
-
-import org.thiesen.cogitter.RectanglePacker.Rectangle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import com.google.common.base.Strings;
-import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multiset.Entry;
-import com.google.common.io.ByteStreams;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 
 public class Main {
 
     private final static int WIDTH = 1000;
     private final static int HEIGHT = 1000;
+    private final static int BAND_HEIGHT = 256;
     
     private final static ImmutableSet<String> SOURCE_FILE_ENDINGS = ImmutableSet.of("java", "js", "c", "cpp", "sh", "h", "fcgi", "pl", "py","tcl"  );
 
-    private static class LineCounter implements Runnable {
+    final static AuthorTable AUTHORS = new AuthorTable();
+
+    private final static String ARCHIVE_NAME = "avatars.archive";
+
+    /**
+     * The size of the mosaics, the height of the bands a mosaic is streamed to a PNG in, or 0 to
+     * render it in memory, how the tiles are packed, and whether they are sized to fill as much of
+     * the canvas as they can.
+     */
+    private static final class Canvas {
+        private final int _width;
+        private final int _height;
+        private final int _bandHeight;
+        private final Packer.Algorithm _packer;
+        private final boolean _autoFit;
+
+        private Canvas( final int width, final int height, final int bandHeight, final Packer.Algorithm packer, final boolean autoFit ) {
+            _width = width;
+            _height = height;
+            _bandHeight = bandHeight;
+            _packer = packer;
+            _autoFit = autoFit;
+        }
+    }
+
+    static class LineCounter implements BlameScheduler.Handler {
 
-        private final static Pattern EMAIL_PATTERN = Pattern.compile( "^[0-9a-f]+\\s*\\(<(\\S+@\\S+)>" );
+        /**
+         * Parsers, shared by the counters of all repositories, and the stripes of this one's
+         * counter, handed from file to file. Pooled instead of thread local so that one short
+         * lived thread per file does not create one of each per file. The parsers hold the large
+         * buffers, so there are only as many as files are parsed at once, whatever the number of
+         * repositories.
+         */
+        private static final Queue<AnnotateParser> PARSERS = new ConcurrentLinkedQueue<AnnotateParser>();
 
-        private final ConcurrentHashMultiset<String> _counter;
-        private final String _filename;
-        private final File _repo;
+        private final AuthorCounter _counter;
+        private final OwnershipIndex _index;
+        private final Queue<AuthorCounter.Stripe> _stripes = new ConcurrentLinkedQueue<AuthorCounter.Stripe>();
 
-        public LineCounter( final File repo, final ConcurrentHashMultiset<String> counter, final String filename ) {
-            _repo =  repo;
+        public LineCounter( final AuthorCounter counter, final OwnershipIndex index ) {
             _counter = counter;
-            _filename = filename;
+            _index = index;
         }
 
         @Override
-        public void run() {
-            final ProcessBuilder builder = new ProcessBuilder( "git", "annotate",  "-e", "--",  _filename );
-            builder.directory( _repo );
-
+        public void blamed( final SourceFile file, final Process process, final BlameMetrics.FileStats stats ) throws IOException, InterruptedException {
+            AnnotateParser parser = PARSERS.poll();
+            if ( parser == null ) {
+                parser = new AnnotateParser( AUTHORS );
+            }
+            AuthorCounter.Stripe stripe = _stripes.poll();
+            if ( stripe == null ) {
+                stripe = _counter.newStripe();
+            }
             try {
-                final Process process = builder.start();
-
-                final BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
+                count( file, process, parser, stripe, stats );
+            } finally {
+                _stripes.add( stripe );
+                PARSERS.add( parser );
+            }
+        }
 
-                String line;
-                while ( ( line = reader.readLine() ) != null ) {
-                    final Matcher matcher = EMAIL_PATTERN.matcher( line );
-                    if ( matcher.find() ) {
-                        _counter.add( matcher.group( 1 ).toLowerCase() );
-                    }
-                }
-                process.waitFor();
-            } catch ( final IOException e ) {
-                e.printStackTrace();
-            } catch ( final InterruptedException e ) {
-                e.printStackTrace();
+        private void count( final SourceFile file, final Process process, final AnnotateParser parser, final AuthorCounter.Stripe stripe,
+                final BlameMetrics.FileStats stats ) throws IOException, InterruptedException {
+            parser.parse( process.getInputStream() );
+            final int exitCode = process.waitFor();
+
+            final int authorCount = parser.authorCount();
+            final int[] authors = new int[authorCount];
+            final int[] lines = new int[authorCount];
+            long lineCount = 0;
+            for ( int i = 0; i < authorCount; i++ ) {
+                authors[i] = parser.author( i );
+                lines[i] = parser.count( i );
+                lineCount += lines[i];
+                stripe.add( authors[i], lines[i] );
+            }
+            stats.setContent( lineCount, parser.bytesRead() );
+            if ( _index != null && exitCode == 0 ) {
+                _index.put( file, authors, lines, authorCount );
             }
         }
 
     }
 
-    private final static ExecutorService FILE_BLAME_READER_EXECUTOR = Executors.newFixedThreadPool( Math.max( Runtime.getRuntime().availableProcessors() +
-    		-1, 1 ) );
+    final static int DEFAULT_THREADS = Math.max( Runtime.getRuntime().availableProcessors() - 1, 1 );
 
     public static void main( final String[] args ) throws IOException, InterruptedException {
-        if ( args.length != 3 ) {
-            System.out.println("Usage: Main git-directory output-filename image-cache-directory");
+        final Options options = Options.parse( args );
+        final List<String> arguments = options.arguments();
+        final boolean batch = options.has( "batch" );
+        final boolean merge = options.has( "merge" );
+        if ( options.has( "compact-avatars" ) && arguments.size() == 1 ) {
+            final File archive = new File( arguments.get( 0 ), ARCHIVE_NAME );
+            final long before = archive.length();
+            final long after = AvatarArchive.compact( archive, options.getInt( "avatar-cache-mb", 0 ) * 1024L * 1024L );
+            System.out.println( "Compacted " + archive + " from " + ( before >> 10 ) + " to " + ( after >> 10 ) + " KB" );
+            return;
+        }
+        if ( merge ? arguments.size() < 3 : arguments.size() != ( batch ? 2 : 3 ) ) {
+            System.out.println("Usage: Main [--engine=annotate|history|inprocess] [--object-cache=mb] [--index=file] [--threads=n] [--git-processes=n] [--execution=pool|virtual] [--metrics=file.json|file.prom] [--slow-files=n] [--shard=index/count] [--partial-output=file] [--avatar-fetchers=n] [--avatar-url=url] [--avatar-connect-timeout=ms] [--avatar-read-timeout=ms] [--avatar-retries=n] [--avatar-max-age=hours] [--avatar-cache-mb=n] [--avatar-memory-mb=n] [--avatar-store=directory|archive] [--avatar-filter=box|lanczos|bilinear] [--avatar-mode=fetch|offline|placeholder] [--width=px] [--height=px] [--bands[=rows]] [--packer=blackpawn|maxrects-bssf|maxrects-baf|skyline|guillotine] [--auto-fit] [--formats=jpg,png,webp] [--outputs=2,sorted,unsorted] [--jpeg-quality=0-100] [--jpeg-progressive] [--png-compression=0-9] git-directory output-filename image-cache-directory");
+            System.out.println("       Main --batch=repository-list [--index=directory] [options] output-filename image-cache-directory");
+            System.out.println("       Main --merge partial-file... output-filename image-cache-directory");
+            System.out.println("       Main --compact-avatars [--avatar-cache-mb=n] image-cache-directory");
             System.exit( 1 );
         }
-        final File repo = new File( args[0] );
-        final String outputBase = args[1];
-        final String imageCache = args[2];
-        
-        final ProcessBuilder builder = new ProcessBuilder( "git", "ls-files" );
-        builder.directory( repo );
-        final Process process = builder.start();
-
-        final BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
+        final String outputBase = arguments.get( arguments.size() - 2 );
+        final String imageCache = arguments.get( arguments.size() - 1 );
 
-        final ConcurrentHashMultiset<String> counter = ConcurrentHashMultiset.create();
-        String line;
-        final List<Future<?>> futures = Lists.newLinkedList();
-        while ( ( line = reader.readLine() ) != null ) {
-            final String trimmed = line.trim();
-            final String suffix = line.substring( line.lastIndexOf( '.' ) + 1 );
-            if ( !SOURCE_FILE_ENDINGS.contains( suffix ) ) {
-                continue;
+        if ( merge ) {
+            final List<File> partials = Lists.newArrayList();
+            for ( final String path : arguments.subList( 0, arguments.size() - 2 ) ) {
+                partials.add( new File( path ) );
             }
-            final Future<?> submitted = FILE_BLAME_READER_EXECUTOR.submit( new LineCounter( repo, counter, trimmed ) );
-            futures.add( submitted );
-            
+            final List<String> names = Lists.newArrayList();
+            final List<AuthorCounts> allCounts = mergePartials( partials, names );
+            report( names, allCounts, names.size() > 1, imageCache, outputBase, options );
+            return;
         }
-        process.waitFor();
 
-        final int total = futures.size();
-        
-        FILE_BLAME_READER_EXECUTOR.shutdown();
-
-        while ( !FILE_BLAME_READER_EXECUTOR.awaitTermination( 1, TimeUnit.SECONDS ) ) {
-            int doneCount = 0;
-            for ( final Future<?> f : futures ) {
-                if ( f.isDone() ) {
-                    doneCount++;
-                }
-            }
-            
-            final double percentComplete = ((double)doneCount / (double)total) * 100D;
-          
-            System.out.printf( "\rReading %.2f%% (%s of %s files)", Double.valueOf( percentComplete ), String.valueOf( doneCount ), String.valueOf( total ) );
-            System.out.flush();
+        final Shard shard = options.has( "shard" ) ? Shard.parse( options.get( "shard", "" ) ) : Shard.ALL;
+        final List<Repository> repositories;
+        if ( batch ) {
+            repositories = openBatch( new File( options.get( "batch", "" ) ), shard, options );
+        } else {
+            final File repo = new File( arguments.get( 0 ) );
+            final File indexFile = options.has( "index" ) ? new File( options.get( "index", "" ) ) : null;
+            repositories = ImmutableList.of( openRepository( repo, repo.getAbsoluteFile().getName(), indexFile, shard, options ) );
         }
-        System.out.println();
-        futures.clear();
-        
-        
-        printStat( counter );
-   
-        renderImage( counter, imageCache, outputBase );
-    }
 
-    private static void alias(String oldName, String newName,
-			ConcurrentHashMultiset<String> counter) {
-    	   counter.add( newName, counter.count( oldName ) );
-           counter.remove( oldName, counter.count( oldName ) );
-        
-	}
+        final String engine = options.get( "engine", "annotate" );
+        final int threads = options.getInt( "threads", DEFAULT_THREADS );
+        if ( engine.equals( "history" ) ) {
+            replayHistory( repositories, threads );
+        } else if ( engine.equals( "inprocess" ) ) {
+            blameInProcess( repositories, threads, objectCacheBytes( options ) );
+        } else if ( engine.equals( "annotate" ) ) {
+            final boolean virtualThreads = options.get( "execution", "pool" ).equals( "virtual" );
+            final BlameMetrics metrics = new BlameMetrics( options.getInt( "slow-files", 10 ) );
+            annotate( new BlameScheduler( threads, options.getInt( "git-processes", threads ), virtualThreads, metrics ), repositories );
+            metrics.finish();
+            reportMetrics( metrics, options );
+        } else {
+            System.out.println("Unknown engine " + engine );
+            System.exit( 1 );
+        }
 
-	private static void printStat( final ConcurrentHashMultiset<String> counter ) {
-        final Set<Entry<String>> entrySet = counter.entrySet();
+        final List<String> names = Lists.newArrayList();
+        final List<AuthorCounts> allCounts = Lists.newArrayList();
+        for ( final Repository repository : repositories ) {
+            repository.saveIndex();
+            names.add( repository.getName() );
+            allCounts.add( repository.getCounter().snapshot() );
+        }
 
-        int sum = 0;
-        for ( final Entry<String> entry : entrySet ) {
-            sum += entry.getCount();
+        if ( options.has( "partial-output" ) ) {
+            final File partialFile = new File( options.get( "partial-output", "" ) );
+            PartialCounts.write( partialFile, shard, names, allCounts );
+            System.out.println( "Wrote counts of shard " + shard + " to " + partialFile );
+            return;
         }
 
-        final List<Entry<String>> sortedEntries = Lists.newArrayList( entrySet );
-        Collections.sort( sortedEntries, new Comparator<Entry<String>>() {
+        report( names, allCounts, batch, imageCache, outputBase, options );
+    }
 
-			@Override
-			public int compare(Entry<String> o1, Entry<String> o2) {
-				return Integer.valueOf( o2.getCount() ).compareTo( Integer.valueOf( o1.getCount() ) );
-						
-						
-			}
-		});
-        
-        for ( final Entry<String> entry : sortedEntries ) {
-            System.out.printf( "%s\t%s\t%.2f%%%n", Strings.padEnd( entry.getElement() + ":", 40, ' ' ), String.valueOf( entry.getCount() ), Double.valueOf( ( entry.getCount() / (double)sum ) * 100.0D )  );
+    /**
+     * Prints and renders the counts, for a batch once per repository and once for all of them. The
+     * image cache is only opened here, so that runs writing partial counts never touch it.
+     */
+    private static void report( final List<String> names, final List<AuthorCounts> allCounts, final boolean batch, final String imageCache,
+            final String outputBase, final Options options ) throws IOException, InterruptedException {
+        final int avatarFetchers = options.getInt( "avatar-fetchers", 8 );
+        final AvatarClient avatarClient = new AvatarClient( options.get( "avatar-url", AvatarClient.DEFAULT_URL ), options.getInt( "avatar-connect-timeout", 5000 ),
+                options.getInt( "avatar-read-timeout", 20000 ), options.getInt( "avatar-retries", 3 ), avatarFetchers );
+        final File cacheDir = new File( imageCache );
+        final AvatarStore store = options.get( "avatar-store", "directory" ).equals( "archive" ) ? AvatarArchive.open( new File( cacheDir, ARCHIVE_NAME ) )
+                : new AvatarDirectory( cacheDir );
+        final AvatarCache avatarCache = new AvatarCache( cacheDir, store, options.getInt( "avatar-cache-mb", 512 ) * 1024L * 1024L,
+                options.getInt( "avatar-memory-mb", 64 ) * 1024L * 1024L );
+        try {
+            final AvatarPipeline avatars = new AvatarPipeline( avatarCache, avatarClient, options.getInt( "avatar-max-age", 0 ) * 3600000L, avatarFetchers,
+                    Runtime.getRuntime().availableProcessors(), new AvatarScaler( AvatarScaler.Filter.parse( options.get( "avatar-filter", "box" ) ) ),
+                    AvatarPipeline.Mode.parse( options.get( "avatar-mode", "fetch" ) ) );
+            final Canvas canvas = new Canvas( options.getInt( "width", WIDTH ), options.getInt( "height", HEIGHT ),
+                    options.has( "bands" ) ? options.getInt( "bands", BAND_HEIGHT ) : 0,
+                    Packer.Algorithm.parse( options.get( "packer", "blackpawn" ) ), options.has( "auto-fit" ) );
+            report( names, allCounts, batch, avatars, canvas, encoder( options ), outputBase );
+            avatars.finish();
+            avatarCache.evict();
+        } finally {
+            avatarCache.close();
         }
     }
 
-    private static void renderImage( final ConcurrentHashMultiset<String> counter, final String imageCache, final String outputBase ) throws IOException {
-        int sum = 0;
-        for ( final Entry<String> entry : counter.entrySet() ) {
-            sum += entry.getCount();
+    private static void report( final List<String> names, final List<AuthorCounts> allCounts, final boolean batch, final AvatarPipeline avatars,
+            final Canvas canvas, final MosaicEncoder encoder, final String outputBase ) throws IOException, InterruptedException {
+        if ( !batch ) {
+            final AuthorCounts counts = allCounts.get( 0 );
+
+            printStat( counts );
+
+            renderImage( counts, avatars, canvas, encoder, outputBase );
+            return;
         }
 
-        final List<BufferedImage> images = loadImages( counter, sum, imageCache, outputBase );
+        for ( int i = 0; i < names.size(); i++ ) {
+            final String name = names.get( i );
+            System.out.println( "== " + name );
+            printStat( allCounts.get( i ) );
+            renderImage( allCounts.get( i ), avatars, canvas, encoder, outputBase + "-" + name );
+        }
 
-        renderSortedComplete(  images, outputBase );
-        renderComplete(  images, outputBase );
+        final AuthorCounts total = AuthorCounts.sum( AUTHORS, allCounts );
+        System.out.println( "== all " + names.size() + " repositories" );
+        printStat( total );
+        renderImage( total, avatars, canvas, encoder, outputBase );
     }
 
-    private static void renderSortedComplete( final List<BufferedImage> inImages, final String outputBase ) throws IOException {
-        final List<BufferedImage> images = Lists.newArrayList( inImages );
-        final BufferedImage newImage = new BufferedImage( WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB );
-        final RectanglePacker<BufferedImage> packer = new RectanglePacker<BufferedImage>( WIDTH, HEIGHT, 0 );
-        final Graphics graphics = newImage.createGraphics();
-        
-        while ( images.size() != 0 ) {
+    /**
+     * Adds up the partial counts of the shards of one run. Every shard has to be there exactly
+     * once, otherwise lines would be missing or counted twice.
+     *
+     * @param names receives the repository names, in the order of the returned counts
+     */
+    private static List<AuthorCounts> mergePartials( final List<File> partials, final List<String> names ) throws IOException {
+        final Map<String, List<AuthorCounts>> byName = Maps.newLinkedHashMap();
+        final BitSet seen = new BitSet();
+        int shardCount = -1;
+        for ( final File file : partials ) {
+            final PartialCounts partial = PartialCounts.read( file, AUTHORS );
+            final Shard shard = partial.getShard();
+            if ( shardCount >= 0 && shard.getCount() != shardCount ) {
+                throw new IOException( file + " is shard " + shard + ", but other partials are of " + shardCount + " shards" );
+            }
+            shardCount = shard.getCount();
+            if ( seen.get( shard.getIndex() ) ) {
+                throw new IOException( file + " is shard " + shard + ", which was already merged" );
+            }
+            seen.set( shard.getIndex() );
 
-            System.out.println("Packing from " + images.size() );
-            
-            int width = 0;
-            int index = 0;
-
-            for ( int i = 0; i < images.size(); i++ ) {
-                final BufferedImage img = images.get( i );
-                if ( img.getWidth() > width) {
-                    width = img.getWidth();
-                    index = i;
+            for ( int i = 0; i < partial.getNames().size(); i++ ) {
+                List<AuthorCounts> counts = byName.get( partial.getNames().get( i ) );
+                if ( counts == null ) {
+                    counts = Lists.newArrayList();
+                    byName.put( partial.getNames().get( i ), counts );
                 }
+                counts.add( partial.getCounts().get( i ) );
             }
+        }
+        if ( seen.cardinality() != shardCount ) {
+            throw new IOException( "Only " + seen.cardinality() + " of " + shardCount + " shards given, missing shard " + seen.nextClearBit( 0 ) );
+        }
 
-            final BufferedImage current = images.remove( index );
+        final List<AuthorCounts> allCounts = Lists.newArrayList();
+        for ( final Map.Entry<String, List<AuthorCounts>> entry : byName.entrySet() ) {
+            names.add( entry.getKey() );
+            allCounts.add( AuthorCounts.sum( AUTHORS, entry.getValue() ) );
+        }
+        return allCounts;
+    }
 
-            final Rectangle insert = packer.insert( current.getWidth(), current.getHeight(), current );
+    /**
+     * Opens the repositories listed one per line in <code>listFile</code>, skipping empty lines and
+     * <code>#</code> comments. With an index the <code>--index</code> option names a directory that
+     * holds one index file per repository.
+     */
+    private static List<Repository> openBatch( final File listFile, final Shard shard, final Options options ) throws IOException, InterruptedException {
+        final File indexDir = options.has( "index" ) ? new File( options.get( "index", "" ) ) : null;
+        if ( indexDir != null && !indexDir.isDirectory() && !indexDir.mkdirs() ) {
+            throw new IOException( "Could not create index directory " + indexDir );
+        }
 
-            if ( insert == null ) {
-                System.err.println("Could not pack image with size " + current.getWidth() + " in sorted");
+        final List<Repository> repositories = Lists.newArrayList();
+        final Set<String> names = Sets.newHashSet();
+        for ( final String line : Files.readLines( listFile, GitPaths.UTF8 ) ) {
+            final String path = line.trim();
+            if ( path.isEmpty() || path.startsWith( "#" ) ) {
                 continue;
             }
-            
-            graphics.drawImage( current, insert.x, insert.y, insert.height, insert.width, null );
+            final File repo = new File( path );
+            final String name = uniqueName( repo, names );
+            repositories.add( openRepository( repo, name, indexDir == null ? null : new File( indexDir, name + ".index" ), shard, options ) );
         }
+        return repositories;
+    }
 
-        
-        ImageIO.write( newImage, "jpg", new File( outputBase + "-sorted.jpg" ) );
+    private static Repository openRepository( final File repo, final String name, final File indexFile, final Shard shard, final Options options )
+    throws IOException, InterruptedException {
+        final boolean inProcess = options.get( "engine", "annotate" ).equals( "inprocess" );
+        final ObjectDatabase objects = inProcess ? ObjectDatabase.open( repo, AUTHORS, objectCacheBytes( options ) / 2 ) : null;
+        return Repository.open( repo, name, indexFile, objects, shard );
     }
 
-    private static void renderComplete( final List<BufferedImage> inImages, final String outputBase ) throws IOException {
-        final BufferedImage newImage = new BufferedImage( WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB );
-        final RectanglePacker<BufferedImage> packer = new RectanglePacker<BufferedImage>( WIDTH, HEIGHT, 0 );
-        final Graphics graphics = newImage.createGraphics();
-        
-        for ( final BufferedImage current : inImages ) {
-            final Rectangle insert = packer.insert( current.getWidth(), current.getHeight(), current );
+    /**
+     * @return the memory for the caches of the in-process engine, per repository
+     */
+    private static long objectCacheBytes( final Options options ) {
+        return options.getInt( "object-cache", 256 ) * 1024L * 1024L;
+    }
 
-            if ( insert == null ) {
-                System.err.println("Could not pack image with size " + current.getWidth() + " in unsorted" );
+    /**
+     * @return the directory name of the repository without <code>.git</code>, made unique by a counter
+     */
+    private static String uniqueName( final File repo, final Set<String> taken ) {
+        File dir = repo.getAbsoluteFile();
+        if ( dir.getName().equals( ".git" ) && dir.getParentFile() != null ) {
+            dir = dir.getParentFile();
+        }
+        final String base = dir.getName().replaceAll( "\\.git$", "" ).replaceAll( "[^A-Za-z0-9._-]", "_" );
+        String name = base;
+        for ( int i = 2; !taken.add( name ); i++ ) {
+            name = base + "-" + i;
+        }
+        return name;
+    }
+
+    static List<SourceFile> listSourceFiles( final File repo ) throws IOException, InterruptedException {
+        final Process process = Git.start( repo, "ls-files", "-s" );
+        final BufferedReader reader = Git.reader( process );
+
+        final List<SourceFile> files = Lists.newArrayList();
+        String line;
+        while ( ( line = reader.readLine() ) != null ) {
+            // <mode> <blob> <stage>\t<path>
+            final int tab = line.indexOf( '\t' );
+            final String trimmed = GitPaths.unquote( line.substring( tab + 1 ).trim() );
+            if ( !isSourceFile( trimmed ) ) {
                 continue;
             }
-            
-            graphics.drawImage( current, insert.x, insert.y, insert.height, insert.width, null );
+            final String[] stage = line.substring( 0, tab ).split( " " );
+            if ( !stage[2].equals( "0" ) && !stage[2].equals( "2" ) ) {
+                // unmerged paths are listed once per stage
+                continue;
+            }
+            files.add( new SourceFile( trimmed, stage[1] ) );
         }
+        process.waitFor();
 
-        
-        ImageIO.write( newImage, "jpg", new File( outputBase + "-unsorted.jpg" ) );
+        return files;
     }
-    
-    private static List<BufferedImage> loadImages( final ConcurrentHashMultiset<String> counter, final int sum, final String imageCache, final String outputBase )
-    throws MalformedURLException, IOException {
-        final double availableSize = WIDTH * HEIGHT;
-        final ImmutableList.Builder<BufferedImage> images = ImmutableList.builder();
-        final ImagePacker imagePacker = new ImagePacker( WIDTH, HEIGHT, 0, false );
-        
-        for ( final Entry<String> entry : counter.entrySet() ) {
-            final double percent = ( (double)entry.getCount() / (double)sum );
-            System.out.println( percent );
-            
-            final int smallesBorder = Math.min( WIDTH, HEIGHT );
-            final int occupyableSpace = Math.min( (int)Math.floor( Math.sqrt( availableSize * percent * 0.7D ) ) , smallesBorder );
 
-            if ( occupyableSpace == 0 ) {
-                continue;
-            }
+    static boolean isSourceFile( final String path ) {
+        return SOURCE_FILE_ENDINGS.contains( path.substring( path.lastIndexOf( '.' ) + 1 ) );
+    }
+
+    /**
+     * Blames the stale files of all repositories with one scheduler.
+     */
+    static void annotate( final BlameScheduler scheduler, final List<Repository> repositories ) throws IOException, InterruptedException {
+        for ( final Repository repository : repositories ) {
+            scheduler.add( repository.getDir(), repository.getStaleFiles(), new LineCounter( repository.getCounter(), repository.getIndex() ) );
+        }
+        scheduler.start();
+
+        final int total = scheduler.total();
+
+        while ( !scheduler.awaitTermination( 1, TimeUnit.SECONDS ) ) {
+            final int doneCount = scheduler.completed();
             
-            final BufferedImage image = loadImage( imageCache, entry.getElement() );
+            final double percentComplete = ((double)doneCount / (double)total) * 100D;
+          
+            System.out.printf( "\rReading %.2f%% (%s of %s files)", Double.valueOf( percentComplete ), String.valueOf( doneCount ), String.valueOf( total ) );
+            System.out.flush();
+        }
+        System.out.println();
+    }
 
-            if ( image == null ) {
+    /**
+     * Blames the stale files of all repositories in-process on <code>threads</code> threads.
+     */
+    private static void blameInProcess( final List<Repository> repositories, final int threads, final long cacheBytes ) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool( threads );
+        final AtomicInteger doneCount = new AtomicInteger();
+        int total = 0;
+        for ( final Repository repository : repositories ) {
+            if ( repository.getHead() == null ) {
                 continue;
             }
-            
-            final BufferedImage current;
-            if ( image.getWidth() != occupyableSpace ) {
-                final BufferedImage scaledImage = new BufferedImage(
-                        occupyableSpace, occupyableSpace, BufferedImage.TYPE_INT_RGB);
-                final Graphics2D graphics2D = scaledImage.createGraphics();
-                graphics2D.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                graphics2D.drawImage(image, 0, 0, occupyableSpace, occupyableSpace, null);
-                
-                graphics2D.dispose();
-                
-                current = scaledImage;
-            } else {
-                current = image;
+            final InProcessBlame blame = new InProcessBlame( repository.getObjects(), ObjectId.fromHex( repository.getHead() ), cacheBytes / 2 );
+            for ( final SourceFile file : repository.getStaleFiles() ) {
+                total++;
+                executor.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            blame.count( file, repository.getCounter(), repository.getIndex() );
+                        } catch ( final IOException e ) {
+                            System.err.println("Could not blame " + file + " in " + repository + ": " + e.getMessage() );
+                        } finally {
+                            doneCount.incrementAndGet();
+                        }
+                    }
+                } );
             }
+        }
+        executor.shutdown();
 
-            final String text = String.format( "%.2f%%, %s, %s Lines", Double.valueOf( percent * 100.0D ), entry.getElement().replaceAll( "@.+", "" ), String.valueOf( entry.getCount() )  );
-            final Graphics2D graphics = current.createGraphics();
-            graphics.setColor(Color.RED);
-            
-            final int fontSize = Math.max( 20, (int)( (current.getHeight() * 0.05 )) );
-            
-            graphics.setFont(new Font( "SansSerif", Font.BOLD, fontSize ) );
-            graphics.drawString( text , 1  , current.getHeight() - fontSize );
-        
-            graphics.dispose();
-            
-            images.add( current );
-            
-            try {
-                imagePacker.insertImage( entry.getElement(), current );
-            } catch ( final RuntimeException e ) {
-                e.printStackTrace();
-            }
-            
-            
+        while ( !executor.awaitTermination( 1, TimeUnit.SECONDS ) ) {
+            final double percentComplete = ((double)doneCount.get() / (double)total) * 100D;
+
+            System.out.printf( "\rReading %.2f%% (%s of %s files)", Double.valueOf( percentComplete ), String.valueOf( doneCount.get() ), String.valueOf( total ) );
+            System.out.flush();
         }
-        
-        ImageIO.write( imagePacker.getImage(), "jpg", new File( outputBase + "2.jpg" ) );
-        
-        return images.build();
+        System.out.println();
     }
 
-    private static BufferedImage loadImage( final String imageCache, final String email ) throws IOException {
-        final File imageCacheFile = new File( imageCache, email );
-        
-        if ( imageCacheFile.exists() ) {
-            try {
-                return ImageIO.read( imageCacheFile );
-            } catch ( final IOException e  ) {
-                System.err.println("Could not read cached image for " + email + ":" + e.getMessage() );
-                imageCacheFile.delete();
-            }
+    /**
+     * Replays the history of the repositories, up to <code>threads</code> repositories at a time.
+     */
+    private static void replayHistory( final List<Repository> repositories, final int threads ) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, Math.max( repositories.size(), 1 ) ) );
+        for ( final Repository repository : repositories ) {
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new HistoryReplayCounter( repository.getDir(), AUTHORS ).count( repository.getStaleFiles(), repository.getCounter(), repository.getIndex() );
+                    } catch ( final IOException e ) {
+                        e.printStackTrace();
+                    } catch ( final InterruptedException e ) {
+                        e.printStackTrace();
+                    }
+                }
+            } );
         }
-        
-        final BufferedImage loaded = loadGravatarImage( email );
-        
+        executor.shutdown();
+        while ( !executor.awaitTermination( 1, TimeUnit.SECONDS ) ) {
+            // wait
+        }
+    }
+
+    private static void reportMetrics( final BlameMetrics metrics, final Options options ) throws IOException {
+        if ( metrics.failures() > 0 ) {
+            System.out.println( metrics.failures() + " files could not be blamed" );
+        }
+        if ( metrics.files() > 0 ) {
+            metrics.printSlowest( new PrintWriter( System.out ) );
+        }
+        if ( options.has( "metrics" ) ) {
+            final File metricsFile = new File( options.get( "metrics", "" ) );
+            metrics.write( metricsFile );
+            System.out.println( "Wrote metrics to " + metricsFile );
+        }
+    }
+
+    private static void printStat( final AuthorCounts counts ) {
+        final long sum = counts.total();
+
+        for ( final int index : counts.byCountDescending() ) {
+            System.out.printf( "%s\t%s\t%.2f%%%n", Strings.padEnd( counts.name( index ) + ":", 40, ' ' ), String.valueOf( counts.count( index ) ), Double.valueOf( ( counts.count( index ) / (double)sum ) * 100.0D )  );
+        }
+    }
+
+    private static MosaicEncoder encoder( final Options options ) {
+        final Set<MosaicEncoder.Format> formats = Sets.newHashSet();
+        for ( final String format : options.get( "formats", "jpg" ).split( "," ) ) {
+            formats.add( MosaicEncoder.Format.parse( format ) );
+        }
+        final Set<MosaicEncoder.Output> outputs = Sets.newHashSet();
+        for ( final String output : options.get( "outputs", "2,sorted,unsorted" ).split( "," ) ) {
+            outputs.add( MosaicEncoder.Output.parse( output ) );
+        }
+        return new MosaicEncoder( formats, outputs, options.getInt( "jpeg-quality", -1 ), options.has( "jpeg-progressive" ),
+                options.getInt( "png-compression", Deflater.DEFAULT_COMPRESSION ) );
+    }
+
+    /**
+     * Renders the wanted outputs: packed in order into <code>2</code>, widest first into
+     * <code>-sorted</code>, and in order into <code>-unsorted</code>, in every format. The first and
+     * the last have the same layout and share one image. The encoding of an image runs while the
+     * next one is drawn. Streamed in bands the files are always PNGs. With auto-fit the tiles are
+     * sized for the largest part of the canvas at which all of them fit in every wanted order.
+     */
+    private static void renderImage( final AuthorCounts counts, final AvatarPipeline avatars, final Canvas canvas, final MosaicEncoder encoder,
+            final String outputBase ) throws IOException, InterruptedException {
+        final List<String> unsortedFiles = encoder.files( outputBase, MosaicEncoder.Output.PLAIN, MosaicEncoder.Output.UNSORTED );
+        final List<String> sortedFiles = encoder.files( outputBase, MosaicEncoder.Output.SORTED );
+        final int threads = Runtime.getRuntime().availableProcessors();
+
+        final ExecutorService executor = Executors.newFixedThreadPool( threads );
         try {
-            ImageIO.write( loaded, "jpg", imageCacheFile );
-        } catch ( final IOException e ) {
-            System.err.println("Could not store cache image for " + email + ": " + e.getMessage() );
-            imageCacheFile.delete();
-            return loaded;
+            final MosaicRenderer renderer = new MosaicRenderer( canvas._width, canvas._height, canvas._packer, executor );
+            final double[] shares = shares( counts );
+            double fill = MosaicFitter.DEFAULT_FILL;
+            if ( canvas._autoFit ) {
+                fill = new MosaicFitter( renderer, executor, threads ).fit( shares, !unsortedFiles.isEmpty(), !sortedFiles.isEmpty() );
+                System.out.println( String.format( "Sizing tiles for %.1f%% of the canvas", Double.valueOf( fill * 100 ) ) );
+            }
+            final List<AvatarPipeline.Request> requests = requests( counts, shares, renderer, fill );
+            if ( canvas._bandHeight > 0 ) {
+                final int[] sizes = new int[requests.size()];
+                for ( int i = 0; i < sizes.length; i++ ) {
+                    sizes[i] = requests.get( i ).getSize();
+                }
+                final BandedMosaicWriter writer = new BandedMosaicWriter( canvas._width, canvas._height, canvas._bandHeight, avatars, executor,
+                        encoder.pngLevel() );
+                if ( !unsortedFiles.isEmpty() ) {
+                    writeBanded( writer, requests, renderer.layout( sizes, sizes, false ), unsortedFiles );
+                }
+                if ( !sortedFiles.isEmpty() ) {
+                    writeBanded( writer, requests, renderer.layout( sizes, sizes, true ), sortedFiles );
+                }
+                return;
+            }
+
+            final List<BufferedImage> tiles = loadImages( requests, avatars );
+            final List<Future<?>> encodes = Lists.newArrayList();
+            if ( !unsortedFiles.isEmpty() ) {
+                encodes.addAll( encoder.submit( renderer.render( renderer.layout( tiles, false ), tiles ), unsortedFiles, executor ) );
+            }
+            if ( !sortedFiles.isEmpty() ) {
+                encodes.addAll( encoder.submit( renderer.render( renderer.layout( tiles, true ), tiles ), sortedFiles, executor ) );
+            }
+            MosaicEncoder.await( encodes );
+        } finally {
+            executor.shutdownNow();
         }
-        
-        return loaded;
     }
 
-    private static BufferedImage loadGravatarImage( final String email ) throws MalformedURLException, IOException {
-        final String imageUrl = "http://www.gravatar.com/avatar/" + MD5Util.md5Hex( email ) + "?s=512&d=identicon&r=x";
+    /**
+     * Streams the mosaic into the first file and copies it to the others.
+     */
+    private static void writeBanded( final BandedMosaicWriter writer, final List<AvatarPipeline.Request> requests, final MosaicRenderer.Layout layout,
+            final List<String> files ) throws IOException, InterruptedException {
+        final File first = new File( files.get( 0 ) + ".png" );
+        writer.write( requests, layout, first );
+        for ( final String file : files.subList( 1, files.size() ) ) {
+            Files.copy( first, new File( file + ".png" ) );
+        }
+    }
 
-        final URL url = new URL( imageUrl );
-        final URLConnection openConnection = url.openConnection();
+    /**
+     * @return the share of the lines of each author
+     */
+    private static double[] shares( final AuthorCounts counts ) {
+        final long sum = counts.total();
+        final double[] shares = new double[counts.size()];
+        for ( int index = 0; index < shares.length; index++ ) {
+            shares[index] = ( (double)counts.count( index ) / (double)sum );
+        }
+        return shares;
+    }
 
-        final InputStream inputStream = openConnection.getInputStream();
+    /**
+     * @return a tile for every author, sized by the share of the lines for <code>fill</code> of
+     *         the canvas
+     */
+    private static List<AvatarPipeline.Request> requests( final AuthorCounts counts, final double[] shares, final MosaicRenderer renderer,
+            final double fill ) {
+        final List<AvatarPipeline.Request> requests = Lists.newArrayList();
+        
+        for ( int index = 0; index < counts.size(); index++ ) {
+            final String email = counts.name( index );
+            final double percent = shares[index];
+            System.out.println( percent );
+            
+            final int occupyableSpace = renderer.tileSize( percent, fill );
 
-        final byte[] imageBytes = ByteStreams.toByteArray( inputStream );
+            if ( occupyableSpace == 0 ) {
+                continue;
+            }
 
-        inputStream.close();
+            final String text = String.format( "%.2f%%, %s, %s Lines", Double.valueOf( percent * 100.0D ), email.replaceAll( "@.+", "" ), String.valueOf( counts.count( index ) )  );
+            requests.add( new AvatarPipeline.Request( email, occupyableSpace, text ) );
+        }
+        return requests;
+    }
 
-        final BufferedImage image = ImageIO.read( new ByteArrayInputStream( imageBytes ) );
-        return image;
+    private static List<BufferedImage> loadImages( final List<AvatarPipeline.Request> requests, final AvatarPipeline avatars )
+    throws IOException, InterruptedException {
+        final ImmutableList.Builder<BufferedImage> images = ImmutableList.builder();
+        avatars.run( requests, new AvatarPipeline.Consumer() {
+            @Override
+            public void tile( final AvatarPipeline.Request request, final BufferedImage tile ) {
+                images.add( tile );
+            }
+        } );
+        
+        return images.build();
     }
 
     public static class MD5Util {
@@ -0,0 +1,214 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The MaxRects packer from Jukka Jylanki's "A Thousand Ways to Pack the Bin". It keeps every
+ * maximal free rectangle, overlapping each other, rather than one partition of the free space.
+ * A new rectangle goes into the free rectangle the heuristic likes best, at its top left corner.
+ * Then every free rectangle it overlaps is cut into the up to four maximal pieces around it, and
+ * pieces inside other free rectangles are dropped.
+ * </p>
+ * <p>
+ * This fills much better than the binary tree, whose splits decide early where the room goes. But
+ * each insert compares the new pieces with all free rectangles, whose number grows with the number
+ * of placed ones. Rectangles are not rotated, avatars are square anyway.
+ * </p>
+ */
+final class MaxRectsPacker implements Packer {
+
+    enum Heuristic {
+        /**
+         * Smallest leftover along the shorter side, then along the longer side.
+         */
+        BEST_SHORT_SIDE,
+        /**
+         * Smallest leftover area, then smallest leftover along the shorter side.
+         */
+        BEST_AREA
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int _width;
+    private final int _height;
+    private final Heuristic _heuristic;
+
+    private int[] _freeX = new int[INITIAL_CAPACITY];
+    private int[] _freeY = new int[INITIAL_CAPACITY];
+    private int[] _freeWidth = new int[INITIAL_CAPACITY];
+    private int[] _freeHeight = new int[INITIAL_CAPACITY];
+    private int _free;
+
+    private int[] _x = new int[INITIAL_CAPACITY];
+    private int[] _y = new int[INITIAL_CAPACITY];
+    private int _placed;
+
+    MaxRectsPacker( final int width, final int height, final Heuristic heuristic ) {
+        _width = width;
+        _height = height;
+        _heuristic = heuristic;
+        reset();
+    }
+
+    @Override
+    public void reset() {
+        _free = 0;
+        _placed = 0;
+        addFree( 0, 0, _width, _height );
+    }
+
+    @Override
+    public int insert( final int width, final int height ) {
+        int best = -1;
+        long bestPrimary = Long.MAX_VALUE;
+        long bestSecondary = Long.MAX_VALUE;
+        for ( int i = 0; i < _free; i++ ) {
+            if ( width > _freeWidth[i] || height > _freeHeight[i] ) {
+                continue;
+            }
+            final int leftoverWidth = _freeWidth[i] - width;
+            final int leftoverHeight = _freeHeight[i] - height;
+            final int shortSide = Math.min( leftoverWidth, leftoverHeight );
+            final long primary;
+            final long secondary;
+            switch ( _heuristic ) {
+                case BEST_AREA:
+                    primary = (long)_freeWidth[i] * _freeHeight[i] - (long)width * height;
+                    secondary = shortSide;
+                    break;
+                default:
+                    primary = shortSide;
+                    secondary = Math.max( leftoverWidth, leftoverHeight );
+            }
+            if ( primary < bestPrimary || primary == bestPrimary && secondary < bestSecondary ) {
+                best = i;
+                bestPrimary = primary;
+                bestSecondary = secondary;
+            }
+        }
+        if ( best < 0 ) {
+            return -1;
+        }
+
+        final int x = _freeX[best];
+        final int y = _freeY[best];
+        final int first = _free;
+        split( x, y, width, height );
+        prune( first );
+        return place( x, y );
+    }
+
+    @Override
+    public int x( final int handle ) {
+        return _x[handle];
+    }
+
+    @Override
+    public int y( final int handle ) {
+        return _y[handle];
+    }
+
+    /**
+     * Replaces every free rectangle the placed one overlaps by the free pieces around it.
+     */
+    private void split( final int x, final int y, final int width, final int height ) {
+        final int right = x + width;
+        final int bottom = y + height;
+        final int count = _free;
+        for ( int i = 0; i < count; i++ ) {
+            final int freeX = _freeX[i];
+            final int freeY = _freeY[i];
+            final int freeRight = freeX + _freeWidth[i];
+            final int freeBottom = freeY + _freeHeight[i];
+            if ( x >= freeRight || right <= freeX || y >= freeBottom || bottom <= freeY ) {
+                continue;
+            }
+            if ( y > freeY ) {
+                addFree( freeX, freeY, freeRight - freeX, y - freeY );
+            }
+            if ( bottom < freeBottom ) {
+                addFree( freeX, bottom, freeRight - freeX, freeBottom - bottom );
+            }
+            if ( x > freeX ) {
+                addFree( freeX, freeY, x - freeX, freeBottom - freeY );
+            }
+            if ( right < freeRight ) {
+                addFree( right, freeY, freeRight - right, freeBottom - freeY );
+            }
+            _freeWidth[i] = 0;
+        }
+    }
+
+    /**
+     * Drops the free rectangles that were split, and the new pieces that lie inside another free
+     * rectangle. The older ones were pruned before, and cannot lie inside a piece of one of them.
+     */
+    private void prune( final int first ) {
+        for ( int i = first; i < _free; i++ ) {
+            if ( _freeWidth[i] == 0 ) {
+                continue;
+            }
+            for ( int j = 0; j < _free; j++ ) {
+                if ( j == i || _freeWidth[j] == 0 ) {
+                    continue;
+                }
+                if ( contains( j, i ) ) {
+                    _freeWidth[i] = 0;
+                    break;
+                }
+                if ( contains( i, j ) ) {
+                    _freeWidth[j] = 0;
+                }
+            }
+        }
+        int kept = 0;
+        for ( int i = 0; i < _free; i++ ) {
+            if ( _freeWidth[i] == 0 ) {
+                continue;
+            }
+            _freeX[kept] = _freeX[i];
+            _freeY[kept] = _freeY[i];
+            _freeWidth[kept] = _freeWidth[i];
+            _freeHeight[kept] = _freeHeight[i];
+            kept++;
+        }
+        _free = kept;
+    }
+
+    /**
+     * @return whether free rectangle <code>outer</code> contains free rectangle <code>inner</code>
+     */
+    private boolean contains( final int outer, final int inner ) {
+        return _freeX[inner] >= _freeX[outer] && _freeY[inner] >= _freeY[outer]
+                && _freeX[inner] + _freeWidth[inner] <= _freeX[outer] + _freeWidth[outer]
+                && _freeY[inner] + _freeHeight[inner] <= _freeY[outer] + _freeHeight[outer];
+    }
+
+    private void addFree( final int x, final int y, final int width, final int height ) {
+        if ( _free == _freeX.length ) {
+            final int capacity = _free * 2;
+            _freeX = Arrays.copyOf( _freeX, capacity );
+            _freeY = Arrays.copyOf( _freeY, capacity );
+            _freeWidth = Arrays.copyOf( _freeWidth, capacity );
+            _freeHeight = Arrays.copyOf( _freeHeight, capacity );
+        }
+        _freeX[_free] = x;
+        _freeY[_free] = y;
+        _freeWidth[_free] = width;
+        _freeHeight[_free] = height;
+        _free++;
+    }
+
+    private int place( final int x, final int y ) {
+        if ( _placed == _x.length ) {
+            _x = Arrays.copyOf( _x, _placed * 2 );
+            _y = Arrays.copyOf( _y, _placed * 2 );
+        }
+        _x[_placed] = x;
+        _y[_placed] = y;
+        return _placed++;
+    }
+
+}
@@ -0,0 +1,244 @@
+package org.thiesen.cogitter;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.google.common.collect.Lists;
+
+/**
+ * <p>
+ * Encodes rendered mosaics in the requested formats and writes them out. Every format of every
+ * image is its own task, so the encoders run side by side and next to the drawing of the following
+ * image. Each encoding is made once in memory and written to all its files through a channel.
+ * </p>
+ * <p>
+ * JPEGs use the quality and progressive mode given, or exactly what <code>ImageIO</code> writes by
+ * default when neither is. PNGs go through the {@link PngStreamWriter} at the given deflate level.
+ * WebP needs an <code>ImageIO</code> writer plugin on the class path and is skipped without one.
+ * </p>
+ */
+final class MosaicEncoder {
+
+    enum Format {
+        JPG, PNG, WEBP;
+
+        static Format parse( final String name ) {
+            return valueOf( name.toUpperCase( Locale.ROOT ) );
+        }
+
+        String extension() {
+            return name().toLowerCase( Locale.ROOT );
+        }
+    }
+
+    /**
+     * The three mosaics of a report, by the suffix of their file name.
+     */
+    enum Output {
+        PLAIN( "2" ), SORTED( "-sorted" ), UNSORTED( "-unsorted" );
+
+        private final String _suffix;
+
+        private Output( final String suffix ) {
+            _suffix = suffix;
+        }
+
+        /**
+         * @param name the suffix, without the leading dash
+         */
+        static Output parse( final String name ) {
+            for ( final Output output : values() ) {
+                if ( output._suffix.equals( name ) || output._suffix.equals( "-" + name ) ) {
+                    return output;
+                }
+            }
+            throw new IllegalArgumentException( "Unknown output '" + name + "', expected 2, sorted or unsorted" );
+        }
+
+        String file( final String base ) {
+            return base + _suffix;
+        }
+    }
+
+    /**
+     * The largest slice of an encoding handed to the channel at once, which bounds the temporary
+     * direct buffer the channel copies it into.
+     */
+    private static final int WRITE_SIZE = 1024 * 1024;
+
+    private final Set<Format> _formats;
+    private final Set<Output> _outputs;
+    private final int _jpegQuality;
+    private final boolean _progressive;
+    private final int _pngLevel;
+
+    /**
+     * @param jpegQuality from 0 to 100, or -1 for the default
+     * @param pngLevel from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    MosaicEncoder( final Set<Format> formats, final Set<Output> outputs, final int jpegQuality, final boolean progressive, final int pngLevel ) {
+        _formats = EnumSet.noneOf( Format.class );
+        _formats.addAll( formats );
+        _outputs = EnumSet.noneOf( Output.class );
+        _outputs.addAll( outputs );
+        _jpegQuality = jpegQuality;
+        _progressive = progressive;
+        _pngLevel = pngLevel;
+
+        if ( _formats.contains( Format.WEBP ) && !ImageIO.getImageWritersByFormatName( "webp" ).hasNext() ) {
+            System.err.println("No WebP writer available, skipping webp output");
+            _formats.remove( Format.WEBP );
+        }
+    }
+
+    boolean wants( final Output output ) {
+        return _outputs.contains( output );
+    }
+
+    int pngLevel() {
+        return _pngLevel;
+    }
+
+    /**
+     * @return the files the wanted outputs go to, without extension
+     */
+    List<String> files( final String base, final Output... outputs ) {
+        final List<String> files = Lists.newArrayListWithCapacity( outputs.length );
+        for ( final Output output : outputs ) {
+            if ( wants( output ) ) {
+                files.add( output.file( base ) );
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Starts encoding the image in every format, each to be written to all the files with the
+     * extension of the format.
+     */
+    List<Future<?>> submit( final BufferedImage image, final List<String> files, final ExecutorService executor ) {
+        final List<Future<?>> encodes = Lists.newArrayListWithCapacity( _formats.size() );
+        for ( final Format format : _formats ) {
+            encodes.add( executor.submit( new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final byte[] data = encode( image, format );
+                    for ( final String file : files ) {
+                        write( data, new File( file + "." + format.extension() ) );
+                    }
+                    return null;
+                }
+            } ) );
+        }
+        return encodes;
+    }
+
+    static void await( final List<Future<?>> encodes ) throws IOException, InterruptedException {
+        for ( final Future<?> encode : encodes ) {
+            try {
+                encode.get();
+            } catch ( final ExecutionException e ) {
+                if ( e.getCause() instanceof IOException ) {
+                    throw (IOException)e.getCause();
+                }
+                throw new IllegalStateException( e.getCause() );
+            }
+        }
+    }
+
+    private byte[] encode( final BufferedImage image, final Format format ) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        switch ( format ) {
+            case PNG: {
+                final PngStreamWriter png = new PngStreamWriter( out, image.getWidth(), image.getHeight(), _pngLevel );
+                png.write( AvatarScaler.pixels( AvatarScaler.intRgb( image ) ), image.getHeight() );
+                png.close();
+                break;
+            }
+            case JPG: {
+                if ( _jpegQuality < 0 && !_progressive ) {
+                    if ( !ImageIO.write( image, "jpg", out ) ) {
+                        throw new IOException( "no JPEG writer" );
+                    }
+                    break;
+                }
+                final ImageWriter writer = writer( "jpg" );
+                final ImageWriteParam param = writer.getDefaultWriteParam();
+                if ( _jpegQuality >= 0 ) {
+                    param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+                    param.setCompressionQuality( _jpegQuality / 100f );
+                }
+                if ( _progressive ) {
+                    param.setProgressiveMode( ImageWriteParam.MODE_DEFAULT );
+                }
+                write( writer, image, param, out );
+                break;
+            }
+            default: {
+                final ImageWriter writer = writer( format.extension() );
+                write( writer, image, writer.getDefaultWriteParam(), out );
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static ImageWriter writer( final String format ) throws IOException {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName( format );
+        if ( !writers.hasNext() ) {
+            throw new IOException( "no " + format + " writer" );
+        }
+        return writers.next();
+    }
+
+    private static void write( final ImageWriter writer, final BufferedImage image, final ImageWriteParam param, final ByteArrayOutputStream out )
+    throws IOException {
+        final ImageOutputStream stream = ImageIO.createImageOutputStream( out );
+        try {
+            writer.setOutput( stream );
+            writer.write( null, new IIOImage( image, null, null ), param );
+        } finally {
+            writer.dispose();
+            stream.close();
+        }
+    }
+
+    /**
+     * Writes the data through the channel of the file, in slices of at most {@link #WRITE_SIZE}.
+     */
+    static void write( final byte[] data, final File file ) throws IOException {
+        final FileOutputStream out = new FileOutputStream( file );
+        try {
+            final FileChannel channel = out.getChannel();
+            for ( int offset = 0; offset < data.length; offset += WRITE_SIZE ) {
+                final ByteBuffer slice = ByteBuffer.wrap( data, offset, Math.min( WRITE_SIZE, data.length - offset ) );
+                while ( slice.hasRemaining() ) {
+                    channel.write( slice );
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+}
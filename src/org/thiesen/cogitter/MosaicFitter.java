@@ -0,0 +1,111 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+
+/**
+ * <p>
+ * Finds how much of the canvas the tiles can cover with every one of them still packed, instead of
+ * sizing them for a fixed {@link #DEFAULT_FILL}. The tiles keep their shares, only the part of the
+ * canvas they are sized for changes.
+ * </p>
+ * <p>
+ * Each round packs a number of candidate fills spread evenly between the largest one known to fit
+ * and the smallest one known not to, all at once on the executor, and narrows the range down to
+ * the neighbours of the largest candidate that fits. Candidates are pure geometry: sizes and a
+ * packer, no pixels, so only the winning fill is ever loaded and drawn. Whether the tiles fit does
+ * not always grow with a smaller fill, as a packer can trip over one size and not the next, so
+ * the result is the largest fill seen to fit rather than the largest there is.
+ * </p>
+ */
+final class MosaicFitter {
+
+    static final double DEFAULT_FILL = 0.7;
+
+    /**
+     * The search stops once the range is narrower than this part of the canvas.
+     */
+    private static final double PRECISION = 0.001;
+
+    private final MosaicRenderer _renderer;
+    private final ExecutorService _executor;
+    private final int _candidates;
+
+    /**
+     * @param candidates the number of fills packed per round, best the number of threads of the
+     *            executor
+     */
+    MosaicFitter( final MosaicRenderer renderer, final ExecutorService executor, final int candidates ) {
+        _renderer = renderer;
+        _executor = executor;
+        _candidates = Math.max( 2, candidates );
+    }
+
+    /**
+     * @param shares the share of the lines of each author
+     * @param unsorted whether the tiles have to fit in the given order
+     * @param sorted whether the tiles have to fit widest first
+     * @return the largest fill, up to the whole canvas, at which all tiles fit
+     */
+    double fit( final double[] shares, final boolean unsorted, final boolean sorted ) throws InterruptedException {
+        double low = 0;
+        double high = 1;
+        while ( high - low >= PRECISION ) {
+            final double[] fills = new double[_candidates];
+            final List<Future<Boolean>> packings = Lists.newArrayListWithCapacity( _candidates );
+            for ( int i = 0; i < _candidates; i++ ) {
+                final double fill = low + ( high - low ) * ( i + 1 ) / _candidates;
+                fills[i] = fill;
+                packings.add( _executor.submit( new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return Boolean.valueOf( fits( shares, fill, unsorted, sorted ) );
+                    }
+                } ) );
+            }
+
+            int largest = -1;
+            for ( int i = 0; i < _candidates; i++ ) {
+                if ( get( packings.get( i ) ) ) {
+                    largest = i;
+                }
+            }
+            if ( largest == _candidates - 1 ) {
+                return high;
+            }
+            if ( largest >= 0 ) {
+                low = fills[largest];
+            }
+            high = fills[largest + 1];
+        }
+        return low;
+    }
+
+    private boolean fits( final double[] shares, final double fill, final boolean unsorted, final boolean sorted ) {
+        final int[] sizes = new int[shares.length];
+        int count = 0;
+        for ( final double share : shares ) {
+            final int size = _renderer.tileSize( share, fill );
+            if ( size > 0 ) {
+                sizes[count++] = size;
+            }
+        }
+        final int[] tiles = count == sizes.length ? sizes : Arrays.copyOf( sizes, count );
+        return ( !unsorted || _renderer.fits( tiles, false ) ) && ( !sorted || _renderer.fits( tiles, true ) );
+    }
+
+    private static boolean get( final Future<Boolean> packing ) throws InterruptedException {
+        try {
+            return packing.get().booleanValue();
+        } catch ( final ExecutionException e ) {
+            throw new IllegalStateException( e.getCause() );
+        }
+    }
+
+}
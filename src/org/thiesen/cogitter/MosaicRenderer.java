@@ -0,0 +1,187 @@
+package org.thiesen.cogitter;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+
+/**
+ * <p>
+ * Lays out avatar tiles on a canvas and draws them. Layouts are pure geometry, computed with the
+ * {@link Packer} before any pixel is touched, so that outputs with the same layout are
+ * drawn and encoded only once.
+ * </p>
+ * <p>
+ * Placed tiles never overlap, so each one is copied into the pixel array of the canvas by its own
+ * task, row by row, without any locking.
+ * </p>
+ */
+final class MosaicRenderer {
+
+    /**
+     * Where the tiles went, in the order they were placed.
+     */
+    static final class Layout {
+        private final int[] _tiles;
+        private final int[] _x;
+        private final int[] _y;
+        private int _count;
+
+        private Layout( final int capacity ) {
+            _tiles = new int[capacity];
+            _x = new int[capacity];
+            _y = new int[capacity];
+        }
+
+        private void add( final int tile, final int x, final int y ) {
+            _tiles[_count] = tile;
+            _x[_count] = x;
+            _y[_count] = y;
+            _count++;
+        }
+
+        int size() {
+            return _count;
+        }
+
+        /**
+         * @return the index of the <code>i</code>-th placed tile
+         */
+        int tile( final int i ) {
+            return _tiles[i];
+        }
+
+        int x( final int i ) {
+            return _x[i];
+        }
+
+        int y( final int i ) {
+            return _y[i];
+        }
+    }
+
+    private final int _width;
+    private final int _height;
+    private final Packer.Algorithm _algorithm;
+    private final ExecutorService _executor;
+
+    MosaicRenderer( final int width, final int height, final Packer.Algorithm algorithm, final ExecutorService executor ) {
+        _width = width;
+        _height = height;
+        _algorithm = algorithm;
+        _executor = executor;
+    }
+
+    Layout layout( final List<BufferedImage> tiles, final boolean sorted ) {
+        final int[] widths = new int[tiles.size()];
+        final int[] heights = new int[tiles.size()];
+        for ( int i = 0; i < widths.length; i++ ) {
+            widths[i] = tiles.get( i ).getWidth();
+            heights[i] = tiles.get( i ).getHeight();
+        }
+        return layout( widths, heights, sorted );
+    }
+
+    /**
+     * @return the side of the square tile for an author with the given share of the lines, when
+     *         the tiles are to cover <code>fill</code> of the canvas, at most its shorter side
+     */
+    int tileSize( final double share, final double fill ) {
+        return Math.min( (int)Math.floor( Math.sqrt( (double)_width * _height * share * fill ) ), Math.min( _width, _height ) );
+    }
+
+    /**
+     * Places the tiles in the given order, or widest first if <code>sorted</code>, ties in the
+     * given order. Tiles that do not fit are reported and left out.
+     */
+    Layout layout( final int[] widths, final int[] heights, final boolean sorted ) {
+        final Integer[] order = order( widths, sorted );
+        final Packer packer = _algorithm.create( _width, _height );
+        final Layout layout = new Layout( order.length );
+        for ( final Integer index : order ) {
+            final int i = index.intValue();
+            final int handle = packer.insert( widths[i], heights[i] );
+            if ( handle < 0 ) {
+                System.err.println("Could not pack image with size " + widths[i] + " in " + ( sorted ? "sorted" : "unsorted" ) );
+                continue;
+            }
+            layout.add( i, packer.x( handle ), packer.y( handle ) );
+        }
+        return layout;
+    }
+
+    /**
+     * @return whether all the square tiles fit, in the order {@link #layout(int[], int[], boolean)}
+     *         would place them
+     */
+    boolean fits( final int[] sizes, final boolean sorted ) {
+        final Packer packer = _algorithm.create( _width, _height );
+        for ( final Integer index : order( sizes, sorted ) ) {
+            final int size = sizes[index.intValue()];
+            if ( packer.insert( size, size ) < 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Integer[] order( final int[] widths, final boolean sorted ) {
+        final Integer[] order = new Integer[widths.length];
+        for ( int i = 0; i < order.length; i++ ) {
+            order[i] = Integer.valueOf( i );
+        }
+        if ( sorted ) {
+            Arrays.sort( order, new Comparator<Integer>() {
+                @Override
+                public int compare( final Integer o1, final Integer o2 ) {
+                    return widths[o2.intValue()] - widths[o1.intValue()];
+                }
+            } );
+        }
+        return order;
+    }
+
+    /**
+     * @return a new <code>TYPE_INT_RGB</code> canvas with the tiles copied to their places
+     */
+    BufferedImage render( final Layout layout, final List<BufferedImage> tiles ) throws InterruptedException {
+        final BufferedImage canvas = new BufferedImage( _width, _height, BufferedImage.TYPE_INT_RGB );
+        final int[] pixels = AvatarScaler.pixels( canvas );
+
+        final List<Future<?>> copies = Lists.newArrayListWithCapacity( layout._count );
+        for ( int i = 0; i < layout._count; i++ ) {
+            final BufferedImage tile = tiles.get( layout._tiles[i] );
+            final int x = layout._x[i];
+            final int y = layout._y[i];
+            copies.add( _executor.submit( new Runnable() {
+                @Override
+                public void run() {
+                    copy( AvatarScaler.intRgb( tile ), pixels, x, y );
+                }
+            } ) );
+        }
+        for ( final Future<?> copy : copies ) {
+            try {
+                copy.get();
+            } catch ( final ExecutionException e ) {
+                throw new IllegalStateException( e.getCause() );
+            }
+        }
+        return canvas;
+    }
+
+    private void copy( final BufferedImage tile, final int[] pixels, final int x, final int y ) {
+        final int[] source = AvatarScaler.pixels( tile );
+        final int width = Math.min( tile.getWidth(), _width - x );
+        final int height = Math.min( tile.getHeight(), _height - y );
+        for ( int row = 0; row < height; row++ ) {
+            System.arraycopy( source, row * tile.getWidth(), pixels, ( y + row ) * _width + x, width );
+        }
+    }
+
+}
@@ -0,0 +1,611 @@
+package org.thiesen.cogitter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * <p>
+ * Read-only access to the objects and refs of a repository without starting git: loose objects,
+ * packs (see {@link PackFile}), alternates, packed refs, linked worktrees and shallow clones.
+ * </p>
+ * <p>
+ * Parsed commits are kept for the lifetime of the database, parsed trees and delta bases in
+ * caches of limited size, so all threads working on one repository share them. The repository
+ * is expected not to change while it is read; packs added later are not seen. SHA-256
+ * repositories and the reftable ref format are not supported.
+ * </p>
+ */
+final class ObjectDatabase {
+
+    static final int COMMIT = 1;
+    static final int TREE = 2;
+    static final int BLOB = 3;
+    static final int TAG = 4;
+
+    static final class RawObject {
+        private final int _type;
+        private final byte[] _data;
+
+        RawObject( final int type, final byte[] data ) {
+            _type = type;
+            _data = data;
+        }
+
+        int getType() {
+            return _type;
+        }
+
+        byte[] getData() {
+            return _data;
+        }
+    }
+
+    static final class Commit {
+        private final ObjectId _tree;
+        private final ObjectId[] _parents;
+        private final int _author;
+        private final long _time;
+
+        private Commit( final ObjectId tree, final ObjectId[] parents, final int author, final long time ) {
+            _tree = tree;
+            _parents = parents;
+            _author = author;
+            _time = time;
+        }
+
+        ObjectId getTree() {
+            return _tree;
+        }
+
+        ObjectId[] getParents() {
+            return _parents;
+        }
+
+        /**
+         * @return the id of the author email in the author table, after applying the mailmap
+         */
+        int getAuthor() {
+            return _author;
+        }
+
+        /**
+         * @return the commit time in seconds
+         */
+        long getTime() {
+            return _time;
+        }
+    }
+
+    /**
+     * A parsed tree, its entries are found by binary search in git's tree order.
+     */
+    static final class Tree {
+        private static final int TYPE_MASK = 0170000;
+        private static final int TYPE_TREE = 0040000;
+        private static final int TYPE_FILE = 0100000;
+        private static final int TYPE_SYMLINK = 0120000;
+
+        private final byte[] _data;
+        private final int[] _modes;
+        private final int[] _nameStarts;
+        private final int[] _nameEnds;
+
+        private Tree( final byte[] data ) throws IOException {
+            int count = 0;
+            for ( int position = 0; position < data.length; count++ ) {
+                position = indexOf( data, (byte)0, position ) + 1 + ObjectId.LENGTH;
+                if ( position <= ObjectId.LENGTH || position > data.length ) {
+                    throw new IOException( "Corrupt tree" );
+                }
+            }
+
+            _data = data;
+            _modes = new int[count];
+            _nameStarts = new int[count];
+            _nameEnds = new int[count];
+            int position = 0;
+            for ( int i = 0; i < count; i++ ) {
+                int mode = 0;
+                while ( data[position] != ' ' ) {
+                    mode = ( mode << 3 ) + data[position++] - '0';
+                }
+                _modes[i] = mode;
+                _nameStarts[i] = position + 1;
+                _nameEnds[i] = indexOf( data, (byte)0, position );
+                position = _nameEnds[i] + 1 + ObjectId.LENGTH;
+            }
+        }
+
+        private static int indexOf( final byte[] data, final byte value, final int from ) {
+            for ( int i = from; i < data.length; i++ ) {
+                if ( data[i] == value ) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int size() {
+            return _modes.length;
+        }
+
+        boolean isTree( final int entry ) {
+            return ( _modes[entry] & TYPE_MASK ) == TYPE_TREE;
+        }
+
+        /**
+         * @return whether the entry is a regular file, executable or not, or a symbolic link
+         */
+        boolean isFile( final int entry ) {
+            final int type = _modes[entry] & TYPE_MASK;
+            return type == TYPE_FILE || type == TYPE_SYMLINK;
+        }
+
+        String name( final int entry ) {
+            return new String( _data, _nameStarts[entry], _nameEnds[entry] - _nameStarts[entry], GitPaths.UTF8 );
+        }
+
+        byte[] nameBytes( final int entry ) {
+            return Arrays.copyOfRange( _data, _nameStarts[entry], _nameEnds[entry] );
+        }
+
+        ObjectId id( final int entry ) {
+            return ObjectId.fromBytes( _data, _nameEnds[entry] + 1 );
+        }
+
+        boolean hasId( final int entry, final ObjectId id ) {
+            return id.equalsAt( _data, _nameEnds[entry] + 1 );
+        }
+
+        /**
+         * @return the index of the subtree or, if <code>tree</code> is false, the other entry
+         *         with the given name, or -1
+         */
+        int find( final byte[] name, final boolean tree ) {
+            int low = 0;
+            int high = _modes.length - 1;
+            while ( low <= high ) {
+                final int middle = ( low + high ) >>> 1;
+                final int compared = compare( middle, name, tree );
+                if ( compared == 0 ) {
+                    return middle;
+                } else if ( compared < 0 ) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Compares like git sorts trees, as if the names of subtrees ended with a slash.
+         */
+        private int compare( final int entry, final byte[] name, final boolean tree ) {
+            final int start = _nameStarts[entry];
+            final int length = _nameEnds[entry] - start;
+            final boolean entryTree = isTree( entry );
+            for ( int i = 0;; i++ ) {
+                final int a = i < length ? _data[start + i] & 0xff : i == length && entryTree ? '/' : -1;
+                final int b = i < name.length ? name[i] & 0xff : i == name.length && tree ? '/' : -1;
+                if ( a != b ) {
+                    return a - b;
+                }
+                if ( a == -1 ) {
+                    return 0;
+                }
+            }
+        }
+    }
+
+    private final File _gitDir;
+    private final File _commonDir;
+    private final File _workTree;
+    private final AuthorTable _authors;
+    private final List<File> _objectDirs = Lists.newArrayList();
+    private final List<PackFile> _packs = Lists.newArrayList();
+    private final Set<ObjectId> _shallow = Sets.newHashSet();
+    private final ConcurrentMap<ObjectId, Commit> _commits = Maps.newConcurrentMap();
+    private final LruCache<ObjectId, Tree> _trees;
+    private final LruCache<PackFile.Position, RawObject> _deltaBases;
+    private volatile Mailmap _mailmap = Mailmap.EMPTY;
+
+    private ObjectDatabase( final File gitDir, final File commonDir, final File workTree, final AuthorTable authors, final long cacheBytes ) {
+        _gitDir = gitDir;
+        _commonDir = commonDir;
+        _workTree = workTree;
+        _authors = authors;
+        _trees = new LruCache<ObjectId, Tree>( cacheBytes / 2 );
+        _deltaBases = new LruCache<PackFile.Position, RawObject>( cacheBytes / 2 );
+    }
+
+    /**
+     * Opens the repository of a work tree, of a linked worktree or a bare repository.
+     *
+     * @param cacheBytes the memory to use for cached trees and delta bases
+     */
+    static ObjectDatabase open( final File dir, final AuthorTable authors, final long cacheBytes ) throws IOException {
+        final File dotGit = new File( dir, ".git" );
+        final File gitDir;
+        final File workTree;
+        if ( dotGit.isDirectory() ) {
+            gitDir = dotGit;
+            workTree = dir;
+        } else if ( dotGit.isFile() ) {
+            final String link = Files.toString( dotGit, GitPaths.UTF8 ).trim();
+            if ( !link.startsWith( "gitdir:" ) ) {
+                throw new IOException( "Not a git repository: " + dir );
+            }
+            gitDir = resolve( dir, link.substring( "gitdir:".length() ).trim() );
+            workTree = dir;
+        } else if ( new File( dir, "HEAD" ).isFile() && new File( dir, "objects" ).isDirectory() ) {
+            gitDir = dir;
+            workTree = null;
+        } else {
+            throw new IOException( "Not a git repository: " + dir );
+        }
+
+        final File commonDirFile = new File( gitDir, "commondir" );
+        final File commonDir = commonDirFile.isFile() ? resolve( gitDir, Files.toString( commonDirFile, GitPaths.UTF8 ).trim() ) : gitDir;
+
+        final File config = new File( commonDir, "config" );
+        if ( config.isFile() && Files.toString( config, GitPaths.UTF8 ).replaceAll( "[ \t]", "" ).toLowerCase( Locale.ROOT ).contains( "objectformat=sha256" ) ) {
+            throw new IOException( "SHA-256 repositories are not supported: " + dir );
+        }
+        if ( new File( commonDir, "reftable" ).isDirectory() ) {
+            throw new IOException( "The reftable format is not supported: " + dir );
+        }
+
+        final ObjectDatabase objects = new ObjectDatabase( gitDir, commonDir, workTree, authors, cacheBytes );
+        objects.addObjectDir( new File( commonDir, "objects" ) );
+        objects.readShallow();
+        objects.readMailmap();
+        return objects;
+    }
+
+    private static File resolve( final File base, final String path ) {
+        final File file = new File( path );
+        return file.isAbsolute() ? file : new File( base, path );
+    }
+
+    private void addObjectDir( final File dir ) throws IOException {
+        if ( !dir.isDirectory() || _objectDirs.contains( dir.getCanonicalFile() ) ) {
+            return;
+        }
+        _objectDirs.add( dir.getCanonicalFile() );
+
+        final File[] indexes = new File( dir, "pack" ).listFiles( new FilenameFilter() {
+            @Override
+            public boolean accept( final File parent, final String name ) {
+                return name.endsWith( ".idx" );
+            }
+        } );
+        if ( indexes != null ) {
+            // the newest packs are the most likely to hold recent objects
+            Arrays.sort( indexes, new Comparator<File>() {
+                @Override
+                public int compare( final File o1, final File o2 ) {
+                    return Long.valueOf( o2.lastModified() ).compareTo( Long.valueOf( o1.lastModified() ) );
+                }
+            } );
+            for ( final File index : indexes ) {
+                final File pack = new File( index.getPath().replaceAll( "\\.idx$", ".pack" ) );
+                if ( pack.isFile() ) {
+                    _packs.add( new PackFile( index, pack, this ) );
+                }
+            }
+        }
+
+        final File alternates = new File( dir, "info/alternates" );
+        if ( alternates.isFile() ) {
+            for ( final String line : Files.readLines( alternates, GitPaths.UTF8 ) ) {
+                if ( !line.trim().isEmpty() && !line.startsWith( "#" ) ) {
+                    addObjectDir( resolve( dir, line.trim() ) );
+                }
+            }
+        }
+    }
+
+    private void readShallow() throws IOException {
+        final File shallow = new File( _commonDir, "shallow" );
+        if ( shallow.isFile() ) {
+            for ( final String line : Files.readLines( shallow, GitPaths.UTF8 ) ) {
+                if ( ObjectId.isHex( line.trim() ) ) {
+                    _shallow.add( ObjectId.fromHex( line.trim() ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the <code>.mailmap</code> of the work tree or, in a bare repository, of HEAD.
+     */
+    private void readMailmap() throws IOException {
+        final String text;
+        if ( _workTree != null ) {
+            final File file = new File( _workTree, ".mailmap" );
+            text = file.isFile() ? Files.toString( file, GitPaths.UTF8 ) : null;
+        } else {
+            final ObjectId head = resolveHead();
+            final ObjectId blob = head == null ? null : blobAt( commit( head ).getTree(), new byte[][] { ".mailmap".getBytes( GitPaths.UTF8 ) } );
+            final RawObject raw = blob == null ? null : read( blob );
+            text = raw == null ? null : new String( raw.getData(), GitPaths.UTF8 );
+        }
+        if ( text != null ) {
+            _mailmap = Mailmap.parse( text );
+            // authors of commits parsed so far were not mapped
+            _commits.clear();
+        }
+    }
+
+    /**
+     * @return the commit HEAD points to, or <code>null</code> on an unborn branch
+     */
+    ObjectId resolveHead() throws IOException {
+        String ref = "HEAD";
+        for ( int depth = 0; depth < 10; depth++ ) {
+            final String value = readRef( ref );
+            if ( value == null ) {
+                return null;
+            }
+            if ( value.startsWith( "ref:" ) ) {
+                ref = value.substring( "ref:".length() ).trim();
+            } else if ( ObjectId.isHex( value ) ) {
+                return ObjectId.fromHex( value );
+            } else {
+                throw new IOException( "Cannot resolve " + ref + ": " + value );
+            }
+        }
+        throw new IOException( "Too many symbolic refs from HEAD" );
+    }
+
+    private String readRef( final String name ) throws IOException {
+        final File file = new File( name.equals( "HEAD" ) ? _gitDir : _commonDir, name );
+        if ( file.isFile() ) {
+            return Files.toString( file, GitPaths.UTF8 ).trim();
+        }
+        final File packedRefs = new File( _commonDir, "packed-refs" );
+        if ( packedRefs.isFile() ) {
+            for ( final String line : Files.readLines( packedRefs, GitPaths.UTF8 ) ) {
+                // <id> <name>, or ^<id> of the tag above
+                final int space = line.indexOf( ' ' );
+                if ( space > 0 && !line.startsWith( "#" ) && !line.startsWith( "^" ) && line.substring( space + 1 ).equals( name ) ) {
+                    return line.substring( 0, space );
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the object, or <code>null</code> if it does not exist
+     */
+    RawObject read( final ObjectId id ) throws IOException {
+        for ( final PackFile pack : _packs ) {
+            final int offset = pack.find( id );
+            if ( offset >= 0 ) {
+                return pack.read( offset );
+            }
+        }
+
+        final String hex = id.toHex();
+        for ( final File dir : _objectDirs ) {
+            final File file = new File( dir, hex.substring( 0, 2 ) + File.separator + hex.substring( 2 ) );
+            if ( file.isFile() ) {
+                return readLoose( file );
+            }
+        }
+        return null;
+    }
+
+    private static RawObject readLoose( final File file ) throws IOException {
+        final InputStream in = new InflaterInputStream( new FileInputStream( file ) );
+        final byte[] data;
+        try {
+            data = ByteStreams.toByteArray( in );
+        } finally {
+            in.close();
+        }
+
+        // <type> <size>\0<content>
+        int end = 0;
+        while ( end < data.length && data[end] != 0 ) {
+            end++;
+        }
+        final String header = new String( data, 0, end, GitPaths.UTF8 );
+        final int space = header.indexOf( ' ' );
+        if ( end == data.length || space < 0 || Integer.parseInt( header.substring( space + 1 ) ) != data.length - end - 1 ) {
+            throw new IOException( "Corrupt loose object " + file );
+        }
+        final String type = header.substring( 0, space );
+        final int typeCode = type.equals( "commit" ) ? COMMIT : type.equals( "tree" ) ? TREE : type.equals( "blob" ) ? BLOB : type.equals( "tag" ) ? TAG : -1;
+        if ( typeCode < 0 ) {
+            throw new IOException( "Unknown object type " + type + " in " + file );
+        }
+        return new RawObject( typeCode, Arrays.copyOfRange( data, end + 1, data.length ) );
+    }
+
+    private RawObject read( final ObjectId id, final int type ) throws IOException {
+        final RawObject raw = read( id );
+        if ( raw == null ) {
+            throw new IOException( "Missing object " + id );
+        }
+        if ( raw.getType() != type ) {
+            throw new IOException( "Object " + id + " has type " + raw.getType() + " instead of " + type );
+        }
+        return raw;
+    }
+
+    Commit commit( final ObjectId id ) throws IOException {
+        final Commit cached = _commits.get( id );
+        if ( cached != null ) {
+            return cached;
+        }
+
+        final byte[] data = read( id, COMMIT ).getData();
+        ObjectId tree = null;
+        final List<ObjectId> parents = Lists.newArrayListWithCapacity( 2 );
+        int author = -1;
+        long time = 0;
+
+        int position = 0;
+        while ( position < data.length && data[position] != '\n' ) {
+            int end = position;
+            while ( end < data.length && data[end] != '\n' ) {
+                end++;
+            }
+            final String line = new String( data, position, end - position, GitPaths.UTF8 );
+            if ( line.startsWith( "tree " ) ) {
+                tree = ObjectId.fromHex( line.substring( 5 ) );
+            } else if ( line.startsWith( "parent " ) ) {
+                parents.add( ObjectId.fromHex( line.substring( 7 ) ) );
+            } else if ( line.startsWith( "author " ) ) {
+                final int open = line.indexOf( '<' );
+                final int close = line.indexOf( '>', open + 1 );
+                if ( open >= 0 && close >= 0 ) {
+                    final String email = _mailmap.map( line.substring( 7, open ).trim(), line.substring( open + 1, close ) );
+                    author = _authors.intern( email.toLowerCase( Locale.ROOT ) );
+                }
+            } else if ( line.startsWith( "committer " ) ) {
+                final String[] fields = line.substring( line.lastIndexOf( '>' ) + 1 ).trim().split( " " );
+                try {
+                    time = Long.parseLong( fields[0] );
+                } catch ( final NumberFormatException e ) {
+                    time = 0;
+                }
+            }
+            position = end + 1;
+        }
+        if ( tree == null || author < 0 ) {
+            throw new IOException( "Corrupt commit " + id );
+        }
+
+        final ObjectId[] parentIds = _shallow.contains( id ) ? new ObjectId[0] : parents.toArray( new ObjectId[parents.size()] );
+        final Commit commit = new Commit( tree, parentIds, author, time );
+        final Commit previous = _commits.putIfAbsent( id, commit );
+        return previous == null ? commit : previous;
+    }
+
+    Tree tree( final ObjectId id ) throws IOException {
+        Tree tree = _trees.get( id );
+        if ( tree == null ) {
+            final byte[] data = read( id, TREE ).getData();
+            tree = new Tree( data );
+            _trees.put( id, tree, data.length + tree.size() * 12L + 64 );
+        }
+        return tree;
+    }
+
+    byte[] blob( final ObjectId id ) throws IOException {
+        return read( id, BLOB ).getData();
+    }
+
+    /**
+     * @return the file at <code>path</code>, given as UTF-8 path components, or <code>null</code>
+     */
+    ObjectId blobAt( final ObjectId treeId, final byte[][] path ) throws IOException {
+        ObjectId current = treeId;
+        for ( int i = 0; i < path.length; i++ ) {
+            final Tree tree = tree( current );
+            final boolean last = i == path.length - 1;
+            final int entry = tree.find( path[i], !last );
+            if ( entry < 0 || last && !tree.isFile( entry ) ) {
+                return null;
+            }
+            current = tree.id( entry );
+        }
+        return current;
+    }
+
+    /**
+     * Lists all files of a tree whose path is accepted by <code>filter</code>.
+     */
+    List<SourceFile> listFiles( final ObjectId treeId, final PathFilter filter ) throws IOException {
+        final List<SourceFile> files = Lists.newArrayList();
+        listFiles( treeId, "", filter, files );
+        Collections.sort( files, new Comparator<SourceFile>() {
+            @Override
+            public int compare( final SourceFile o1, final SourceFile o2 ) {
+                return o1.getPath().compareTo( o2.getPath() );
+            }
+        } );
+        return files;
+    }
+
+    /**
+     * Collects the paths of the files that were added, removed or changed between two trees,
+     * skipping the subtrees they have in common.
+     *
+     * @param fromTreeId the older tree, or <code>null</code> for an empty one
+     * @param toTreeId the newer tree, or <code>null</code> for an empty one
+     */
+    void changedPaths( final ObjectId fromTreeId, final ObjectId toTreeId, final String prefix, final Set<String> paths ) throws IOException {
+        final Tree from = fromTreeId == null ? null : tree( fromTreeId );
+        final Tree to = toTreeId == null ? null : tree( toTreeId );
+        for ( int i = 0; to != null && i < to.size(); i++ ) {
+            final boolean isTree = to.isTree( i );
+            final int match = from == null ? -1 : from.find( to.nameBytes( i ), isTree );
+            if ( match >= 0 && from.hasId( match, to.id( i ) ) ) {
+                continue;
+            }
+            if ( isTree ) {
+                changedPaths( match < 0 ? null : from.id( match ), to.id( i ), prefix + to.name( i ) + "/", paths );
+            } else if ( to.isFile( i ) ) {
+                paths.add( prefix + to.name( i ) );
+            }
+        }
+        for ( int i = 0; from != null && i < from.size(); i++ ) {
+            final boolean isTree = from.isTree( i );
+            if ( to != null && to.find( from.nameBytes( i ), isTree ) >= 0 ) {
+                continue;
+            }
+            if ( isTree ) {
+                changedPaths( from.id( i ), null, prefix + from.name( i ) + "/", paths );
+            } else if ( from.isFile( i ) ) {
+                paths.add( prefix + from.name( i ) );
+            }
+        }
+    }
+
+    interface PathFilter {
+        boolean accept( String path );
+    }
+
+    private void listFiles( final ObjectId treeId, final String prefix, final PathFilter filter, final List<SourceFile> files ) throws IOException {
+        final Tree tree = tree( treeId );
+        for ( int i = 0; i < tree.size(); i++ ) {
+            final String path = prefix + tree.name( i );
+            if ( tree.isTree( i ) ) {
+                listFiles( tree.id( i ), path + "/", filter, files );
+            } else if ( tree.isFile( i ) && filter.accept( path ) ) {
+                files.add( new SourceFile( path, tree.id( i ).toHex() ) );
+            }
+        }
+    }
+
+    RawObject deltaBase( final PackFile.Position position ) {
+        return _deltaBases.get( position );
+    }
+
+    void putDeltaBase( final PackFile.Position position, final RawObject base ) {
+        _deltaBases.put( position, base, base.getData().length + 32 );
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.thiesen.cogitter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The 20 byte SHA-1 name of a git object.
+ */
+final class ObjectId {
+
+    static final int LENGTH = 20;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] _bytes;
+    private final int _hash;
+
+    private ObjectId( final byte[] bytes ) {
+        _bytes = bytes;
+        _hash = ( bytes[0] & 0xff ) << 24 | ( bytes[1] & 0xff ) << 16 | ( bytes[2] & 0xff ) << 8 | bytes[3] & 0xff;
+    }
+
+    static ObjectId fromBytes( final byte[] data, final int offset ) {
+        return new ObjectId( Arrays.copyOfRange( data, offset, offset + LENGTH ) );
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>hex</code> is no full object name
+     */
+    static ObjectId fromHex( final String hex ) {
+        if ( hex.length() != LENGTH * 2 ) {
+            throw new IllegalArgumentException( "Not an object id: " + hex );
+        }
+        final byte[] bytes = new byte[LENGTH];
+        for ( int i = 0; i < LENGTH; i++ ) {
+            bytes[i] = (byte)( digit( hex, i * 2 ) << 4 | digit( hex, i * 2 + 1 ) );
+        }
+        return new ObjectId( bytes );
+    }
+
+    static boolean isHex( final String value ) {
+        if ( value.length() != LENGTH * 2 ) {
+            return false;
+        }
+        for ( int i = 0; i < value.length(); i++ ) {
+            if ( Character.digit( value.charAt( i ), 16 ) < 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int digit( final String hex, final int index ) {
+        final int digit = Character.digit( hex.charAt( index ), 16 );
+        if ( digit < 0 ) {
+            throw new IllegalArgumentException( "Not an object id: " + hex );
+        }
+        return digit;
+    }
+
+    int firstByte() {
+        return _bytes[0] & 0xff;
+    }
+
+    /**
+     * Compares with the id stored at <code>offset</code> in <code>data</code>, unsigned byte by byte.
+     */
+    int compareTo( final byte[] data, final int offset ) {
+        for ( int i = 0; i < LENGTH; i++ ) {
+            final int difference = ( _bytes[i] & 0xff ) - ( data[offset + i] & 0xff );
+            if ( difference != 0 ) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    int compareTo( final ByteBuffer data, final int offset ) {
+        for ( int i = 0; i < LENGTH; i++ ) {
+            final int difference = ( _bytes[i] & 0xff ) - ( data.get( offset + i ) & 0xff );
+            if ( difference != 0 ) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    boolean equalsAt( final byte[] data, final int offset ) {
+        return compareTo( data, offset ) == 0;
+    }
+
+    String toHex() {
+        final char[] hex = new char[LENGTH * 2];
+        for ( int i = 0; i < LENGTH; i++ ) {
+            hex[i * 2] = HEX[( _bytes[i] >> 4 ) & 0xf];
+            hex[i * 2 + 1] = HEX[_bytes[i] & 0xf];
+        }
+        return new String( hex );
+    }
+
+    @Override
+    public int hashCode() {
+        return _hash;
+    }
+
+    @Override
+    public boolean equals( final Object obj ) {
+        return obj instanceof ObjectId && Arrays.equals( _bytes, ( (ObjectId)obj )._bytes );
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+}
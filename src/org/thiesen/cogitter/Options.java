@@ -0,0 +1,69 @@
+package org.thiesen.cogitter;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Minimal command line parser. Arguments of the form <code>--name=value</code> or
+ * <code>--name</code> are options and may appear anywhere, everything else is kept
+ * as positional argument in the given order.
+ */
+final class Options {
+
+    private final Map<String, String> _options;
+    private final List<String> _arguments;
+
+    private Options( final Map<String, String> options, final List<String> arguments ) {
+        _options = options;
+        _arguments = arguments;
+    }
+
+    static Options parse( final String[] args ) {
+        final Map<String, String> options = Maps.newHashMap();
+        final List<String> arguments = Lists.newArrayList();
+
+        for ( final String arg : args ) {
+            if ( !arg.startsWith( "--" ) || arg.length() == 2 ) {
+                arguments.add( arg );
+                continue;
+            }
+            final int equals = arg.indexOf( '=' );
+            if ( equals < 0 ) {
+                options.put( arg.substring( 2 ), "" );
+            } else {
+                options.put( arg.substring( 2, equals ), arg.substring( equals + 1 ) );
+            }
+        }
+
+        return new Options( options, arguments );
+    }
+
+    List<String> arguments() {
+        return _arguments;
+    }
+
+    boolean has( final String name ) {
+        return _options.containsKey( name );
+    }
+
+    String get( final String name, final String defaultValue ) {
+        final String value = _options.get( name );
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    int getInt( final String name, final int defaultValue ) {
+        final String value = _options.get( name );
+        if ( value == null || value.isEmpty() ) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt( value );
+        } catch ( final NumberFormatException e ) {
+            throw new IllegalArgumentException( "Option --" + name + " expects a number, got '" + value + "'", e );
+        }
+    }
+
+}
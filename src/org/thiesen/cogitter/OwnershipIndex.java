@@ -0,0 +1,367 @@
+package org.thiesen.cogitter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * <p>
+ * On-disk cache of the per-author line counts of every file, keyed by path and blob id and
+ * stamped with the commit it was computed at.
+ * </p>
+ * <p>
+ * The counts of a file only need to be recomputed if its blob changed or if any commit since the
+ * indexed one touched its path, because blame can change without a content change (a revert, or
+ * a merge picking the other side). If the indexed commit is no ancestor of HEAD, or the
+ * <code>.mailmap</code> changed, everything is recomputed. Files with uncommitted changes are
+ * counted every time and never stored.
+ * </p>
+ * <p>
+ * With the in-process engine the commits since the indexed one are walked in the
+ * {@link ObjectDatabase} instead of asking <code>git log</code>, so that it needs no git there
+ * either. It counts the files as committed at HEAD, which have no uncommitted changes.
+ * </p>
+ */
+class OwnershipIndex {
+
+    private final static int MAGIC = 0x436f4769;
+    private final static int VERSION = 1;
+
+    /**
+     * The commits walked on once only marked ones are left, as git does.
+     */
+    private final static int SLOP = 5;
+
+    /**
+     * A commit on the walk from HEAD, ordered newest first.
+     */
+    private static final class Walked implements Comparable<Walked> {
+        private final ObjectId _id;
+        private final ObjectDatabase.Commit _commit;
+        private boolean _marked;
+        private boolean _done;
+
+        private Walked( final ObjectId id, final ObjectDatabase.Commit commit, final boolean marked ) {
+            _id = id;
+            _commit = commit;
+            _marked = marked;
+        }
+
+        @Override
+        public int compareTo( final Walked other ) {
+            return Long.valueOf( other._commit.getTime() ).compareTo( Long.valueOf( _commit.getTime() ) );
+        }
+    }
+
+    private static class Counts {
+        private final String _blob;
+        private final int[] _authors;
+        private final int[] _lines;
+
+        private Counts( final String blob, final int[] authors, final int[] lines ) {
+            _blob = blob;
+            _authors = authors;
+            _lines = lines;
+        }
+    }
+
+    private final AuthorTable _authorTable;
+    private final String _commit;
+    private final ConcurrentMap<String, Counts> _entries;
+    private final Set<String> _volatilePaths = Sets.newHashSet();
+
+    private OwnershipIndex( final AuthorTable authorTable, final String commit, final ConcurrentMap<String, Counts> entries ) {
+        _authorTable = authorTable;
+        _commit = commit;
+        _entries = entries;
+    }
+
+    /**
+     * Loads the index, an unreadable or missing file yields an empty index.
+     */
+    static OwnershipIndex load( final File file, final AuthorTable authorTable ) {
+        if ( !file.exists() ) {
+            return new OwnershipIndex( authorTable, null, Maps.<String, Counts>newConcurrentMap() );
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            try {
+                if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                    throw new IOException( "not an index file" );
+                }
+                final String commit = in.readUTF();
+
+                final int[] authorIds = new int[in.readInt()];
+                for ( int i = 0; i < authorIds.length; i++ ) {
+                    authorIds[i] = authorTable.intern( in.readUTF() );
+                }
+
+                final ConcurrentMap<String, Counts> entries = Maps.newConcurrentMap();
+                final int fileCount = in.readInt();
+                for ( int i = 0; i < fileCount; i++ ) {
+                    final String path = in.readUTF();
+                    final String blob = in.readUTF();
+                    final int[] authors = new int[in.readInt()];
+                    final int[] lines = new int[authors.length];
+                    for ( int j = 0; j < authors.length; j++ ) {
+                        authors[j] = authorIds[in.readInt()];
+                        lines[j] = in.readInt();
+                    }
+                    entries.put( path, new Counts( blob, authors, lines ) );
+                }
+
+                return new OwnershipIndex( authorTable, commit, entries );
+            } finally {
+                in.close();
+            }
+        } catch ( final IOException e ) {
+            System.err.println("Could not read index " + file + ", rebuilding: " + e.getMessage() );
+            return new OwnershipIndex( authorTable, null, Maps.<String, Counts>newConcurrentMap() );
+        }
+    }
+
+    /**
+     * Adds the counts of all files that are still valid at <code>head</code> to the counter and
+     * drops everything else from the index.
+     *
+     * @param objects the objects of the repository if it is read in-process, otherwise <code>null</code>
+     * @return the files that need to be counted again
+     */
+    List<SourceFile> mergeValid( final File repo, final String head, final List<SourceFile> files, final AuthorCounter counter,
+            final ObjectDatabase objects ) throws IOException, InterruptedException {
+        if ( objects == null ) {
+            final List<String> dirty = Git.lines( repo, "diff", "--name-only", "HEAD" );
+            if ( dirty != null ) {
+                for ( final String path : dirty ) {
+                    _volatilePaths.add( GitPaths.unquote( path ) );
+                }
+            }
+        }
+
+        final Set<String> touched = objects == null ? touchedSince( repo, head ) : touchedSince( objects, head );
+        if ( touched == null ) {
+            _entries.clear();
+            return files;
+        }
+
+        final Map<String, Counts> valid = Maps.newHashMap();
+        final List<SourceFile> stale = Lists.newArrayList();
+        for ( final SourceFile file : files ) {
+            final Counts counts = _entries.get( file.getPath() );
+            if ( counts == null || !counts._blob.equals( file.getBlob() ) || touched.contains( file.getPath() ) || _volatilePaths.contains( file.getPath() ) ) {
+                stale.add( file );
+                continue;
+            }
+            valid.put( file.getPath(), counts );
+            for ( int i = 0; i < counts._authors.length; i++ ) {
+                counter.add( counts._authors[i], counts._lines[i] );
+            }
+        }
+        _entries.clear();
+        _entries.putAll( valid );
+
+        return stale;
+    }
+
+    /**
+     * @return the paths changed between the indexed commit and <code>head</code>, or <code>null</code>
+     *         if nothing in the index can be trusted
+     */
+    private Set<String> touchedSince( final File repo, final String head ) throws IOException, InterruptedException {
+        if ( _commit == null || head == null ) {
+            return null;
+        }
+        if ( _commit.equals( head ) ) {
+            return Sets.newHashSet();
+        }
+        if ( Git.run( repo, "merge-base", "--is-ancestor", _commit, head ) != 0 ) {
+            return null;
+        }
+
+        final List<String> paths = Git.lines( repo, "log", "-m", "--no-renames", "--name-only", "--format=", _commit + ".." + head );
+        if ( paths == null ) {
+            return null;
+        }
+        final Set<String> touched = Sets.newHashSet();
+        for ( final String path : paths ) {
+            if ( !path.isEmpty() ) {
+                touched.add( GitPaths.unquote( path ) );
+            }
+        }
+        return touched.contains( ".mailmap" ) ? null : touched;
+    }
+
+    /**
+     * Walks the commits reachable from <code>head</code> but not from the indexed commit newest
+     * first, as <code>git log</code> does, and diffs each against all its parents. Commits reached
+     * from the indexed one are marked, along with everything seen below them. Like git the walk
+     * goes on for {@value #SLOP} commits once only marked ones are left, for commits with the same
+     * time, and diffs only the commits still unmarked at the end.
+     *
+     * @return the paths changed between the indexed commit and <code>head</code>, or <code>null</code>
+     *         if nothing in the index can be trusted
+     */
+    private Set<String> touchedSince( final ObjectDatabase objects, final String head ) throws IOException {
+        if ( _commit == null || head == null ) {
+            return null;
+        }
+        if ( _commit.equals( head ) ) {
+            return Sets.newHashSet();
+        }
+        final ObjectId indexed = ObjectId.fromHex( _commit );
+        if ( objects.read( indexed ) == null ) {
+            return null;
+        }
+
+        final Map<ObjectId, Walked> seen = Maps.newHashMap();
+        final Set<ObjectId> pending = Sets.newHashSet();
+        final PriorityQueue<Walked> queue = new PriorityQueue<Walked>();
+        walk( objects, ObjectId.fromHex( head ), false, seen, pending, queue );
+        walk( objects, indexed, true, seen, pending, queue );
+
+        final List<Walked> walked = Lists.newArrayList();
+        int slop = SLOP;
+        while ( !queue.isEmpty() && ( !pending.isEmpty() || slop-- > 0 ) ) {
+            final Walked next = queue.poll();
+            pending.remove( next._id );
+            next._done = true;
+            if ( !next._marked ) {
+                walked.add( next );
+            }
+            for ( final ObjectId parent : next._commit.getParents() ) {
+                walk( objects, parent, next._marked, seen, pending, queue );
+            }
+        }
+
+        boolean ancestor = false;
+        final Set<String> touched = Sets.newHashSet();
+        for ( final Walked commit : walked ) {
+            if ( commit._marked ) {
+                continue;
+            }
+            final ObjectId[] parents = commit._commit.getParents();
+            if ( parents.length == 0 ) {
+                objects.changedPaths( null, commit._commit.getTree(), "", touched );
+            }
+            for ( final ObjectId parent : parents ) {
+                ancestor |= parent.equals( indexed );
+                objects.changedPaths( objects.commit( parent ).getTree(), commit._commit.getTree(), "", touched );
+            }
+        }
+        if ( !ancestor ) {
+            return null;
+        }
+        return touched.contains( ".mailmap" ) ? null : touched;
+    }
+
+    /**
+     * Queues a commit that was not seen yet, or marks a seen one that turns out to be reachable
+     * from the indexed commit, and with it everything seen below it.
+     */
+    private static void walk( final ObjectDatabase objects, final ObjectId id, final boolean marked, final Map<ObjectId, Walked> seen,
+            final Set<ObjectId> pending, final PriorityQueue<Walked> queue ) throws IOException {
+        final Walked known = seen.get( id );
+        if ( known == null ) {
+            final Walked commit = new Walked( id, objects.commit( id ), marked );
+            seen.put( id, commit );
+            queue.add( commit );
+            if ( !marked ) {
+                pending.add( id );
+            }
+            return;
+        }
+        if ( !marked || known._marked ) {
+            return;
+        }
+        final List<Walked> marking = Lists.newArrayList( known );
+        while ( !marking.isEmpty() ) {
+            final Walked commit = marking.remove( marking.size() - 1 );
+            if ( commit._marked ) {
+                continue;
+            }
+            commit._marked = true;
+            pending.remove( commit._id );
+            if ( commit._done ) {
+                for ( final ObjectId parent : commit._commit.getParents() ) {
+                    final Walked below = seen.get( parent );
+                    if ( below != null ) {
+                        marking.add( below );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the counts of a file, safe to call from several threads. The first
+     * <code>length</code> elements of the arrays are copied.
+     */
+    void put( final SourceFile file, final int[] authors, final int[] lines, final int length ) {
+        if ( _volatilePaths.contains( file.getPath() ) ) {
+            return;
+        }
+        _entries.put( file.getPath(), new Counts( file.getBlob(), Arrays.copyOf( authors, length ), Arrays.copyOf( lines, length ) ) );
+    }
+
+    void save( final File file, final String commit ) throws IOException {
+        final Map<Integer, Integer> authorIds = Maps.newLinkedHashMap();
+        for ( final Counts counts : _entries.values() ) {
+            for ( final int author : counts._authors ) {
+                if ( !authorIds.containsKey( Integer.valueOf( author ) ) ) {
+                    authorIds.put( Integer.valueOf( author ), Integer.valueOf( authorIds.size() ) );
+                }
+            }
+        }
+
+        final File temp = new File( file.getPath() + ".tmp" );
+        final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+        try {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeUTF( commit );
+
+            out.writeInt( authorIds.size() );
+            for ( final Integer author : authorIds.keySet() ) {
+                out.writeUTF( _authorTable.name( author.intValue() ) );
+            }
+
+            out.writeInt( _entries.size() );
+            for ( final Map.Entry<String, Counts> entry : _entries.entrySet() ) {
+                out.writeUTF( entry.getKey() );
+                out.writeUTF( entry.getValue()._blob );
+                final Counts counts = entry.getValue();
+                out.writeInt( counts._authors.length );
+                for ( int i = 0; i < counts._authors.length; i++ ) {
+                    out.writeInt( authorIds.get( Integer.valueOf( counts._authors[i] ) ).intValue() );
+                    out.writeInt( counts._lines[i] );
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if ( !temp.renameTo( file ) ) {
+            file.delete();
+            if ( !temp.renameTo( file ) ) {
+                throw new IOException( "Could not replace " + file );
+            }
+        }
+    }
+
+}
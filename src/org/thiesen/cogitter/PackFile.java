@@ -0,0 +1,364 @@
+package org.thiesen.cogitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * A memory mapped <code>.pack</code> file with its <code>.idx</code>, version 1 or 2.
+ * </p>
+ * <p>
+ * Deltified objects are resolved iteratively: the chain of deltas is followed down to a base that
+ * is either stored whole or found in the delta base cache of the {@link ObjectDatabase}, and the
+ * deltas are then applied bottom up. Every intermediate result is put into that cache, as other
+ * objects of the same chain are usually needed soon after. Safe for use by several threads.
+ * </p>
+ * <p>
+ * Packs and indexes larger than 2 GB cannot be mapped into a single buffer and are rejected.
+ * </p>
+ */
+final class PackFile {
+
+    private static final int OFS_DELTA = 6;
+    private static final int REF_DELTA = 7;
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private static final ThreadLocal<byte[]> INPUT = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16 * 1024];
+        }
+    };
+
+    /**
+     * Key of the delta base cache.
+     */
+    static final class Position {
+        private final PackFile _pack;
+        private final int _offset;
+
+        private Position( final PackFile pack, final int offset ) {
+            _pack = pack;
+            _offset = offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode( _pack ) * 31 + _offset;
+        }
+
+        @Override
+        public boolean equals( final Object obj ) {
+            return obj instanceof Position && ( (Position)obj )._pack == _pack && ( (Position)obj )._offset == _offset;
+        }
+    }
+
+    private final File _file;
+    private final ObjectDatabase _objects;
+    private final ByteBuffer _index;
+    private final ByteBuffer _pack;
+    private final int[] _fanout = new int[256];
+    private final int _version;
+    private final int _count;
+    private final int _idsStart;
+    private final int _offsetsStart;
+    private final int _largeOffsetsStart;
+
+    PackFile( final File indexFile, final File packFile, final ObjectDatabase objects ) throws IOException {
+        _file = packFile;
+        _objects = objects;
+        _index = map( indexFile );
+        _pack = map( packFile );
+
+        if ( _pack.limit() < 12 || _pack.getInt( 0 ) != 0x5041434b ) {
+            throw new IOException( "Not a pack file: " + packFile );
+        }
+
+        final int fanoutStart;
+        if ( _index.limit() >= 8 && _index.getInt( 0 ) == 0xff744f63 ) {
+            _version = _index.getInt( 4 );
+            if ( _version != 2 ) {
+                throw new IOException( "Unsupported pack index version " + _version + ": " + indexFile );
+            }
+            fanoutStart = 8;
+        } else {
+            _version = 1;
+            fanoutStart = 0;
+        }
+        for ( int i = 0; i < 256; i++ ) {
+            _fanout[i] = _index.getInt( fanoutStart + i * 4 );
+        }
+        _count = _fanout[255];
+
+        if ( _version == 1 ) {
+            // 4 byte offset followed by the id, per object
+            _idsStart = fanoutStart + 256 * 4 + 4;
+            _offsetsStart = fanoutStart + 256 * 4;
+            _largeOffsetsStart = -1;
+        } else {
+            // ids, CRCs, 4 byte offsets, 8 byte offsets
+            _idsStart = fanoutStart + 256 * 4;
+            _offsetsStart = _idsStart + _count * ( ObjectId.LENGTH + 4 );
+            _largeOffsetsStart = _offsetsStart + _count * 4;
+        }
+    }
+
+    private static ByteBuffer map( final File file ) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile( file, "r" );
+        try {
+            final FileChannel channel = in.getChannel();
+            if ( channel.size() > Integer.MAX_VALUE ) {
+                throw new IOException( "Files larger than 2 GB are not supported: " + file );
+            }
+            return channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        } finally {
+            in.close();
+        }
+    }
+
+    File getFile() {
+        return _file;
+    }
+
+    /**
+     * @return the offset of the object in the pack, or -1
+     */
+    int find( final ObjectId id ) {
+        final int first = id.firstByte();
+        int low = first == 0 ? 0 : _fanout[first - 1];
+        int high = _fanout[first] - 1;
+        final int stride = _version == 1 ? ObjectId.LENGTH + 4 : ObjectId.LENGTH;
+
+        while ( low <= high ) {
+            final int middle = ( low + high ) >>> 1;
+            final int compared = id.compareTo( _index, _idsStart + middle * stride );
+            if ( compared == 0 ) {
+                return offset( middle );
+            } else if ( compared < 0 ) {
+                high = middle - 1;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int offset( final int position ) {
+        if ( _version == 1 ) {
+            return _index.getInt( _offsetsStart + position * ( ObjectId.LENGTH + 4 ) );
+        }
+        final int offset = _index.getInt( _offsetsStart + position * 4 );
+        if ( offset >= 0 ) {
+            return offset;
+        }
+        final long large = _index.getLong( _largeOffsetsStart + ( offset & 0x7fffffff ) * 8 );
+        if ( large > Integer.MAX_VALUE ) {
+            throw new IllegalStateException( "Offset beyond 2 GB in " + _file );
+        }
+        return (int)large;
+    }
+
+    /**
+     * Reads the object stored at <code>offset</code>, resolving deltas.
+     */
+    ObjectDatabase.RawObject read( final int offset ) throws IOException {
+        int[] chain = new int[8];
+        int chainLength = 0;
+        ObjectDatabase.RawObject base = null;
+
+        // the position of base in this pack, -1 for a base taken from elsewhere
+        int current = offset;
+        while ( base == null ) {
+            if ( current != offset ) {
+                base = _objects.deltaBase( new Position( this, current ) );
+                if ( base != null ) {
+                    break;
+                }
+            }
+
+            int position = current;
+            int c = _pack.get( position++ ) & 0xff;
+            final int type = ( c >> 4 ) & 7;
+            long size = c & 15;
+            int shift = 4;
+            while ( ( c & 0x80 ) != 0 ) {
+                c = _pack.get( position++ ) & 0xff;
+                size |= (long)( c & 0x7f ) << shift;
+                shift += 7;
+            }
+            if ( size > Integer.MAX_VALUE - 8 ) {
+                throw new IOException( "Object too large at " + current + " in " + _file );
+            }
+
+            if ( type >= ObjectDatabase.COMMIT && type <= ObjectDatabase.TAG ) {
+                base = new ObjectDatabase.RawObject( type, inflate( position, (int)size ) );
+                break;
+            }
+
+            if ( chainLength + 3 > chain.length ) {
+                chain = Arrays.copyOf( chain, chain.length * 2 );
+            }
+            if ( type == OFS_DELTA ) {
+                c = _pack.get( position++ ) & 0xff;
+                long distance = c & 0x7f;
+                while ( ( c & 0x80 ) != 0 ) {
+                    c = _pack.get( position++ ) & 0xff;
+                    distance = ( ( distance + 1 ) << 7 ) | ( c & 0x7f );
+                }
+                chain[chainLength++] = current;
+                chain[chainLength++] = position;
+                chain[chainLength++] = (int)size;
+                current = (int)( current - distance );
+            } else if ( type == REF_DELTA ) {
+                final byte[] baseId = new byte[ObjectId.LENGTH];
+                for ( int i = 0; i < baseId.length; i++ ) {
+                    baseId[i] = _pack.get( position++ );
+                }
+                chain[chainLength++] = current;
+                chain[chainLength++] = position;
+                chain[chainLength++] = (int)size;
+                base = _objects.read( ObjectId.fromBytes( baseId, 0 ) );
+                if ( base == null ) {
+                    throw new IOException( "Missing delta base " + ObjectId.fromBytes( baseId, 0 ) + " in " + _file );
+                }
+                current = -1;
+            } else {
+                throw new IOException( "Unknown object type " + type + " at " + current + " in " + _file );
+            }
+        }
+
+        for ( int i = chainLength - 3; i >= 0; i -= 3 ) {
+            if ( current >= 0 ) {
+                // other objects of the chain are likely to be read soon
+                _objects.putDeltaBase( new Position( this, current ), base );
+            }
+            final byte[] delta = inflate( chain[i + 1], chain[i + 2] );
+            base = new ObjectDatabase.RawObject( base.getType(), applyDelta( base.getData(), delta ) );
+            current = chain[i];
+        }
+        return base;
+    }
+
+    private byte[] inflate( final int start, final int size ) throws IOException {
+        final byte[] result = new byte[size];
+        final Inflater inflater = INFLATER.get();
+        final byte[] input = INPUT.get();
+        final ByteBuffer pack = _pack.duplicate();
+        pack.position( start );
+        inflater.reset();
+        try {
+            final byte[] overflow = new byte[1];
+            int written = 0;
+            while ( !inflater.finished() ) {
+                if ( inflater.needsInput() ) {
+                    final int length = Math.min( input.length, pack.remaining() );
+                    if ( length == 0 ) {
+                        throw new IOException( "Truncated object at " + start + " in " + _file );
+                    }
+                    pack.get( input, 0, length );
+                    inflater.setInput( input, 0, length );
+                }
+                if ( written < size ) {
+                    written += inflater.inflate( result, written, size - written );
+                } else if ( inflater.inflate( overflow ) != 0 ) {
+                    // all bytes are there, only the end of the stream may follow
+                    throw new IOException( "Object larger than its header says at " + start + " in " + _file );
+                }
+                if ( inflater.needsDictionary() ) {
+                    throw new IOException( "Corrupt object at " + start + " in " + _file );
+                }
+            }
+            if ( written != size ) {
+                throw new IOException( "Object smaller than its header says at " + start + " in " + _file );
+            }
+        } catch ( final DataFormatException e ) {
+            throw new IOException( "Corrupt object at " + start + " in " + _file + ": " + e.getMessage() );
+        }
+        return result;
+    }
+
+    static byte[] applyDelta( final byte[] base, final byte[] delta ) throws IOException {
+        int position = 0;
+        long baseSize = 0;
+        int shift = 0;
+        int c;
+        do {
+            c = delta[position++] & 0xff;
+            baseSize |= (long)( c & 0x7f ) << shift;
+            shift += 7;
+        } while ( ( c & 0x80 ) != 0 );
+        if ( baseSize != base.length ) {
+            throw new IOException( "Delta base has " + base.length + " bytes instead of " + baseSize );
+        }
+        long resultSize = 0;
+        shift = 0;
+        do {
+            c = delta[position++] & 0xff;
+            resultSize |= (long)( c & 0x7f ) << shift;
+            shift += 7;
+        } while ( ( c & 0x80 ) != 0 );
+        if ( resultSize > Integer.MAX_VALUE - 8 ) {
+            throw new IOException( "Delta result too large" );
+        }
+
+        final byte[] result = new byte[(int)resultSize];
+        int written = 0;
+        while ( position < delta.length ) {
+            final int command = delta[position++] & 0xff;
+            if ( ( command & 0x80 ) != 0 ) {
+                // copy from the base, the bits say which offset and size bytes follow
+                int copyOffset = 0;
+                int copySize = 0;
+                for ( int bit = 0; bit < 4; bit++ ) {
+                    if ( ( command & ( 1 << bit ) ) != 0 ) {
+                        copyOffset |= ( delta[position++] & 0xff ) << ( bit * 8 );
+                    }
+                }
+                for ( int bit = 0; bit < 3; bit++ ) {
+                    if ( ( command & ( 0x10 << bit ) ) != 0 ) {
+                        copySize |= ( delta[position++] & 0xff ) << ( bit * 8 );
+                    }
+                }
+                if ( copySize == 0 ) {
+                    copySize = 0x10000;
+                }
+                if ( copyOffset < 0 || copyOffset + copySize > base.length || written + copySize > result.length ) {
+                    throw new IOException( "Corrupt delta" );
+                }
+                System.arraycopy( base, copyOffset, result, written, copySize );
+                written += copySize;
+            } else if ( command != 0 ) {
+                if ( position + command > delta.length || written + command > result.length ) {
+                    throw new IOException( "Corrupt delta" );
+                }
+                System.arraycopy( delta, position, result, written, command );
+                position += command;
+                written += command;
+            } else {
+                throw new IOException( "Corrupt delta" );
+            }
+        }
+        if ( written != result.length ) {
+            throw new IOException( "Corrupt delta" );
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return _file.getPath();
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.thiesen.cogitter;
+
+import java.util.Locale;
+
+/**
+ * <p>
+ * Places rectangles one after another into a fixed area, never moving a rectangle once placed.
+ * A placed rectangle is known by the handle <code>insert</code> returns. Handles are not negative
+ * and stay valid until the next {@link #reset()}.
+ * </p>
+ * <p>
+ * The algorithms trade speed for how densely they fill the area: blackpawn is fastest, MaxRects
+ * fills best, Skyline and Guillotine are in between. <code>PackerBenchmark</code> compares them
+ * on mosaics sized like the report's.
+ * </p>
+ */
+interface Packer {
+
+    enum Algorithm {
+        /**
+         * The binary tree of {@link FlatRectanglePacker}.
+         */
+        BLACKPAWN {
+            @Override
+            Packer create( final int width, final int height ) {
+                return new FlatRectanglePacker( width, height, 0 );
+            }
+        },
+        /**
+         * {@link MaxRectsPacker}, choosing the free rectangle with the smallest leftover side.
+         */
+        MAXRECTS_BSSF {
+            @Override
+            Packer create( final int width, final int height ) {
+                return new MaxRectsPacker( width, height, MaxRectsPacker.Heuristic.BEST_SHORT_SIDE );
+            }
+        },
+        /**
+         * {@link MaxRectsPacker}, choosing the free rectangle with the smallest leftover area.
+         */
+        MAXRECTS_BAF {
+            @Override
+            Packer create( final int width, final int height ) {
+                return new MaxRectsPacker( width, height, MaxRectsPacker.Heuristic.BEST_AREA );
+            }
+        },
+        SKYLINE {
+            @Override
+            Packer create( final int width, final int height ) {
+                return new SkylinePacker( width, height );
+            }
+        },
+        GUILLOTINE {
+            @Override
+            Packer create( final int width, final int height ) {
+                return new GuillotinePacker( width, height );
+            }
+        };
+
+        abstract Packer create( int width, int height );
+
+        /**
+         * @param name the lower case name, with dashes for underscores
+         */
+        static Algorithm parse( final String name ) {
+            return valueOf( name.toUpperCase( Locale.ROOT ).replace( '-', '_' ) );
+        }
+    }
+
+    /**
+     * @return the handle of the placed rectangle, or -1 if it does not fit
+     */
+    int insert( int width, int height );
+
+    int x( int handle );
+
+    int y( int handle );
+
+    /**
+     * Removes all rectangles.
+     */
+    void reset();
+
+}
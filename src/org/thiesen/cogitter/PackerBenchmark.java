@@ -0,0 +1,72 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Runs every {@link Packer.Algorithm} on mosaics of 100 to 10000 tiles, sized for 70, 85 and 100
+ * percent of the canvas the way the report sizes avatars, in the order of the authors as in the
+ * unsorted mosaic and widest first as in the sorted one. Prints the throughput, how many tiles were
+ * dropped and how much of the canvas the placed tiles cover, so that a fuller packer can be weighed
+ * against what it costs.
+ */
+public class PackerBenchmark {
+
+    private static final double[] FILLS = { 0.7, 0.85, 1.0 };
+
+    public static void main( final String[] args ) {
+        final int iterations = args.length > 0 ? Integer.parseInt( args[0] ) : 3;
+        final int maxTiles = args.length > 1 ? Integer.parseInt( args[1] ) : 10000;
+        System.out.println( "tiles\tfill\torder\tpacker\tms\ttiles/s\tdropped\tcoverage" );
+        for ( int tiles = 100; tiles <= maxTiles; tiles *= 10 ) {
+            final int side = (int)( 1000 * Math.sqrt( tiles / 100.0 ) );
+            for ( final double fill : FILLS ) {
+                final int[] sizes = RectanglePackerBenchmark.sizes( tiles, side, fill, new Random( tiles ) );
+                for ( final Packer.Algorithm algorithm : Packer.Algorithm.values() ) {
+                    run( algorithm, side, fill, "given", sizes, iterations );
+                }
+                final int[] sorted = sizes.clone();
+                Arrays.sort( sorted );
+                for ( int i = 0; i < sorted.length / 2; i++ ) {
+                    final int swap = sorted[i];
+                    sorted[i] = sorted[sorted.length - 1 - i];
+                    sorted[sorted.length - 1 - i] = swap;
+                }
+                for ( final Packer.Algorithm algorithm : Packer.Algorithm.values() ) {
+                    run( algorithm, side, fill, "widest", sorted, iterations );
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs the sizes in order, once to warm up and then <code>iterations</code> times.
+     */
+    private static void run( final Packer.Algorithm algorithm, final int side, final double fill, final String order, final int[] sizes,
+            final int iterations ) {
+        final Packer packer = algorithm.create( side, side );
+        long covered = 0;
+        int dropped = 0;
+        long start = 0;
+        for ( int i = -1; i < iterations; i++ ) {
+            if ( i == 0 ) {
+                start = System.nanoTime();
+            }
+            packer.reset();
+            covered = 0;
+            dropped = 0;
+            for ( int tile = 0; tile < sizes.length; tile++ ) {
+                if ( packer.insert( sizes[tile], sizes[tile] ) < 0 ) {
+                    dropped++;
+                } else {
+                    covered += (long)sizes[tile] * sizes[tile];
+                }
+            }
+        }
+        final double millis = ( System.nanoTime() - start ) / 1E6 / iterations;
+        System.out.printf( "%d\t%.2f\t%s\t%s\t%.1f\t%.0f\t%d\t%.1f%%%n", Integer.valueOf( sizes.length ), Double.valueOf( fill ), order,
+                algorithm.name().toLowerCase().replace( '_', '-' ), Double.valueOf( millis ), Double.valueOf( sizes.length / millis * 1000 ),
+                Integer.valueOf( dropped ), Double.valueOf( 100.0 * covered / ( (long)side * side ) ) );
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.thiesen.cogitter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * <p>
+ * The line counts one shard found, per repository, written by <code>--partial-output</code> and
+ * added up by <code>--merge</code>.
+ * </p>
+ * <p>
+ * The file is a header with the shard followed by one section per repository: its name and the
+ * author emails with their line counts. It is written and read front to back in one pass, without
+ * any index, so merging many partials only costs reading them.
+ * </p>
+ */
+final class PartialCounts {
+
+    private final static int MAGIC = 0x436f4750;
+    private final static int VERSION = 1;
+
+    private final Shard _shard;
+    private final List<String> _names;
+    private final List<AuthorCounts> _counts;
+
+    private PartialCounts( final Shard shard, final List<String> names, final List<AuthorCounts> counts ) {
+        _shard = shard;
+        _names = names;
+        _counts = counts;
+    }
+
+    /**
+     * @param names the repository names, in the order of <code>counts</code>
+     */
+    static void write( final File file, final Shard shard, final List<String> names, final List<AuthorCounts> counts ) throws IOException {
+        final File temp = new File( file.getPath() + ".tmp" );
+        final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ), 64 * 1024 ) );
+        try {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( shard.getIndex() );
+            out.writeInt( shard.getCount() );
+
+            out.writeInt( names.size() );
+            for ( int i = 0; i < names.size(); i++ ) {
+                final AuthorCounts repositoryCounts = counts.get( i );
+                out.writeUTF( names.get( i ) );
+                out.writeInt( repositoryCounts.size() );
+                for ( int index = 0; index < repositoryCounts.size(); index++ ) {
+                    out.writeUTF( repositoryCounts.name( index ) );
+                    out.writeLong( repositoryCounts.count( index ) );
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if ( !temp.renameTo( file ) ) {
+            file.delete();
+            if ( !temp.renameTo( file ) ) {
+                throw new IOException( "Could not replace " + file );
+            }
+        }
+    }
+
+    /**
+     * Reads a partial, interning its authors into <code>authors</code>.
+     */
+    static PartialCounts read( final File file, final AuthorTable authors ) throws IOException {
+        final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 64 * 1024 ) );
+        try {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                throw new IOException( file + " is no partial count file" );
+            }
+            final int shardIndex = in.readInt();
+            final Shard shard = new Shard( shardIndex, in.readInt() );
+
+            final int repositoryCount = in.readInt();
+            final List<String> names = Lists.newArrayListWithCapacity( repositoryCount );
+            final List<AuthorCounts> counts = Lists.newArrayListWithCapacity( repositoryCount );
+            for ( int i = 0; i < repositoryCount; i++ ) {
+                names.add( in.readUTF() );
+                final int size = in.readInt();
+                final int[] ids = new int[size];
+                final long[] lines = new long[size];
+                for ( int index = 0; index < size; index++ ) {
+                    ids[index] = authors.intern( in.readUTF() );
+                    lines[index] = in.readLong();
+                }
+                counts.add( new AuthorCounts( authors, ids, lines ) );
+            }
+            return new PartialCounts( shard, names, counts );
+        } finally {
+            in.close();
+        }
+    }
+
+    Shard getShard() {
+        return _shard;
+    }
+
+    List<String> getNames() {
+        return _names;
+    }
+
+    List<AuthorCounts> getCounts() {
+        return _counts;
+    }
+
+}
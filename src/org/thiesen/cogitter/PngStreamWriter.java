@@ -0,0 +1,216 @@
+package org.thiesen.cogitter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * <p>
+ * Writes an RGB PNG row by row, so that an image of any height never has to be in memory as a
+ * whole. Rows are handed in as packed <code>TYPE_INT_RGB</code> pixels, filtered, deflated and
+ * written out in <code>IDAT</code> chunks of at most {@value #CHUNK_SIZE} bytes. Files are
+ * written through their channel.
+ * </p>
+ * <p>
+ * Each row gets the filter with the smallest sum of absolute differences, the heuristic libpng
+ * uses, which works well for photos as well as for flat areas.
+ * </p>
+ */
+final class PngStreamWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILTERS = 5;
+
+    /**
+     * Collects compressed data and writes it as <code>IDAT</code> chunks.
+     */
+    private final class ChunkStream extends OutputStream {
+        private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream( CHUNK_SIZE );
+
+        @Override
+        public void write( final int b ) throws IOException {
+            _buffer.write( b );
+            if ( _buffer.size() >= CHUNK_SIZE ) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len ) throws IOException {
+            _buffer.write( b, off, len );
+            if ( _buffer.size() >= CHUNK_SIZE ) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if ( _buffer.size() > 0 ) {
+                chunk( "IDAT", _buffer.toByteArray() );
+                _buffer.reset();
+            }
+        }
+    }
+
+    private final DataOutputStream _out;
+    private final int _width;
+    private final int _height;
+    private final ChunkStream _chunks = new ChunkStream();
+    private final Deflater _deflater;
+    private final DeflaterOutputStream _data;
+    private final byte[][] _filtered;
+    private byte[] _previous;
+    private byte[] _current;
+    private int _rows;
+
+    /**
+     * @param level the deflate level, from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    PngStreamWriter( final File file, final int width, final int height, final int level ) throws IOException {
+        this( Channels.newOutputStream( new FileOutputStream( file ).getChannel() ), width, height, level );
+    }
+
+    PngStreamWriter( final OutputStream out, final int width, final int height, final int level ) throws IOException {
+        _out = new DataOutputStream( new BufferedOutputStream( out, CHUNK_SIZE ) );
+        _width = width;
+        _height = height;
+        _deflater = new Deflater( level );
+        _data = new DeflaterOutputStream( _chunks, _deflater, CHUNK_SIZE );
+        _filtered = new byte[FILTERS][width * 3 + 1];
+        _previous = new byte[width * 3];
+        _current = new byte[width * 3];
+
+        _out.write( SIGNATURE );
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final DataOutputStream headerData = new DataOutputStream( header );
+        headerData.writeInt( width );
+        headerData.writeInt( height );
+        headerData.writeByte( 8 ); // bits per sample
+        headerData.writeByte( 2 ); // RGB
+        headerData.writeByte( 0 ); // deflate
+        headerData.writeByte( 0 ); // adaptive filtering
+        headerData.writeByte( 0 ); // not interlaced
+        chunk( "IHDR", header.toByteArray() );
+    }
+
+    /**
+     * Appends <code>rows</code> rows of <code>width</code> pixels each.
+     */
+    void write( final int[] pixels, final int rows ) throws IOException {
+        if ( _rows + rows > _height ) {
+            throw new IOException( "More than " + _height + " rows" );
+        }
+        for ( int row = 0; row < rows; row++ ) {
+            final int offset = row * _width;
+            for ( int x = 0; x < _width; x++ ) {
+                final int pixel = pixels[offset + x];
+                _current[x * 3] = (byte)( pixel >> 16 );
+                _current[x * 3 + 1] = (byte)( pixel >> 8 );
+                _current[x * 3 + 2] = (byte)pixel;
+            }
+            final byte[] filtered = filter( _current, _previous );
+            _data.write( filtered, 0, filtered.length );
+
+            final byte[] swap = _previous;
+            _previous = _current;
+            _current = swap;
+        }
+        _rows += rows;
+    }
+
+    /**
+     * @return the filter type followed by the filtered row, for the filter with the smallest sum
+     *         of absolute values
+     */
+    private byte[] filter( final byte[] row, final byte[] above ) {
+        long best = Long.MAX_VALUE;
+        byte[] result = null;
+        for ( int type = 0; type < FILTERS; type++ ) {
+            final byte[] filtered = _filtered[type];
+            filtered[0] = (byte)type;
+            long sum = 0;
+            for ( int i = 0; i < row.length; i++ ) {
+                final int a = i >= 3 ? row[i - 3] & 0xff : 0;
+                final int b = above[i] & 0xff;
+                final int c = i >= 3 ? above[i - 3] & 0xff : 0;
+                final int x = row[i] & 0xff;
+                final int predicted;
+                switch ( type ) {
+                    case 1:
+                        predicted = a;
+                        break;
+                    case 2:
+                        predicted = b;
+                        break;
+                    case 3:
+                        predicted = ( a + b ) >> 1;
+                        break;
+                    case 4:
+                        predicted = paeth( a, b, c );
+                        break;
+                    default:
+                        predicted = 0;
+                }
+                final byte value = (byte)( x - predicted );
+                filtered[i + 1] = value;
+                sum += Math.abs( value );
+            }
+            if ( sum < best ) {
+                best = sum;
+                result = filtered;
+            }
+        }
+        return result;
+    }
+
+    private static int paeth( final int a, final int b, final int c ) {
+        final int p = a + b - c;
+        final int pa = Math.abs( p - a );
+        final int pb = Math.abs( p - b );
+        final int pc = Math.abs( p - c );
+        if ( pa <= pb && pa <= pc ) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private void chunk( final String type, final byte[] data ) throws IOException {
+        final byte[] typeBytes = type.getBytes( GitPaths.UTF8 );
+        final CRC32 crc = new CRC32();
+        crc.update( typeBytes );
+        crc.update( data );
+        _out.writeInt( data.length );
+        _out.write( typeBytes );
+        _out.write( data );
+        _out.writeInt( (int)crc.getValue() );
+    }
+
+    /**
+     * Finishes the image. Fails if fewer rows than its height were written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if ( _rows != _height ) {
+                throw new IOException( "Only " + _rows + " of " + _height + " rows written" );
+            }
+            _data.finish();
+            _chunks.flush();
+            chunk( "IEND", new byte[0] );
+        } finally {
+            _deflater.end();
+            _out.close();
+        }
+    }
+
+}
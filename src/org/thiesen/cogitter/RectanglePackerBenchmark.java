@@ -0,0 +1,88 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Packs mosaics of 100 to 100000 tiles with the recursive {@link RectanglePacker} and the
+ * {@link FlatRectanglePacker}, in the given order and widest first, and prints the time per
+ * packing and how many tiles fit. The tiles are sized the way the report sizes avatars, by a
+ * long tailed share of lines on a canvas that grows with their number. The recursive packer is
+ * left out above 10000 tiles, where it takes minutes or runs out of stack.
+ */
+public class RectanglePackerBenchmark {
+
+    private static final int RECURSIVE_LIMIT = 10000;
+
+    public static void main( final String[] args ) {
+        final int iterations = args.length > 0 ? Integer.parseInt( args[0] ) : 5;
+        System.out.println( "tiles\torder\trecursive ms\tflat ms\tplaced" );
+        for ( int round = 0; round < 2; round++ ) {
+            for ( int tiles = 100; tiles <= 100000; tiles *= 10 ) {
+                final int side = (int)( 1000 * Math.sqrt( tiles / 100.0 ) );
+                final int[] sizes = sizes( tiles, side, 0.7, new Random( tiles ) );
+                run( tiles, "given", side, sizes, iterations );
+                final int[] sorted = sizes.clone();
+                Arrays.sort( sorted );
+                for ( int i = 0; i < sorted.length / 2; i++ ) {
+                    final int swap = sorted[i];
+                    sorted[i] = sorted[sorted.length - 1 - i];
+                    sorted[sorted.length - 1 - i] = swap;
+                }
+                run( tiles, "widest", side, sorted, iterations );
+            }
+        }
+    }
+
+    private static void run( final int tiles, final String order, final int side, final int[] sizes, final int iterations ) {
+        String recursive = "-";
+        if ( tiles <= RECURSIVE_LIMIT ) {
+            try {
+                final long start = System.nanoTime();
+                for ( int i = 0; i < iterations; i++ ) {
+                    final RectanglePacker<Integer> packer = new RectanglePacker<Integer>( side, side, 0 );
+                    for ( int tile = 0; tile < sizes.length; tile++ ) {
+                        packer.insert( sizes[tile], sizes[tile], Integer.valueOf( tile ) );
+                    }
+                }
+                recursive = String.format( "%.1f", Double.valueOf( ( System.nanoTime() - start ) / 1E6 / iterations ) );
+            } catch ( final StackOverflowError e ) {
+                recursive = "overflow";
+            }
+        }
+
+        final FlatRectanglePacker packer = new FlatRectanglePacker( side, side, 0 );
+        int placed = 0;
+        final long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ ) {
+            packer.reset();
+            placed = 0;
+            for ( int tile = 0; tile < sizes.length; tile++ ) {
+                if ( packer.insert( sizes[tile], sizes[tile], tile ) >= 0 ) {
+                    placed++;
+                }
+            }
+        }
+        System.out.printf( "%d\t%s\t%s\t%.1f\t%d%n", Integer.valueOf( tiles ), order, recursive,
+                Double.valueOf( ( System.nanoTime() - start ) / 1E6 / iterations ), Integer.valueOf( placed ) );
+    }
+
+    /**
+     * @return tile sizes for shares drawn from a Pareto distribution, as the report computes them
+     *         with the given part of the canvas to fill
+     */
+    static int[] sizes( final int tiles, final int side, final double fill, final Random random ) {
+        final double[] counts = new double[tiles];
+        double sum = 0;
+        for ( int i = 0; i < tiles; i++ ) {
+            counts[i] = 1 / Math.pow( 1 - random.nextDouble(), 1 / 1.2 );
+            sum += counts[i];
+        }
+        final int[] sizes = new int[tiles];
+        for ( int i = 0; i < tiles; i++ ) {
+            sizes[i] = Math.max( 1, Math.min( side, (int)Math.sqrt( (double)side * side * counts[i] / sum * fill ) ) );
+        }
+        return sizes;
+    }
+
+}
@@ -0,0 +1,134 @@
+package org.thiesen.cogitter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * <p>
+ * One repository to count: its source files, the counter they are counted into and optionally the
+ * ownership index that unchanged files are taken from.
+ * </p>
+ * <p>
+ * Files are listed by git, or read from the HEAD tree if the repository is read in-process.
+ * {@link #open(File, String, File, ObjectDatabase, Shard)} already adds the counts of the files
+ * that are still valid in the index, only {@link #getStaleFiles()} need to be counted. Files
+ * outside the shard are dropped right after listing and never counted.
+ * </p>
+ */
+final class Repository {
+
+    private final File _dir;
+    private final String _name;
+    private final AuthorCounter _counter;
+    private final File _indexFile;
+    private final OwnershipIndex _index;
+    private final String _head;
+    private final List<SourceFile> _staleFiles;
+    private final ObjectDatabase _objects;
+
+    private Repository( final File dir, final String name, final AuthorCounter counter, final File indexFile, final OwnershipIndex index,
+            final String head, final List<SourceFile> staleFiles, final ObjectDatabase objects ) {
+        _dir = dir;
+        _name = name;
+        _counter = counter;
+        _indexFile = indexFile;
+        _index = index;
+        _head = head;
+        _staleFiles = staleFiles;
+        _objects = objects;
+    }
+
+    /**
+     * @param indexFile the ownership index to use, or <code>null</code>
+     * @param objects the objects of the repository to read in-process, or <code>null</code> to use git
+     */
+    static Repository open( final File dir, final String name, final File indexFile, final ObjectDatabase objects, final Shard shard )
+    throws IOException, InterruptedException {
+        final List<SourceFile> listed;
+        final String headCommit;
+        if ( objects != null ) {
+            final ObjectId head = objects.resolveHead();
+            headCommit = head == null ? null : head.toHex();
+            listed = head == null ? Lists.<SourceFile>newArrayList() : objects.listFiles( objects.commit( head ).getTree(), new ObjectDatabase.PathFilter() {
+                @Override
+                public boolean accept( final String path ) {
+                    return Main.isSourceFile( path );
+                }
+            } );
+        } else {
+            listed = Main.listSourceFiles( dir );
+            final List<String> head = Git.lines( dir, "rev-parse", "--verify", "-q", "HEAD" );
+            headCommit = head == null || head.isEmpty() ? null : head.get( 0 ).trim();
+        }
+        final List<SourceFile> files = Lists.newArrayListWithCapacity( listed.size() / shard.getCount() + 1 );
+        for ( final SourceFile file : listed ) {
+            if ( shard.contains( file.getPath() ) ) {
+                files.add( file );
+            }
+        }
+        final AuthorCounter counter = new AuthorCounter( Main.AUTHORS );
+
+        final OwnershipIndex index = indexFile == null ? null : OwnershipIndex.load( indexFile, Main.AUTHORS );
+        final List<SourceFile> stale = index == null ? files : index.mergeValid( dir, headCommit, files, counter, objects );
+        if ( index != null ) {
+            System.out.println( name + ": counting " + stale.size() + " of " + files.size() + " files, the rest is taken from the index" );
+        }
+
+        return new Repository( dir, name, counter, indexFile, index, headCommit, stale, objects );
+    }
+
+    File getDir() {
+        return _dir;
+    }
+
+    String getName() {
+        return _name;
+    }
+
+    AuthorCounter getCounter() {
+        return _counter;
+    }
+
+    /**
+     * @return the index to record new counts in, or <code>null</code>
+     */
+    OwnershipIndex getIndex() {
+        return _index;
+    }
+
+    /**
+     * @return the objects of the repository if it is read in-process, otherwise <code>null</code>
+     */
+    ObjectDatabase getObjects() {
+        return _objects;
+    }
+
+    /**
+     * @return the commit the files were listed at, or <code>null</code> on an unborn branch
+     */
+    String getHead() {
+        return _head;
+    }
+
+    List<SourceFile> getStaleFiles() {
+        return _staleFiles;
+    }
+
+    /**
+     * Writes the index back once all stale files are counted.
+     */
+    void saveIndex() throws IOException {
+        if ( _index != null && _head != null ) {
+            _index.save( _indexFile, _head );
+        }
+    }
+
+    @Override
+    public String toString() {
+        return _name;
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.thiesen.cogitter;
+
+/**
+ * <p>
+ * One of <code>count</code> disjoint parts of the file list, for splitting a run over several
+ * processes or hosts. A file belongs to the shard its path hashes to, so every node computes the
+ * same split from its own file listing without coordination.
+ * </p>
+ * <p>
+ * The hash is <code>String.hashCode()</code>, which is specified and therefore the same on every
+ * JVM, mixed so that paths differing only in their last characters spread over all shards.
+ * </p>
+ */
+final class Shard {
+
+    static final Shard ALL = new Shard( 0, 1 );
+
+    private final int _index;
+    private final int _count;
+
+    Shard( final int index, final int count ) {
+        if ( count < 1 || index < 0 || index >= count ) {
+            throw new IllegalArgumentException( "Shard " + index + " of " + count + " does not exist" );
+        }
+        _index = index;
+        _count = count;
+    }
+
+    /**
+     * @param spec <code>index/count</code> with a zero based index, like <code>0/4</code>
+     */
+    static Shard parse( final String spec ) {
+        final int slash = spec.indexOf( '/' );
+        if ( slash < 0 ) {
+            throw new IllegalArgumentException( "Shard expects index/count, got '" + spec + "'" );
+        }
+        try {
+            return new Shard( Integer.parseInt( spec.substring( 0, slash ) ), Integer.parseInt( spec.substring( slash + 1 ) ) );
+        } catch ( final NumberFormatException e ) {
+            throw new IllegalArgumentException( "Shard expects index/count, got '" + spec + "'", e );
+        }
+    }
+
+    boolean contains( final String path ) {
+        if ( _count == 1 ) {
+            return true;
+        }
+        int hash = path.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return ( hash & Integer.MAX_VALUE ) % _count == _index;
+    }
+
+    int getIndex() {
+        return _index;
+    }
+
+    int getCount() {
+        return _count;
+    }
+
+    @Override
+    public String toString() {
+        return _index + "/" + _count;
+    }
+
+}
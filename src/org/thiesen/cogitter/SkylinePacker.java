@@ -0,0 +1,176 @@
+package org.thiesen.cogitter;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A skyline packer in the bottom left style, upside down as image rows grow downwards. The used
+ * area is bounded by a skyline of horizontal segments. A rectangle goes onto the segment where its
+ * lower edge ends up nearest the top, preferring the narrower segment on ties. It rests on the
+ * deepest segment it spans and moves the skyline down to its lower edge there.
+ * </p>
+ * <p>
+ * The gaps below a rectangle that spans segments of different heights are lost for good, but an
+ * insert only walks the segments, which stay few, so it is nearly as fast as the binary tree
+ * while filling tighter.
+ * </p>
+ */
+final class SkylinePacker implements Packer {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int _width;
+    private final int _height;
+
+    // the segments from left to right, each with the lower edge of the used area there
+    private int[] _segmentX = new int[INITIAL_CAPACITY];
+    private int[] _segmentY = new int[INITIAL_CAPACITY];
+    private int[] _segmentWidth = new int[INITIAL_CAPACITY];
+    private int _segments;
+
+    private int[] _x = new int[INITIAL_CAPACITY];
+    private int[] _y = new int[INITIAL_CAPACITY];
+    private int _placed;
+
+    SkylinePacker( final int width, final int height ) {
+        _width = width;
+        _height = height;
+        reset();
+    }
+
+    @Override
+    public void reset() {
+        _segmentX[0] = 0;
+        _segmentY[0] = 0;
+        _segmentWidth[0] = _width;
+        _segments = 1;
+        _placed = 0;
+    }
+
+    @Override
+    public int insert( final int width, final int height ) {
+        int best = -1;
+        int bestBottom = Integer.MAX_VALUE;
+        int bestWidth = Integer.MAX_VALUE;
+        int bestY = 0;
+        for ( int i = 0; i < _segments; i++ ) {
+            final int y = fit( i, width, height );
+            if ( y < 0 ) {
+                continue;
+            }
+            if ( y + height < bestBottom || y + height == bestBottom && _segmentWidth[i] < bestWidth ) {
+                best = i;
+                bestBottom = y + height;
+                bestWidth = _segmentWidth[i];
+                bestY = y;
+            }
+        }
+        if ( best < 0 ) {
+            return -1;
+        }
+
+        final int x = _segmentX[best];
+        cover( best, x, bestY + height, width );
+        return place( x, bestY );
+    }
+
+    @Override
+    public int x( final int handle ) {
+        return _x[handle];
+    }
+
+    @Override
+    public int y( final int handle ) {
+        return _y[handle];
+    }
+
+    /**
+     * @return the top of the rectangle placed at the left of the segment, or -1 if it does not fit
+     *         there
+     */
+    private int fit( final int segment, final int width, final int height ) {
+        if ( _segmentX[segment] + width > _width ) {
+            return -1;
+        }
+        int y = 0;
+        int remaining = width;
+        for ( int i = segment; remaining > 0; i++ ) {
+            y = Math.max( y, _segmentY[i] );
+            if ( y + height > _height ) {
+                return -1;
+            }
+            remaining -= _segmentWidth[i];
+        }
+        return y;
+    }
+
+    /**
+     * Puts a segment for the new lower edge in front of the given one and cuts away what it
+     * covers of the following ones.
+     */
+    private void cover( final int index, final int x, final int y, final int width ) {
+        insertSegment( index, x, y, width );
+        final int right = x + width;
+        final int next = index + 1;
+        while ( next < _segments && _segmentX[next] < right ) {
+            final int covered = right - _segmentX[next];
+            if ( covered < _segmentWidth[next] ) {
+                _segmentX[next] += covered;
+                _segmentWidth[next] -= covered;
+                break;
+            }
+            removeSegment( next );
+        }
+        merge();
+    }
+
+    /**
+     * Joins neighbouring segments of the same height.
+     */
+    private void merge() {
+        for ( int i = 0; i + 1 < _segments; ) {
+            if ( _segmentY[i] == _segmentY[i + 1] ) {
+                _segmentWidth[i] += _segmentWidth[i + 1];
+                removeSegment( i + 1 );
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private void insertSegment( final int index, final int x, final int y, final int width ) {
+        if ( _segments == _segmentX.length ) {
+            final int capacity = _segments * 2;
+            _segmentX = Arrays.copyOf( _segmentX, capacity );
+            _segmentY = Arrays.copyOf( _segmentY, capacity );
+            _segmentWidth = Arrays.copyOf( _segmentWidth, capacity );
+        }
+        final int tail = _segments - index;
+        System.arraycopy( _segmentX, index, _segmentX, index + 1, tail );
+        System.arraycopy( _segmentY, index, _segmentY, index + 1, tail );
+        System.arraycopy( _segmentWidth, index, _segmentWidth, index + 1, tail );
+        _segmentX[index] = x;
+        _segmentY[index] = y;
+        _segmentWidth[index] = width;
+        _segments++;
+    }
+
+    private void removeSegment( final int index ) {
+        final int tail = _segments - index - 1;
+        System.arraycopy( _segmentX, index + 1, _segmentX, index, tail );
+        System.arraycopy( _segmentY, index + 1, _segmentY, index, tail );
+        System.arraycopy( _segmentWidth, index + 1, _segmentWidth, index, tail );
+        _segments--;
+    }
+
+    private int place( final int x, final int y ) {
+        if ( _placed == _x.length ) {
+            _x = Arrays.copyOf( _x, _placed * 2 );
+            _y = Arrays.copyOf( _y, _placed * 2 );
+        }
+        _x[_placed] = x;
+        _y[_placed] = y;
+        return _placed++;
+    }
+
+}
@@ -0,0 +1,29 @@
+package org.thiesen.cogitter;
+
+/**
+ * A file of the repository as listed by <code>git ls-files -s</code>.
+ */
+final class SourceFile {
+
+    private final String _path;
+    private final String _blob;
+
+    SourceFile( final String path, final String blob ) {
+        _path = path;
+        _blob = blob;
+    }
+
+    String getPath() {
+        return _path;
+    }
+
+    String getBlob() {
+        return _blob;
+    }
+
+    @Override
+    public String toString() {
+        return _path;
+    }
+
+}